@@ -0,0 +1,398 @@
+/**
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2008 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+
+package org.jatha;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jatha.compile.LispCompiler;
+import org.jatha.dynatype.LispCons;
+import org.jatha.dynatype.LispFunction;
+import org.jatha.dynatype.LispInteger;
+import org.jatha.dynatype.LispValue;
+import org.jatha.exception.CompilerException;
+import org.jatha.machine.SECDBytecode;
+import org.jatha.machine.SECDMachine;
+import org.jatha.machine.SECDProfile;
+import org.jatha.read.LispParser;
+
+import
+static org.jatha.dynatype.LispValue.*;
+import
+static org.jatha.LispProcessor.*;
+
+/**
+ * Simple benchmarks for the interpreter, run as
+ * <pre>
+ *    java org.jatha.Benchmark [iterations]
+ * </pre>
+ * Every benchmark script from the tests directory is loaded
+ * once and then evaluated repeatedly; the time and the number
+ * of bytes allocated by the current thread per iteration are
+ * printed.
+ * <pre>
+ *    java org.jatha.Benchmark -profile [length]
+ * </pre>
+ * prints the most frequent sequences of the instructions run by
+ * the list machine, without and with the superinstructions.
+ * <pre>
+ *    java org.jatha.Benchmark -compile [defuns]
+ * </pre>
+ * measures the compiler alone: a source file of the generated
+ * DEFUNs is read and compiled repeatedly.
+ */
+public class Benchmark extends Object
+{
+	static final String TESTS = "tests";
+
+	public static void main(String[] args)
+	{
+		if (args.length > 0 && args[0].equals("-profile")) {
+			int length = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+			System.out.println("Instruction sequences without superinstructions:");
+			profile(length, false).report(System.out, 15);
+			System.out.println("Instruction sequences with superinstructions:");
+			profile(length, true).report(System.out, 15);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-compile")) {
+			compile(args.length > 1 ? Integer.parseInt(args[1]) : 2000);
+			return;
+		}
+
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+		System.out.println("Register file vs. list registers (" + iterations + " iterations):");
+		for (String script : new String[] { "FACTORIAL", "SORT" }) {
+			run(script, "list registers", new SECDMachine(false), iterations);
+			run(script, "register file ", new SECDMachine(true), iterations);
+		}
+
+		System.out.println("List code vs. bytecode vs. tree (" + iterations + " iterations):");
+		for (String[] call : CALLS) {
+			run(call[0], call[1], "list code", new SECDMachine(), iterations);
+			run(call[0], call[1], "bytecode ", engineMachine(SECDMachine.Engine.BYTECODE), iterations);
+			run(call[0], call[1], "tree     ", engineMachine(SECDMachine.Engine.TREE), iterations);
+		}
+
+		System.out.println("SECD vs. JVM classes (" + iterations + " iterations):");
+		for (String[] call : CALLS) {
+			run(call[0], call[1], "list code", new SECDMachine(), false, iterations);
+			run(call[0], call[1], "classes  ", new SECDMachine(), true, iterations);
+		}
+
+		System.out.println("Compiled DEFUN sizes, list code vs. bytecode:");
+		for (String script : new String[] { "FACTORIAL", "SORT" })
+			codeSizes(script);
+	}
+
+	static SECDMachine engineMachine(SECDMachine.Engine engine)
+	{
+		SECDMachine machine = new SECDMachine();
+		machine.setEngine(engine);
+		return machine;
+	}
+
+	/**
+	 * Runs all the calls once by the list machine with the profile.
+	 * @param peephole if set, the code is compiled with the superinstructions
+	 */
+	static SECDProfile profile(int length, boolean peephole)
+	{
+		SECDProfile profile = new SECDProfile(length);
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) { }
+		}));
+		try {
+			for (String[] call : CALLS) {
+				Lisp lisp = new Lisp();
+				lisp.getCompiler().Peephole(peephole);
+				evalAll(lisp, read(lisp, call[0]));
+				lisp.MACHINE.setProfile(profile);
+				lisp.eval(call[1]);
+			}
+		}
+		finally {
+			System.setOut(out);
+		}
+		return profile;
+	}
+
+	/**
+	 * Writes the source file of the DEFUNs, reads it, and compiles
+	 * all of the forms repeatedly.  Prints the time and the bytes
+	 * allocated per form, and the forms compiled per second.
+	 */
+	static void compile(int defuns)
+	{
+		File file;
+		try {
+			file = File.createTempFile("jatha-compile", ".lisp");
+			file.deleteOnExit();
+			Writer writer = new FileWriter(file);
+			try {
+				generate(writer, defuns);
+			}
+			finally {
+				writer.close();
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		Lisp lisp = new Lisp();
+		List<LispValue> forms = new ArrayList<LispValue>();
+		try {
+			Reader reader = new FileReader(file);
+			try {
+				LispParser parser = new LispParser(lisp, reader);
+				while (true) {
+					LispValue form = parser.read();
+					if (form != NIL)
+						forms.add(form);
+				}
+			}
+			catch (EOFException e) {
+				// the end of the file
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		LispCompiler compiler = lisp.getCompiler();
+		System.out.println("Compile throughput, " + forms.size() + " forms of " + file.length() / 1024 + " KB:");
+		for (int round = 0; round < 5; round++) {
+			long bytes = allocatedBytes();
+			long time = System.nanoTime();
+			try {
+				for (LispValue form : forms)
+					compiler.compile(lisp.MACHINE, form, NIL);
+			}
+			catch (CompilerException e) {
+				throw new RuntimeException(e);
+			}
+			time = System.nanoTime() - time;
+			bytes = allocatedBytes() - bytes;
+
+			System.out.println("  round " + (round + 1) + ": " +
+					(time / forms.size()) + " ns, " +
+					(bytes / forms.size()) + " bytes allocated per form, " +
+					(forms.size() * 1000000000L / time) + " forms/s");
+		}
+	}
+
+	// The DEFUNs use the special forms, the local functions and the
+	// primitives, and call the DEFUNs before them.
+	static void generate(Writer out, int defuns)
+			throws IOException
+	{
+		for (int i = 0; i < defuns; i++) {
+			out.write("(defun gen-f" + i + " (a b)\n");
+			out.write("  (let ((c (+ a " + i + ")) (d (* b 2)))\n");
+			out.write("    (if (and (> c d) (or (= a 1) (< b " + i + ")))\n");
+			out.write("        (progn (setq c (- c 1)) (list c d (car (cons a b))))\n");
+			out.write("        (labels ((gen-h (x) (if (= x 0) 0 (gen-h (- x 1)))))\n");
+			out.write("          (+ (gen-h c) ((lambda (x) (* x x)) d)");
+			if (i > 0)
+				out.write(" (gen-f" + (i - 1) + " b a)");
+			out.write(")))))\n");
+		}
+	}
+
+	// Approximate sizes of objects with compressed references.
+	static final int CONS_BYTES = 24, INTEGER_BYTES = 24, ARRAY_BYTES = 16, BYTECODE_BYTES = 24;
+
+	static void codeSizes(String script)
+	{
+		Lisp lisp = new Lisp();
+		List<LispValue> forms = read(lisp, script);
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) { }
+		}));
+		try {
+			evalAll(lisp, forms);
+		}
+		finally {
+			System.setOut(out);
+		}
+
+		for (LispValue form : forms) {
+			if (!(form instanceof LispCons) || !car(form).toStringSimple().equals("DEFUN"))
+				continue;
+			LispValue code = ((LispFunction)car(cdr(form)).symbol_function()).getCode();
+			int[] cells = new int[2];
+			count(code, cells);
+			SECDBytecode bytecode = SECDBytecode.assemble(code);
+
+			out.print("  " + car(cdr(form)) + ": list code " + cells[0] + " conses, " + cells[1] + " integers (~" +
+					(cells[0] * CONS_BYTES + cells[1] * INTEGER_BYTES) + " bytes)");
+			if (bytecode == null)
+				out.println(", no bytecode");
+			else
+				out.println(", bytecode " + bytecode.codeLength() + " ints, " + bytecode.constantCount() + " constants (~" +
+						(bytecode.codeLength() * 4 + bytecode.constantCount() * 4 + (ARRAY_BYTES * 2 + BYTECODE_BYTES)) + " bytes)");
+		}
+	}
+
+	// Counts the conses and integers of the code list, the LDC constants are shared by both forms.
+	static void count(LispValue code, int[] cells)
+	{
+		while (code instanceof LispCons) {
+			cells[0]++;
+			LispValue op = car(code);
+			if (op == SECDMachine.LDC && cdr(code) instanceof LispCons) {
+				cells[0]++;
+				code = cdr(cdr(code));
+				continue;
+			}
+			if (op instanceof LispCons)
+				count(op, cells);
+			else if (op instanceof LispInteger)
+				cells[1]++;
+			code = cdr(code);
+		}
+		if (code instanceof LispInteger)
+			cells[1]++;
+	}
+
+	// script, expression to run after the script is loaded
+	static final String[][] CALLS = {
+		{ "FACTORIAL", "(factorial 12)" },
+		{ "NOD",       "(nod 1234566 7776)" },
+		{ "FIB",       "(fib 15)" },
+		{ "TAK",       "(tak 12 8 4)" },
+		{ "SORT",      "(sort '(2 3 1 1 1 7 5 6 4 4 5 6 5 6 5 6 1 1 1 8 9 8 5 5 6))" }
+	};
+
+	static void run(String script, String title, SECDMachine machine, int iterations)
+	{
+		run(script, null, title, machine, iterations);
+	}
+
+	/**
+	 * Runs the script.  If the call is given, the script is evaluated
+	 * once and only the call is measured.
+	 */
+	static void run(String script, String call, String title, SECDMachine machine, int iterations)
+	{
+		run(script, call, title, machine, false, iterations);
+	}
+
+	/**
+	 * Same, with the DEFUNs compiled to the JVM classes if <code>classes</code> is set.
+	 */
+	static void run(String script, String call, String title, SECDMachine machine, boolean classes, int iterations)
+	{
+		Lisp lisp = new Lisp();
+		lisp.MACHINE = machine;
+		lisp.getCompiler().CompileClasses(classes);
+		List<LispValue> forms = read(lisp, script);
+
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) { }
+		}));
+		try {
+			if (call != null) {
+				evalAll(lisp, forms);
+				forms = new ArrayList<LispValue>();
+				try {
+					forms.add(lisp.parse(call));
+				} catch (EOFException e) {
+					throw new IllegalArgumentException(call);
+				}
+				script = call;
+			}
+
+			// warm up
+			for (int i = 0; i < iterations; i++)
+				evalAll(lisp, forms);
+
+			long bytes = allocatedBytes();
+			long time = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				evalAll(lisp, forms);
+			time = System.nanoTime() - time;
+			bytes = allocatedBytes() - bytes;
+
+			out.println("  " + script + ", " + title + ": " +
+					(time / iterations / 1000) + " us, " +
+					(bytes / iterations / 1024) + " KB allocated per iteration");
+		}
+		finally {
+			System.setOut(out);
+		}
+	}
+
+	static void evalAll(Lisp lisp, List<LispValue> forms)
+	{
+		for (LispValue form : forms)
+			lisp.eval(form);
+	}
+
+	static List<LispValue> read(Lisp lisp, String script)
+	{
+		Reader resourceReader = new InputStreamReader(
+				Benchmark.class.getClassLoader().getResourceAsStream(TESTS + "/" + script)
+		);
+		LispParser cli = new LispParser(lisp, resourceReader);
+		List<LispValue> forms = new ArrayList<LispValue>();
+		while (true) {
+			try {
+				LispValue s = cli.read();
+				if (s != NIL)
+					forms.add(s);
+			} catch (EOFException e) {
+				break;
+			}
+		}
+		return forms;
+	}
+
+	static long allocatedBytes()
+	{
+		return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -38,6 +38,7 @@ import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -484,22 +485,105 @@ public class Lisp extends LispProcessor
   /**
    * Standard LISP eval function.
    * @param inValue a parsed LISp expression such as the output from Jatha.parse()
-   * @param vars a nested list of global variables and values, such as (((a . 3) (b . 5)) ((c . 10)))
+   * @param vars a nested list of global variables and values, such as (((a . 3) (b . 5)) ((c . 10))),
+   *        or one frame of them, such as ((a . 3) (b . 5))
    * @see #parse(String)
   */
   public LispValue eval(LispValue inValue, final LispValue vars)
   {
-    LispValue code, value;
+    return eval(inValue, vars, 0, 0, null);
+  }
+
+  /**
+   * Evaluates the expression with the budget of the steps.
+   * @param steps the steps of the engine, see below
+   * @throws EvaluationLimitException if the budget is exceeded
+   * @see #eval(LispValue, long, long, TimeUnit)
+   */
+  public LispValue eval(LispValue inValue, long steps)
+  {
+    return eval(inValue, NIL, steps, 0, null);
+  }
+
+  /**
+   * Evaluates the expression with the limits, to bound the time of
+   * the untrusted code.  The machine checks the deadline and the
+   * {@link #cancel()} every {@link SECDMachine#CHECK_INTERVAL} steps.
+   * The special variables bound by the stopped evaluation are unbound.
+   * <p>
+   * The steps depend on the engine: the list machine and the bytecode
+   * ({@link SECDMachine.Engine#LIST}, {@link SECDMachine.Engine#BYTECODE})
+   * count the instructions, the tree engine and the functions compiled
+   * to the JVM classes count the calls of the functions, that are tens
+   * of instructions.  The same budget lets the code run much longer on
+   * the latter, so tune it for the engine the code runs on, and bound
+   * the time with the timeout.
+   * @param steps the steps of the engine, 0 for no limit
+   * @param timeout the time of the evaluation, 0 for no limit
+   * @throws EvaluationLimitException if a limit is exceeded or the
+   *         evaluation is cancelled
+   * @see SECDMachine#Execute(SECDMachine.Evaluation, long, long, SECDMachine.Cancellation)
+   */
+  public LispValue eval(LispValue inValue, long steps, long timeout, TimeUnit unit)
+  {
+    return eval(inValue, NIL, steps, unit.toNanos(timeout), null);
+  }
+
+  /**
+   * Same, cancelled by the handle, that may be cancelled before the
+   * evaluation starts too.
+   * @see #eval(LispValue, long, long, TimeUnit)
+   */
+  public LispValue eval(LispValue inValue, long steps, long timeout, TimeUnit unit,
+                        SECDMachine.Cancellation cancellation)
+  {
+    return eval(inValue, NIL, steps, unit.toNanos(timeout), cancellation);
+  }
+
+  /**
+   * Same for the expression in the string.
+   * @see #eval(LispValue, long, long, TimeUnit)
+   */
+  public LispValue eval(String expr, long steps, long timeout, TimeUnit unit)
+  {
+    try {
+      PARSER.setInputString(expr);
+      return eval(PARSER.parse(), steps, timeout, unit);
+    } catch (EOFException e) {
+      System.err.println("Incomplete input.");
+      return NIL;
+    }
+  }
+
+  /**
+   * Stops the evaluation that runs now, may be called from any thread.
+   * It doesn't stop the evaluation started later.
+   * @see SECDMachine#cancel()
+   */
+  public void cancel()
+  {
+    MACHINE.cancel();
+  }
+
+  private LispValue eval(final LispValue inValue, final LispValue vars, long budget, long timeout,
+                         SECDMachine.Cancellation cancellation)
+  {
+    LispValue value;
 
     final LispList varNames  = parseVarNames_new(vars);
     final LispList varValues = parseVarValues_new(vars);
 
     try {
-      // compile
-      code  = COMPILER.compile(MACHINE, inValue, varNames);
-
-      // eval
-      value = MACHINE.Execute(code, varValues);
+      // compile and eval, the macros expanded with the limits too
+      value = MACHINE.Execute(new SECDMachine.Evaluation() {
+        public LispValue run() throws CompilerException {
+          LispValue code = COMPILER.compile(MACHINE, inValue, varNames);
+          return MACHINE.Execute(code, varValues);
+        }
+      }, budget, timeout, cancellation);
+    }
+    catch (EvaluationLimitException ele) {
+      throw ele;
     }
     catch (LispUndefinedFunctionException ufe) {
       System.err.println("ERROR: " + ufe.getMessage());
@@ -544,36 +628,45 @@ public class Lisp extends LispProcessor
 */
   
 	/**
-	 * Not sure why parseVarNames has such a complicated structure.
-	 * This one expects variables of the form ((A . 7) (B . 13) (C . (foo)))
-	 * the CAR of each pair is the variable and the CDR of each pair is the value.
+	 * The variables are of the form ((A . 7) (B . 13) (C . (foo))), one frame,
+	 * or a list of such frames (((A . 7) (B . 13)) ((C . (foo)))), innermost first.
+	 * The CAR of each pair is the variable and the CDR of each pair is the value.
+	 */
+	private LispValue varFrames(final LispValue vars)
+	{
+		if (vars == NIL || car(car(vars)) instanceof LispCons)
+			return vars;
+		return cons(vars, NIL);
+	}
+
+	/**
+	 * Returns the names of the variables, a list for every frame.
 	 */
 	private LispList parseVarNames_new(final LispValue vars)
 	{
-		if (vars == NIL)
-			return NIL;
-		
 		LispList outp = NIL;
-		// todo: for (LispValue v : vars.iterator())
-		for (final Iterator<LispValue> i = vars.iterator(); i.hasNext();)
-			outp = cons(car(i.next()), outp);
-		return (LispList)outp.nreverse(); // todo: change to recursive
+		for (final Iterator<LispValue> f = varFrames(vars).iterator(); f.hasNext();) {
+			LispList names = NIL;
+			for (final Iterator<LispValue> i = f.next().iterator(); i.hasNext();)
+				names = cons(car(i.next()), names);
+			outp = cons(names.nreverse(), outp);
+		}
+		return (LispList)outp.nreverse();
 	}
 
-
 	/**
-	 * Not sure why parseVarNames has such a complicated structure.
-	 * This one expects variables of the form ((A . 7) (B . 13) (C . (foo)))
-	 * the CAR of each pair is the variable and the CDR of each pair is the value.
+	 * Returns the values of the variables, a list for every frame;
+	 * the machine makes the environment frames of them.
 	 */
 	private LispList parseVarValues_new(final LispValue vars)
 	{
-		if (vars == NIL)
-			return NIL;
-		
 		LispList outp = NIL;
-		for (final Iterator<LispValue> i = vars.iterator(); i.hasNext();)
-			outp = cons(cdr(i.next()), outp);
+		for (final Iterator<LispValue> f = varFrames(vars).iterator(); f.hasNext();) {
+			LispList values = NIL;
+			for (final Iterator<LispValue> i = f.next().iterator(); i.hasNext();)
+				values = cons(cdr(i.next()), values);
+			outp = cons(values.nreverse(), outp);
+		}
 		return (LispList)outp.nreverse();
 	}
 
@@ -671,6 +764,17 @@ public class Lisp extends LispProcessor
     return PARSER;
   }
 
+  /**
+   * Selects the engine used by this instance of Jatha to run
+   * the compiled code (list code, bytecode or closure tree).
+   *
+   * @see org.jatha.machine.SECDMachine#setEngine(SECDMachine.Engine)
+   */
+  public void setEngine(SECDMachine.Engine engine)
+  {
+    MACHINE.setEngine(engine);
+  }
+
   /**
    * Returns the Symbol Table used by this instance of Jatha.
    */
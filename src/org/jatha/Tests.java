@@ -30,25 +30,54 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import org.jatha.compile.LispPrimitive1;
 import org.jatha.dynatype.LispValue;
 import org.jatha.dynatype.LispCons;
+import org.jatha.dynatype.LispSymbol;
+import org.jatha.exception.CompilerException;
+import org.jatha.exception.EvaluationLimitException;
+import org.jatha.exception.EvaluationLimitException.Limit;
+import org.jatha.machine.ExecutionListener;
+import org.jatha.machine.SECDMachine;
 import org.jatha.read.LispParser;
 import
 static org.jatha.dynatype.LispValue.*;
 
 public class Tests extends Object
 {
+	// run the tests with another engine ("java org.jatha.Tests -bytecode" or "-tree")
+	static SECDMachine.Engine engine = SECDMachine.Engine.LIST;
+	// compile the DEFUNs to the JVM classes ("-classes")
+	static boolean classes = false;
+
+	static Lisp newLisp()
+	{
+		Lisp lisp = new Lisp();
+		lisp.setEngine(engine);
+		lisp.getCompiler().CompileClasses(classes);
+		return lisp;
+	}
+
 	public static void main(String[] args)
 	{
 		final String TESTS = "tests";
+		for (String arg : args)
+			if (arg.equals("-bytecode"))
+				engine = SECDMachine.Engine.BYTECODE;
+			else if (arg.equals("-tree"))
+				engine = SECDMachine.Engine.TREE;
+			else if (arg.equals("-classes"))
+				classes = true;
+
 		// 1. Test the negatives
 		try {
 			System.out.print("Testing required predicates (using " + NIL + " script) ... ");
 			Reader resourceReader = new InputStreamReader(
 					Tests.class.getClassLoader().getResourceAsStream(TESTS + "/NIL")
 			);
-			Lisp lisp = new Lisp();
+			Lisp lisp = newLisp();
 			LispParser cli = new LispParser(lisp, resourceReader);
 			boolean errors = false;
 			while (true) {
@@ -86,7 +115,7 @@ public class Tests extends Object
 				System.out.print("Testing " + filename.getName() + " ... ");
 				List<String> errors = new ArrayList<String>();
 
-				Lisp lisp = new Lisp();// lisp.eval("(defun restart () `restart)"); // сигнал к перезагрузке интерпретатора
+				Lisp lisp = newLisp();// lisp.eval("(defun restart () `restart)"); // сигнал к перезагрузке интерпретатора
 				LispParser cli = new LispParser(lisp, resourceReader);
 				while (true) {
 					// System.io.printnl();
@@ -96,7 +125,7 @@ public class Tests extends Object
 							continue;
 						
 						if (s instanceof LispCons && s.toString().equals("(RESTART)")) {
-							lisp = new Lisp();
+							lisp = newLisp();
 							cli = new LispParser(lisp, resourceReader);
 							continue;
 						}
@@ -122,5 +151,179 @@ public class Tests extends Object
 				break;
 			}
 		}
+
+		// 3. Test the Java API
+		try {
+			System.out.print("Testing the limits ... ");
+			report(limits());
+			System.out.print("Testing the listener ... ");
+			report(listener());
+		} catch (Exception e) {
+			System.err.println("Tests.main: " + e.getMessage());
+		}
+	}
+
+	static void report(List<String> errors)
+	{
+		if (errors.size() > 0) {
+			System.out.println("FAILED!");
+			for (String error : errors)
+				System.out.println("    " + error);
+			System.out.println("!FAILED");
+		}
+		else
+			System.out.println("Ok");
+	}
+
+	// Evaluates the expression and returns the limit that stopped it,
+	// null if it ran to the end.
+	static Limit stopped(Lisp lisp, String expr, long budget, long timeout,
+	                     SECDMachine.Cancellation cancellation) throws EOFException
+	{
+		try {
+			lisp.eval(lisp.parse(expr), budget, timeout, TimeUnit.MILLISECONDS, cancellation);
+			return null;
+		} catch (EvaluationLimitException e) {
+			return e.getLimit();
+		}
+	}
+
+	static void expect(List<String> errors, String test, Limit expected, Limit limit)
+	{
+		if (limit != expected)
+			errors.add(test + " -> " + limit + ", expected " + expected);
+	}
+
+	// The budget, the deadline and the cancel() stop the evaluation, its
+	// macro expansion too, and unbind the specials.  The tree engine and
+	// the classes count the calls, so the loops call the functions.
+	static List<String> limits() throws Exception
+	{
+		List<String> errors = new ArrayList<String>();
+		final Lisp lisp = newLisp();
+		lisp.eval("(defun loopy (n) (loopy (+ n 1)))");
+		lisp.eval("(defun count-down (n) (if (= n 0) 'done (count-down (- n 1))))");
+		lisp.eval("(defmacro runaway () (loopy 0))");
+
+		expect(errors, "budget", Limit.BUDGET, stopped(lisp, "(loopy 0)", 100000, 0, null));
+		expect(errors, "deadline", Limit.DEADLINE, stopped(lisp, "(loopy 0)", 0, 100, null));
+		expect(errors, "within the budget", null, stopped(lisp, "(count-down 100)", 1000000, 0, null));
+		expect(errors, "macro expansion", Limit.BUDGET, stopped(lisp, "(runaway)", 100000, 0, null));
+
+		// the nested evaluation with the larger budget stays within the
+		// outer one, and the outer one is stopped after it
+		lisp.getCompiler().Register(new LispPrimitive1("NESTED-COUNT-DOWN") {
+			protected LispValue Execute(final LispValue n) throws CompilerException {
+				try {
+					return lisp.MACHINE.Execute(new SECDMachine.Evaluation() {
+						public LispValue run() throws CompilerException {
+							return lisp.MACHINE.invoke(lisp.intern("COUNT-DOWN"), n);
+						}
+					}, 1000000, 0, null);
+				} catch (EvaluationLimitException e) {
+					return NIL;
+				}
+			}
+		});
+		expect(errors, "within the nested budget", null,
+				stopped(lisp, "(nested-count-down 10)", 10000, 0, null));
+		expect(errors, "nested budget", Limit.BUDGET,
+				stopped(lisp, "(progn (nested-count-down 50000) (loopy 0))", 10000, 10000, null));
+
+		// cancel() from another thread, until the evaluation stops
+		Thread canceller = new Thread() {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(10);
+						lisp.cancel();
+					}
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		canceller.start();
+		try {
+			expect(errors, "cancel()", Limit.CANCELLED, stopped(lisp, "(loopy 0)", 0, 10000, null));
+		}
+		finally {
+			canceller.interrupt();
+			canceller.join();
+		}
+
+		// the cancel() while idle doesn't stop the next evaluation,
+		// the cancelled handle stops its evaluation before it starts
+		lisp.cancel();
+		expect(errors, "after the idle cancel()", null, stopped(lisp, "(count-down 10000)", 0, 0, null));
+		SECDMachine.Cancellation cancellation = new SECDMachine.Cancellation();
+		cancellation.cancel();
+		expect(errors, "cancelled handle", Limit.CANCELLED, stopped(lisp, "(loopy 0)", 0, 10000, cancellation));
+
+		// the specials bound by the stopped evaluation are unbound
+		LispSymbol special = lisp.intern("*SPECIAL*");
+		special.set_special(true);
+		special.setf_symbol_value(LispProcessor.integer(1));
+		lisp.eval("(defun bind-special (*special*) (loopy 0))");
+		expect(errors, "specials", Limit.BUDGET, stopped(lisp, "(bind-special 2)", 100000, 0, null));
+		if (special.get_specialCount() != 0 || !lisp.eval("(= *special* 1)").equals(T))
+			errors.add("*SPECIAL* -> " + lisp.eval("*special*") + " is still bound");
+		return errors;
+	}
+
+	// The listener receives the instructions, the calls, the returns and
+	// the errors of the machine, and the machine runs without it when it
+	// is detached.  The functions compiled to the JVM classes aren't
+	// reported, so the function is compiled to the list code.
+	static List<String> listener() throws Exception
+	{
+		List<String> errors = new ArrayList<String>();
+		Lisp lisp = newLisp();
+		lisp.getCompiler().CompileClasses(false);
+		lisp.eval("(defun listened (a b) (+ a b))");
+
+		final int[] instructions = { 0 };
+		final List<LispValue> calls = new ArrayList<LispValue>();
+		final List<LispValue> returns = new ArrayList<LispValue>();
+		final List<Exception> failures = new ArrayList<Exception>();
+		lisp.MACHINE.setListener(new ExecutionListener.Adapter() {
+			public void instruction(SECDMachine machine, LispValue opcode) {
+				instructions[0]++;
+			}
+			public void call(SECDMachine machine, LispValue code, LispValue args) {
+				calls.add(args);
+			}
+			public void ret(SECDMachine machine, LispValue value) {
+				returns.add(value);
+			}
+			public void error(SECDMachine machine, LispValue opcode, Exception error) {
+				failures.add(error);
+			}
+		});
+		if (!lisp.eval("(= (listened 1 2) 3)").equals(T))
+			errors.add("(LISTENED 1 2) with the listener");
+		if (instructions[0] == 0)
+			errors.add("no instructions");
+		if (calls.size() != 1 || !calls.get(0).toString().equals("(1 2)"))
+			errors.add("calls -> " + calls + ", expected [(1 2)]");
+		if (returns.size() != 1 || !returns.get(0).toString().equals("3"))
+			errors.add("returns -> " + returns + ", expected [3]");
+		// run by the machine, Lisp.eval would report the error
+		LispValue code = lisp.COMPILER.compile(lisp.MACHINE, lisp.parse("(car 5)"), NIL);
+		try {
+			lisp.MACHINE.Execute(code, NIL);
+			errors.add("(CAR 5) didn't fail");
+		} catch (RuntimeException e) {
+			if (failures.size() != 1 || failures.get(0) != e)
+				errors.add("errors -> " + failures + " for (CAR 5)");
+		}
+
+		// detached, the events stop and the code runs by the engine
+		lisp.MACHINE.setListener(null);
+		int seen = instructions[0];
+		if (!lisp.eval("(= (listened 2 3) 5)").equals(T))
+			errors.add("(LISTENED 2 3) without the listener");
+		if (instructions[0] != seen || calls.size() != 1 || returns.size() != 1)
+			errors.add("events after the listener is detached");
+		return errors;
 	}
 }
\ No newline at end of file
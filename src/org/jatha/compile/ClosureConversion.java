@@ -0,0 +1,389 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+package org.jatha.compile;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jatha.dynatype.LispCons;
+import org.jatha.dynatype.LispValue;
+import org.jatha.exception.CompilerException;
+import org.jatha.machine.SECDFrame;
+import org.jatha.machine.SECDMachine;
+
+/**
+ * The closure conversion.  LDF makes the closure of the whole
+ * environment, it keeps all the frames out of the LAMBDA alive and
+ * its variables are looked up through them.  The LAMBDA converted
+ * to the flat closure copies the variables it refers to (those of
+ * the LAMBDAs in it too) to the frame of its own, by LDFF.
+ * <p>
+ * The variable that is changed by SETQ and copied by a flat closure
+ * is kept in a box, the cons of its value: the frame that binds it
+ * boxes the value, the references read the CAR of the box and SETQ
+ * sets it, so the closures and the frame share the variable.
+ * </p>
+ * <p>
+ * The LAMBDA is converted if the tree knows all the references to
+ * the variables it copies: it refers to no frame out of the tree (but
+ * the ones the tree owns, the parameters of the DEFUN), and there is
+ * no form compiled out of the tree (an Opaque node) in the scope of
+ * the variables or in the LAMBDA.  The &amp;REST parameters aren't
+ * copied.  The other LAMBDAs are left to LDF.
+ * </p>
+ * @see SECDFrame.Captures
+ * @see SECDMachine#LDFF
+ */
+final class ClosureConversion extends IR.Pass
+{
+	// SETQ of the boxed variable
+	static final LispPrimitive SET_BOX = new LispPrimitive2("SET-BOX") {
+		@Override
+		protected LispValue Execute(LispValue box, LispValue value) {
+			return ((LispCons)box).setf_car(value);
+		}
+	};
+	// the reference to the boxed variable, compiled to CAR
+	static final LispPrimitive UNBOX = new LispPrimitive1("UNBOX") {
+		@Override
+		protected LispValue Execute(LispValue box) {
+			return ((LispCons)box).car();
+		}
+	};
+
+	private final LispCompiler f_compiler;
+
+	ClosureConversion(LispCompiler compiler)
+	{
+		super("CLOSURE-CONVERSION");
+		f_compiler = compiler;
+	}
+
+	// the frame of a LAMBDA or a LET of the tree, or one the tree owns
+	static final class Frame
+	{
+		// a form compiled out of the tree is in the scope of the frame
+		boolean opaque = false;
+		final Set<Integer> assigned = new HashSet<Integer>();
+		final Set<Integer> boxed = new HashSet<Integer>();
+	}
+
+	// the variable of the frame
+	static final class Variable
+	{
+		final Frame frame;
+		final int index;
+
+		Variable(Frame frame, int index)
+		{
+			this.frame = frame;
+			this.index = index;
+		}
+
+		public boolean equals(Object o)
+		{
+			return o instanceof Variable && ((Variable)o).frame == frame && ((Variable)o).index == index;
+		}
+
+		public int hashCode()
+		{
+			return System.identityHashCode(frame) * 31 + index;
+		}
+	}
+
+	// the LAMBDA, the position of its frame and its free variables,
+	// by the index in the captures
+	static final class Closure
+	{
+		final int position;
+		boolean flat = true;
+		final Map<Variable, Integer> free = new LinkedHashMap<Variable, Integer>();
+
+		Closure(int position)
+		{
+			this.position = position;
+		}
+	}
+
+	// the frames and the closures of the nodes
+	private final Map<IR.Node, Frame> f_frames = new IdentityHashMap<IR.Node, Frame>();
+	private final Map<IR.Node, Closure> f_closures = new IdentityHashMap<IR.Node, Closure>();
+
+	@Override
+	IR.Node visit(IR.Node node, boolean tail)
+	{
+		return node;
+	}
+
+	@Override
+	IR.Node apply(IR.Node root, boolean tail, int frames)
+	{
+		List<Frame> owned = new ArrayList<Frame>();
+		for (int i = 0; i < frames; i++)
+			owned.add(new Frame());
+		try {
+			analyze(root, new ArrayList<Frame>(owned), new ArrayList<Closure>());
+			if (f_closures.isEmpty())
+				return root;
+			for (Closure closure : f_closures.values())
+				if (closure.flat)
+					for (Variable variable : closure.free.keySet())
+						if (variable.frame.opaque)
+							closure.flat = false;
+			for (Closure closure : f_closures.values())
+				if (closure.flat)
+					for (Variable variable : closure.free.keySet())
+						if (variable.frame.assigned.contains(variable.index))
+							variable.frame.boxed.add(variable.index);
+
+			List<Frame> scope = new ArrayList<Frame>(owned);
+			root = convert(root, scope, null);
+			for (int i = 0; i < frames; i++)
+				root = box(owned.get(i), frames - 1 - i, root);
+			return root;
+		}
+		finally {
+			f_frames.clear();
+			f_closures.clear();
+		}
+	}
+
+	// Finds the frames, the variables they change and the free variables
+	// of the LAMBDAs.  The frames are the scope of the node, the innermost
+	// the last, the closures are the LAMBDAs the node is in.
+	private void analyze(IR.Node node, List<Frame> frames, List<Closure> closures)
+	{
+		if (node instanceof IR.LocalRef) {
+			IR.LocalRef ref = (IR.LocalRef)node;
+			refer((SECDFrame.Slot)ref.slot, ref.rest, false, frames, closures);
+		}
+		else if (node instanceof IR.Setq) {
+			IR.Setq setq = (IR.Setq)node;
+			if (setq.variable instanceof SECDFrame.Slot)
+				refer((SECDFrame.Slot)setq.variable, false, true, frames, closures);
+			analyze(setq.value, frames, closures);
+		}
+		else if (node instanceof IR.If) {
+			IR.If branch = (IR.If)node;
+			analyze(branch.test, frames, closures);
+			analyze(branch.then, frames, closures);
+			analyze(branch.otherwise, frames, closures);
+		}
+		else if (node instanceof IR.Seq)
+			analyze(((IR.Seq)node).forms, frames, closures);
+		else if (node instanceof IR.Let) {
+			IR.Let let = (IR.Let)node;
+			analyze(let.values, frames, closures);
+			Frame frame = new Frame();
+			f_frames.put(let, frame);
+			frames.add(frame);
+			analyze(let.body, frames, closures);
+			frames.remove(frames.size() - 1);
+		}
+		else if (node instanceof IR.Lambda) {
+			IR.Lambda lambda = (IR.Lambda)node;
+			Closure closure = new Closure(frames.size());
+			f_closures.put(lambda, closure);
+			Frame frame = new Frame();
+			f_frames.put(lambda, frame);
+			frames.add(frame);
+			closures.add(closure);
+			analyze(lambda.body, frames, closures);
+			closures.remove(closures.size() - 1);
+			frames.remove(frames.size() - 1);
+		}
+		else if (node instanceof IR.Block)
+			analyze(((IR.Block)node).body, frames, closures);
+		else if (node instanceof IR.PrimitiveCall)
+			analyze(((IR.PrimitiveCall)node).args, frames, closures);
+		else if (node instanceof IR.LocalCall) {
+			// the local function is defined out of the tree, the call
+			// needs the frames out to it
+			IR.LocalCall call = (IR.LocalCall)node;
+			int position = frames.size() - 1 - call.depth;
+			for (Closure closure : closures)
+				if (closure.position > position)
+					closure.flat = false;
+			analyze(call.args, frames, closures);
+		}
+		else if (node instanceof IR.Application) {
+			if (node instanceof IR.Call)
+				analyze(((IR.Call)node).function, frames, closures);
+			analyze(((IR.Application)node).args, frames, closures);
+		}
+		else if (node instanceof IR.Opaque) {
+			for (Frame frame : frames)
+				frame.opaque = true;
+			for (Closure closure : closures)
+				closure.flat = false;
+		}
+	}
+	private void analyze(IR.Node[] nodes, List<Frame> frames, List<Closure> closures)
+	{
+		for (IR.Node node : nodes)
+			analyze(node, frames, closures);
+	}
+
+	// the reference to the variable of the slot, from the closures
+	private static void refer(SECDFrame.Slot slot, boolean rest, boolean assigned,
+	                          List<Frame> frames, List<Closure> closures)
+	{
+		int position = frames.size() - 1 - slot.depth;
+		Frame frame = (position >= 0) ? frames.get(position) : null;
+		if (frame != null && assigned)
+			frame.assigned.add(slot.index);
+		for (Closure closure : closures)
+			if (closure.position > position) {
+				if (frame == null || rest)
+					closure.flat = false;
+				else {
+					Variable variable = new Variable(frame, slot.index);
+					if (!closure.free.containsKey(variable))
+						closure.free.put(variable, closure.free.size());
+				}
+			}
+	}
+
+	// Rewrites the references to the variables of the node: to the
+	// captures of the flat closure the node is in, and to the boxes.
+	private IR.Node convert(IR.Node node, List<Frame> frames, Closure flat)
+	{
+		if (node instanceof IR.LocalRef) {
+			IR.LocalRef ref = (IR.LocalRef)node;
+			SECDFrame.Slot slot = (SECDFrame.Slot)ref.slot;
+			IR.Node converted = new IR.LocalRef(slot(slot, frames, flat), ref.rest);
+			if (boxed(slot, frames))
+				return new IR.PrimitiveCall(UNBOX, SECDMachine.CAR, new IR.Node[] { converted });
+			return converted;
+		}
+		if (node instanceof IR.Setq) {
+			IR.Setq setq = (IR.Setq)node;
+			IR.Node value = convert(setq.value, frames, flat);
+			if (!(setq.variable instanceof SECDFrame.Slot))
+				return new IR.Setq(setq.variable, value);
+			SECDFrame.Slot slot = (SECDFrame.Slot)setq.variable;
+			LispValue variable = slot(slot, frames, flat);
+			if (boxed(slot, frames))
+				return new IR.PrimitiveCall(SET_BOX, null,
+						new IR.Node[] { new IR.LocalRef(variable, false), value });
+			return new IR.Setq(variable, value);
+		}
+		if (node instanceof IR.If) {
+			IR.If branch = (IR.If)node;
+			branch.test = convert(branch.test, frames, flat);
+			branch.then = convert(branch.then, frames, flat);
+			branch.otherwise = convert(branch.otherwise, frames, flat);
+		}
+		else if (node instanceof IR.Seq)
+			convert(((IR.Seq)node).forms, frames, flat);
+		else if (node instanceof IR.Let) {
+			IR.Let let = (IR.Let)node;
+			convert(let.values, frames, flat);
+			Frame frame = f_frames.get(let);
+			frames.add(frame);
+			let.body = box(frame, 0, convert(let.body, frames, flat));
+			frames.remove(frames.size() - 1);
+		}
+		else if (node instanceof IR.Lambda) {
+			IR.Lambda lambda = (IR.Lambda)node;
+			Closure closure = f_closures.get(lambda);
+			if (closure.flat) {
+				// the slots of the captures where the closure is made
+				SECDFrame.Slot[] slots = new SECDFrame.Slot[closure.free.size()];
+				for (Map.Entry<Variable, Integer> free : closure.free.entrySet()) {
+					int depth = frames.size() - 1 - indexOf(frames, free.getKey().frame);
+					slots[free.getValue()] = slot(new SECDFrame.Slot(depth, free.getKey().index), frames, flat);
+				}
+				lambda.captures = new SECDFrame.Captures(slots);
+				flat = closure;
+			}
+			Frame frame = f_frames.get(lambda);
+			frames.add(frame);
+			lambda.body = box(frame, 0, convert(lambda.body, frames, flat));
+			frames.remove(frames.size() - 1);
+		}
+		else if (node instanceof IR.Block)
+			((IR.Block)node).body = convert(((IR.Block)node).body, frames, flat);
+		else if (node instanceof IR.PrimitiveCall)
+			convert(((IR.PrimitiveCall)node).args, frames, flat);
+		else if (node instanceof IR.Application) {
+			if (node instanceof IR.Call)
+				((IR.Call)node).function = convert(((IR.Call)node).function, frames, flat);
+			convert(((IR.Application)node).args, frames, flat);
+		}
+		return node;
+	}
+	private void convert(IR.Node[] nodes, List<Frame> frames, Closure flat)
+	{
+		for (int i = 0; i < nodes.length; i++)
+			nodes[i] = convert(nodes[i], frames, flat);
+	}
+
+	// The slot of the variable in the flat closure the reference is in:
+	// its captures are in the frame out of the frame of its parameters.
+	private static SECDFrame.Slot slot(SECDFrame.Slot slot, List<Frame> frames, Closure flat)
+	{
+		int position = frames.size() - 1 - slot.depth;
+		if (flat == null || position >= flat.position)
+			return slot;
+		Integer index = flat.free.get(new Variable(frames.get(position), slot.index));
+		return new SECDFrame.Slot(frames.size() - flat.position, index.intValue());
+	}
+
+	private static boolean boxed(SECDFrame.Slot slot, List<Frame> frames)
+	{
+		int position = frames.size() - 1 - slot.depth;
+		return position >= 0 && frames.get(position).boxed.contains(slot.index);
+	}
+
+	private static int indexOf(List<Frame> frames, Frame frame)
+	{
+		for (int i = frames.size(); --i >= 0; )
+			if (frames.get(i) == frame)
+				return i;
+		throw new IllegalStateException("the frame is out of the scope");
+	}
+
+	// the body that boxes the variables of the frame, the depth frames out
+	private IR.Node box(Frame frame, int depth, IR.Node body)
+	{
+		if (frame.boxed.isEmpty())
+			return body;
+		IR.Node[] forms = new IR.Node[frame.boxed.size() + 1];
+		int i = 0;
+		for (int index : frame.boxed) {
+			SECDFrame.Slot slot = new SECDFrame.Slot(depth, index);
+			forms[i++] = new IR.Setq(slot, new IR.PrimitiveCall(f_compiler.CONS, SECDMachine.CONS,
+					new IR.Node[] { new IR.LocalRef(slot, false), new IR.Constant(LispValue.NIL) }));
+		}
+		forms[i] = body;
+		return new IR.Seq(forms);
+	}
+}
@@ -0,0 +1,754 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+package org.jatha.compile;
+
+import java.io.PrintStream;
+
+import org.jatha.dynatype.*;
+import org.jatha.exception.CompilerException;
+import org.jatha.machine.SECDFrame;
+import org.jatha.machine.SECDMachine;
+
+import static org.jatha.dynatype.LispValue.*;
+import static org.jatha.machine.SECDMachine.*;
+
+/**
+ * The intermediate representation of the compiler.  A form is read into
+ * the tree of the nodes: the macros are expanded, the variables are
+ * resolved to the slots of the frames or to the global symbols, and the
+ * calls are told apart - the primitives, the global functions, the local
+ * functions of FLET and LABELS and the computed functions.  The forms the
+ * tree doesn't know (CATCH, FLET, DEFUN and so on) are kept as Opaque
+ * nodes and compiled as before; their parts become the trees of their own.
+ * <p>
+ * The passes of the PassManager rewrite the tree, then each node
+ * generates its SECD code.  The node is a LispValue, so the compiler
+ * routines for the special forms generate the code of the nodes as
+ * they compile the forms.
+ * </p>
+ * @see PassManager
+ * @see LispCompiler#compile(LispValue, LispList, LispCons)
+ */
+final class IR
+{
+	private IR() {}
+
+	/**
+	 * The node of the tree.
+	 */
+	abstract static class Node extends StandardLispValue
+	{
+		/**
+		 * Runs the pass over the children of the node, then over the node.
+		 * The tail is true if the node is in the tail position.
+		 */
+		abstract Node run(Pass pass, boolean tail) throws CompilerException;
+
+		/**
+		 * The code of the node in front of the code.
+		 */
+		abstract LispCons generate(LispCompiler compiler, LispCons code) throws CompilerException;
+
+		/**
+		 * The copy of the tree of the node, the passes may change it.
+		 * The leaves are shared.
+		 */
+		abstract Node duplicate();
+
+		/**
+		 * True if the value of the node may be dropped with the node:
+		 * it has no effect and can't fail.
+		 */
+		boolean pure()
+		{
+			return false;
+		}
+
+		public void internal_princ(PrintStream os) { os.print(toString()); }
+		public void internal_prin1(PrintStream os) { os.print(toString()); }
+	}
+
+	/**
+	 * The pass over the tree, it visits the nodes bottom up.
+	 */
+	abstract static class Pass
+	{
+		final String name;
+
+		Pass(String name)
+		{
+			this.name = name;
+		}
+
+		/**
+		 * The tail marking is run when the optimizations are off.
+		 */
+		boolean required()
+		{
+			return false;
+		}
+
+		/**
+		 * Returns the node, or the node that replaces it.  The children
+		 * of the node are visited already.
+		 */
+		abstract Node visit(Node node, boolean tail) throws CompilerException;
+
+		/**
+		 * Runs the pass over the tree.  The frames are the innermost
+		 * frames of the valueList of the root that no code out of the
+		 * tree refers to, the parameters of the DEFUN.
+		 */
+		Node apply(Node root, boolean tail, int frames) throws CompilerException
+		{
+			return root.run(this, tail);
+		}
+
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	// runs the pass over the nodes
+	static void run(Node[] nodes, Pass pass, boolean tail) throws CompilerException
+	{
+		for (int i = 0; i < nodes.length; i++)
+			nodes[i] = nodes[i].run(pass, tail);
+	}
+
+	// the code of the nodes, to evaluate them left to right
+	static LispCons generate(Node[] nodes, LispCompiler compiler, LispCons code) throws CompilerException
+	{
+		for (int i = nodes.length; --i >= 0; )
+			code = nodes[i].generate(compiler, code);
+		return code;
+	}
+
+	static Node[] duplicate(Node[] nodes)
+	{
+		Node[] copy = new Node[nodes.length];
+		for (int i = 0; i < nodes.length; i++)
+			copy[i] = nodes[i].duplicate();
+		return copy;
+	}
+
+	static String toString(String head, Node[] nodes)
+	{
+		StringBuilder sb = new StringBuilder("(").append(head);
+		for (Node node : nodes)
+			sb.append(' ').append(node);
+		return sb.append(')').toString();
+	}
+
+	/**
+	 * The constant: the quoted form or the self-evaluating atom.
+	 */
+	static final class Constant extends Node
+	{
+		final LispValue value;
+
+		Constant(LispValue value)
+		{
+			this.value = value;
+		}
+
+		Node run(Pass pass, boolean tail) throws CompilerException
+		{
+			return pass.visit(this, tail);
+		}
+
+		Node duplicate()
+		{
+			return this;
+		}
+
+		LispCons generate(LispCompiler compiler, LispCons code)
+		{
+			if (value == T)
+				return cons(LDT, code);
+			if (value == NIL)
+				return cons(LDNIL, code);
+			return cons(LDC, cons(value, code));
+		}
+
+		boolean pure()
+		{
+			return true;
+		}
+
+		public String toString()
+		{
+			return "'" + value;
+		}
+	}
+
+	/**
+	 * The local variable, by the slot of its frame.
+	 */
+	static final class LocalRef extends Node
+	{
+		final LispValue slot;
+		final boolean rest;
+
+		LocalRef(LispValue slot, boolean rest)
+		{
+			this.slot = slot;
+			this.rest = rest;
+		}
+
+		Node run(Pass pass, boolean tail) throws CompilerException
+		{
+			return pass.visit(this, tail);
+		}
+
+		Node duplicate()
+		{
+			return this;
+		}
+
+		LispCons generate(LispCompiler compiler, LispCons code)
+		{
+			return cons(rest ? LDR : LD, cons(slot, code));
+		}
+
+		boolean pure()
+		{
+			return true;
+		}
+
+		public String toString()
+		{
+			return "#<local " + slot + ">";
+		}
+	}
+
+	/**
+	 * The global or the special variable.
+	 */
+	static final class GlobalRef extends Node
+	{
+		final LispValue symbol;
+
+		GlobalRef(LispValue symbol)
+		{
+			this.symbol = symbol;
+		}
+
+		Node run(Pass pass, boolean tail) throws CompilerException
+		{
+			return pass.visit(this, tail);
+		}
+
+		Node duplicate()
+		{
+			return this;
+		}
+
+		LispCons generate(LispCompiler compiler, LispCons code)
+		{
+			return cons(LD_GLOBAL, cons(symbol, code));
+		}
+
+		public String toString()
+		{
+			return symbol.toString();
+		}
+	}
+
+	/**
+	 * SETQ of the local variable (the slot) or of the global one (the symbol).
+	 */
+	static final class Setq extends Node
+	{
+		final LispValue variable;
+		Node value;
+
+		Setq(LispValue variable, Node value)
+		{
+			this.variable = variable;
+			this.value = value;
+		}
+
+		Node run(Pass pass, boolean tail) throws CompilerException
+		{
+			value = value.run(pass, false);
+			return pass.visit(this, tail);
+		}
+
+		Node duplicate()
+		{
+			return new Setq(variable, value.duplicate());
+		}
+
+		LispCons generate(LispCompiler compiler, LispCons code) throws CompilerException
+		{
+			return cons(LDC, cons(variable, value.generate(compiler, cons(ST, code))));
+		}
+
+		public String toString()
+		{
+			return "(setq " + variable + " " + value + ")";
+		}
+	}
+
+	/**
+	 * IF, the branches are in the position of the IF.
+	 */
+	static final class If extends Node
+	{
+		Node test;
+		Node then;
+		Node otherwise;
+
+		If(Node test, Node then, Node otherwise)
+		{
+			this.test = test;
+			this.then = then;
+			this.otherwise = otherwise;
+		}
+
+		Node run(Pass pass, boolean tail) throws CompilerException
+		{
+			test = test.run(pass, false);
+			then = then.run(pass, tail);
+			otherwise = otherwise.run(pass, tail);
+			return pass.visit(this, tail);
+		}
+
+		Node duplicate()
+		{
+			return new If(test.duplicate(), then.duplicate(), otherwise.duplicate());
+		}
+
+		LispCons generate(LispCompiler compiler, LispCons code) throws CompilerException
+		{
+			return compiler.compileIf(compiler.getLisp().MACHINE, test, then, otherwise, NIL, code);
+		}
+
+		public String toString()
+		{
+			return "(if " + test + " " + then + " " + otherwise + ")";
+		}
+	}
+
+	/**
+	 * PROGN of two or more forms, the values but the last one are dropped.
+	 */
+	static final class Seq extends Node
+	{
+		Node[] forms;
+
+		Seq(Node[] forms)
+		{
+			this.forms = forms;
+		}
+
+		Node run(Pass pass, boolean tail) throws CompilerException
+		{
+			int last = forms.length - 1;
+			for (int i = 0; i < last; i++)
+				forms[i] = forms[i].run(pass, false);
+			forms[last] = forms[last].run(pass, tail);
+			return pass.visit(this, tail);
+		}
+
+		Node duplicate()
+		{
+			return new Seq(IR.duplicate(forms));
+		}
+
+		LispCons generate(LispCompiler compiler, LispCons code) throws CompilerException
+		{
+			int last = forms.length - 1;
+			code = forms[last].generate(compiler, code);
+			for (int i = last; --i >= 0; )
+				code = forms[i].generate(compiler, cons(POP, code));
+			return code;
+		}
+
+		public String toString()
+		{
+			return IR.toString("progn", forms);
+		}
+	}
+
+	/**
+	 * LET: the values of the variables, in the order of the variables,
+	 * and the body, resolved in the frame of the local variables.  The
+	 * body is in the tail position if there are no special variables
+	 * to unbind after it.
+	 */
+	static final class Let extends Node
+	{
+		final LispValue vars;
+		final boolean specials;
+		Node[] values;
+		Node body;
+
+		Let(LispValue vars, boolean specials, Node[] values, Node body)
+		{
+			this.vars = vars;
+			this.specials = specials;
+			this.values = values;
+			this.body = body;
+		}
+
+		Node run(Pass pass, boolean tail) throws CompilerException
+		{
+			IR.run(values, pass, false);
+			body = body.run(pass, tail && !specials);
+			return pass.visit(this, tail);
+		}
+
+		Node duplicate()
+		{
+			return new Let(vars, specials, IR.duplicate(values), body.duplicate());
+		}
+
+		LispCons generate(LispCompiler compiler, LispCons code) throws CompilerException
+		{
+			return compiler.compileLet(compiler.getLisp().MACHINE, (LispList)vars,
+					list(values), NIL, body, code);
+		}
+
+		public String toString()
+		{
+			return "(let " + vars + " " + IR.toString("values", values) + " " + body + ")";
+		}
+	}
+
+	/**
+	 * BLOCK, compiled with the escape record if the body may return
+	 * from it.  The body of the block without the escape record is in
+	 * the position of the block, the UNESC follows the other one.
+	 */
+	static final class Block extends Node
+	{
+		final LispValue name;
+		final boolean returned;   // a RETURN-FROM of it may be in the body
+		Node body;
+
+		Block(LispValue name, boolean returned, Node body)
+		{
+			this.name = name;
+			this.returned = returned;
+			this.body = body;
+		}
+
+		Node run(Pass pass, boolean tail) throws CompilerException
+		{
+			body = body.run(pass, tail && !returned);
+			return pass.visit(this, tail);
+		}
+
+		Node duplicate()
+		{
+			return new Block(name, returned, body.duplicate());
+		}
+
+		LispCons generate(LispCompiler compiler, LispCons code) throws CompilerException
+		{
+			return compiler.compileBlock(name, returned, body, NIL, code);
+		}
+
+		public String toString()
+		{
+			return "(block " + name + (returned ? " returned " : " ") + body + ")";
+		}
+	}
+
+	/**
+	 * LAMBDA, the body is resolved in the frame of the parameters.  The
+	 * flat closure has the captures, the variables it copies, and its
+	 * body refers to them in the frame out of the parameters.
+	 * @see ClosureConversion
+	 */
+	static final class Lambda extends Node
+	{
+		final LispValue parameters;
+		Node body;
+		SECDFrame.Captures captures = null;
+
+		Lambda(LispValue parameters, Node body)
+		{
+			this.parameters = parameters;
+			this.body = body;
+		}
+
+		Node run(Pass pass, boolean tail) throws CompilerException
+		{
+			body = body.run(pass, true);
+			return pass.visit(this, tail);
+		}
+
+		Node duplicate()
+		{
+			Lambda lambda = new Lambda(parameters, body.duplicate());
+			lambda.captures = captures;
+			return lambda;
+		}
+
+		LispCons generate(LispCompiler compiler, LispCons code) throws CompilerException
+		{
+			if (captures != null)
+				return cons(LDFF, cons(body.generate(compiler, cons(RTN, NIL)), cons(captures, code)));
+			return compiler.compileLambda(compiler.getLisp().MACHINE, body, NIL, code);
+		}
+
+		boolean pure()
+		{
+			return true;
+		}
+
+		public String toString()
+		{
+			return "(lambda " + parameters + (captures != null ? " " + captures : "") + " " + body + ")";
+		}
+	}
+
+	/**
+	 * The call of the primitive with the evaluated arguments, compiled by
+	 * the primitive, or to the instruction of the intrinsic primitive.
+	 */
+	static final class PrimitiveCall extends Node
+	{
+		final LispPrimitive primitive;
+		final SECDMachine.Intrinsic intrinsic;
+		Node[] args;
+
+		PrimitiveCall(LispPrimitive primitive, SECDMachine.Intrinsic intrinsic, Node[] args)
+		{
+			this.primitive = primitive;
+			this.intrinsic = intrinsic;
+			this.args = args;
+		}
+
+		Node run(Pass pass, boolean tail) throws CompilerException
+		{
+			IR.run(args, pass, false);
+			return pass.visit(this, tail);
+		}
+
+		Node duplicate()
+		{
+			return new PrimitiveCall(primitive, intrinsic, IR.duplicate(args));
+		}
+
+		LispCons generate(LispCompiler compiler, LispCons code) throws CompilerException
+		{
+			if (intrinsic != null)
+				return IR.generate(args, compiler, cons(intrinsic, code));
+			return primitive.CompileArgs(compiler, compiler.getLisp().MACHINE, primitive,
+					list(args), NIL, code);
+		}
+
+		public String toString()
+		{
+			return IR.toString(primitive.LispFunctionNameString(), args);
+		}
+	}
+
+	/**
+	 * The call of a function, the tail pass marks the calls in the tail
+	 * position.  The arguments are passed on the stack, or in the list
+	 * if there are more than MAX_STACK_ARGUMENTS of them.
+	 */
+	abstract static class Application extends Node
+	{
+		Node[] args;
+		boolean tail = false;
+
+		Application(Node[] args)
+		{
+			this.args = args;
+		}
+
+		// the call instruction, it replaces the RTN of the tail call
+		LispCons apply(LispCons code)
+		{
+			assert !tail || car(code) == RTN : "tail call before " + code;
+			return cons(SECDMachine.apply(args.length, tail), tail ? cdr(code) : code);
+		}
+
+		LispCons arguments(LispCompiler compiler, LispCons code) throws CompilerException
+		{
+			if (args.length <= MAX_STACK_ARGUMENTS)
+				return IR.generate(args, compiler, code);
+			return compiler.compileApp(compiler.getLisp().MACHINE, list(args), NIL, code);
+		}
+	}
+
+	/**
+	 * The call of the global function by its symbol, the call sees the
+	 * redefinitions of the function.
+	 */
+	static final class GlobalCall extends Application
+	{
+		final LispValue symbol;
+
+		GlobalCall(LispValue symbol, Node[] args)
+		{
+			super(args);
+			this.symbol = symbol;
+		}
+
+		Node run(Pass pass, boolean tail) throws CompilerException
+		{
+			IR.run(args, pass, false);
+			return pass.visit(this, tail);
+		}
+
+		Node duplicate()
+		{
+			return new GlobalCall(symbol, IR.duplicate(args));
+		}
+
+		LispCons generate(LispCompiler compiler, LispCons code) throws CompilerException
+		{
+			return arguments(compiler, cons(LDFC, cons(symbol, apply(code))));
+		}
+
+		public String toString()
+		{
+			return IR.toString((tail ? "tail " : "") + symbol, args);
+		}
+	}
+
+	/**
+	 * The call of the function that is the value of the node.
+	 */
+	static final class Call extends Application
+	{
+		Node function;
+
+		Call(Node function, Node[] args)
+		{
+			super(args);
+			this.function = function;
+		}
+
+		Node run(Pass pass, boolean tail) throws CompilerException
+		{
+			IR.run(args, pass, false);
+			function = function.run(pass, false);
+			return pass.visit(this, tail);
+		}
+
+		Node duplicate()
+		{
+			return new Call(function.duplicate(), IR.duplicate(args));
+		}
+
+		LispCons generate(LispCompiler compiler, LispCons code) throws CompilerException
+		{
+			return arguments(compiler, function.generate(compiler, apply(code)));
+		}
+
+		public String toString()
+		{
+			return IR.toString((tail ? "tail funcall " : "funcall ") + function, args);
+		}
+	}
+
+	/**
+	 * The call of the local function of FLET or LABELS, defined the
+	 * depth of the frames out.  The arguments are always on the stack.
+	 */
+	static final class LocalCall extends Application
+	{
+		final LispCompiler.LocalFunction function;
+		final int depth;
+
+		LocalCall(LispCompiler.LocalFunction function, int depth, Node[] args)
+		{
+			super(args);
+			this.function = function;
+			this.depth = depth;
+		}
+
+		Node run(Pass pass, boolean tail) throws CompilerException
+		{
+			IR.run(args, pass, false);
+			return pass.visit(this, tail);
+		}
+
+		Node duplicate()
+		{
+			return new LocalCall(function, depth, IR.duplicate(args));
+		}
+
+		LispCons generate(LispCompiler compiler, LispCons code) throws CompilerException
+		{
+			assert !tail || car(code) == RTN : "tail call before " + code;
+			return IR.generate(args, compiler,
+					cons(tail ? DAPL : APL,
+					     cons(function.local,
+					          cons(integer(depth),
+					               cons(integer(args.length), tail ? cdr(code) : code)))));
+		}
+
+		public String toString()
+		{
+			return IR.toString((tail ? "tail " : "") + function.local, args);
+		}
+	}
+
+	/**
+	 * The form the tree doesn't know, compiled by the compiler in the
+	 * valueList it was met in.
+	 */
+	static final class Opaque extends Node
+	{
+		final LispValue form;
+		final LispList valueList;
+
+		Opaque(LispValue form, LispList valueList)
+		{
+			this.form = form;
+			this.valueList = valueList;
+		}
+
+		Node run(Pass pass, boolean tail) throws CompilerException
+		{
+			return pass.visit(this, tail);
+		}
+
+		Node duplicate()
+		{
+			return this;
+		}
+
+		LispCons generate(LispCompiler compiler, LispCons code) throws CompilerException
+		{
+			return compiler.compileForm(form, valueList, code);
+		}
+
+		public String toString()
+		{
+			return "#<form " + form + ">";
+		}
+	}
+}
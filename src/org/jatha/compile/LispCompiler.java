@@ -28,13 +28,15 @@ import java.io.EOFException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.Stack;
 import java.util.Map;
 import java.util.List;
-import java.util.TreeMap;
 
 import org.jatha.Lisp;
 import org.jatha.LispProcessor;
@@ -86,6 +88,8 @@ public class LispCompiler extends LispProcessor
 	LispValue SET;
 	LispValue LETREC;
 	LispValue OR;
+	LispValue FUNCTION;
+	LispValue RETURN_FROM;
 
 	static final LispSymbol AMP_REST = symbol("&REST");   // keyword &rest used in parameters list
 	LispValue DUMMY_FUNCTION; // used for recursive definions
@@ -95,14 +99,28 @@ public class LispCompiler extends LispProcessor
 	LispPrimitive LIST;
 	LispPrimitive SETQ; // special for SET ' (does not evaluates first argument)
 
+	// The special operators, by the identity of the symbols: the compiler
+	// looks up the head of every list form it compiles.
 	Map<LispValue, Compiler> SpecialOperators = null;
 	interface Compiler {
 		public LispCons compile(SECDMachine machine, LispList args, LispList valueList, LispCons code)
 				throws CompilerException;
 	}
+	// The special operators that are read into the intermediate
+	// representation, the others are kept there as the forms.
+	private Map<LispValue, Builder> f_builders = null;
+	interface Builder {
+		public IR.Node build(LispList args, LispList valueList)
+				throws CompilerException;
+	}
+	// the passes over the intermediate representation
+	private final PassManager f_passes = new PassManager();
   
 
 	boolean WarnAboutSpecialsP = false;    // todo: Need some way to turn this on.
+	boolean CompileClassesP = false;
+	boolean PeepholeP = true;
+	boolean OptimizeP = true;
 	private Lisp f_lisp = null;
 	public Lisp getLisp() { return f_lisp; }
   
@@ -112,8 +130,15 @@ public class LispCompiler extends LispProcessor
 	private void initializeConstants()
 	{
 		f_lisp.intern("&REST", AMP_REST);
+		// the symbols made before the reader, the forms must read the same ones
+		f_lisp.intern("QUOTE", QUOTE);
+		f_lisp.intern("PROGN", PROGN);
+		f_lisp.intern("DEFUN", DEFUN);
+		f_lisp.intern("BLOCK", BLOCK);
+		FUNCTION = f_lisp.intern("FUNCTION");
+		RETURN_FROM = f_lisp.intern("RETURN-FROM");
     
-		SpecialOperators = new TreeMap<LispValue, Compiler>() {{
+		SpecialOperators = new IdentityHashMap<LispValue, Compiler>() {{
 			put(QUOTE, new Compiler() {
 					@Override
 					public LispCons compile(SECDMachine machine, LispList args, LispList valueList, LispCons code) throws CompilerException {
@@ -139,6 +164,19 @@ public class LispCompiler extends LispProcessor
 					}
 				});
 
+			put(f_lisp.intern("CATCH"), new Compiler() {
+					@Override
+					public LispCons compile(SECDMachine machine, LispList args, LispList valueList, LispCons code) throws CompilerException {
+						return compileCatch(args, valueList, code);
+					}
+				});
+			put(f_lisp.intern("THROW"), new Compiler() {
+					@Override
+					public LispCons compile(SECDMachine machine, LispList args, LispList valueList, LispCons code) throws CompilerException {
+						return compileThrow(args, valueList, code);
+					}
+				});
+
 			put(LET = f_lisp.intern("LET"), new Compiler() {
 				@Override
 				public LispCons compile(SECDMachine machine, LispList args, LispList valueList, LispCons code) throws CompilerException {
@@ -190,6 +228,18 @@ public class LispCompiler extends LispProcessor
 		                           valueList, code);
 					}
 				});
+			put(f_lisp.intern("FLET"), new Compiler() {
+					@Override
+					public LispCons compile(SECDMachine machine, LispList args, LispList valueList, LispCons code) throws CompilerException {
+						return compileLocalFunctions((LispList)car(args), cdr(args), false, valueList, code);
+					}
+				});
+			put(f_lisp.intern("LABELS"), new Compiler() {
+					@Override
+					public LispCons compile(SECDMachine machine, LispList args, LispList valueList, LispCons code) throws CompilerException {
+						return compileLocalFunctions((LispList)car(args), cdr(args), true, valueList, code);
+					}
+				});
 			put(LETREC = f_lisp.intern("LETREC"), new Compiler() {
 					@Override
 					public LispCons compile(SECDMachine machine, LispList args, LispList valueList, LispCons code) throws CompilerException {
@@ -207,6 +257,71 @@ public class LispCompiler extends LispProcessor
 				});
 		}};
 
+		f_builders = new IdentityHashMap<LispValue, Builder>() {{
+			put(QUOTE, new Builder() {
+					@Override
+					public IR.Node build(LispList args, LispList valueList) throws CompilerException {
+						// the quoted name of a local variable is its slot, for SET
+						LispValue f = car(args);
+						if (f instanceof LispSymbol && indexAndAttribute(f, valueList).second() != NIL)
+							return new IR.Opaque(cons(QUOTE, args), valueList);
+						return new IR.Constant(f);
+					}
+				});
+			put(PROGN, new Builder() {
+					@Override
+					public IR.Node build(LispList args, LispList valueList) throws CompilerException {
+						return buildProgn(args, valueList);
+					}
+				});
+			put(IF, new Builder() {
+					@Override
+					public IR.Node build(LispList args, LispList valueList) throws CompilerException {
+						return new IR.If(LispCompiler.this.build(args.first(), valueList),
+						                 LispCompiler.this.build(args.second(), valueList),
+						                 LispCompiler.this.build(args.third(), valueList));
+					}
+				});
+			put(AND, new Builder() {
+					@Override
+					public IR.Node build(LispList args, LispList valueList) throws CompilerException {
+						return LispCompiler.this.build(andForm(args), valueList);
+					}
+				});
+			put(OR, new Builder() {
+					@Override
+					public IR.Node build(LispList args, LispList valueList) throws CompilerException {
+						return LispCompiler.this.build(orForm(args), valueList);
+					}
+				});
+			put(LET, new Builder() {
+					@Override
+					public IR.Node build(LispList args, LispList valueList) throws CompilerException {
+						return buildLet((LispList)car(args), cdr(args), valueList);
+					}
+				});
+			put(LAMBDA, new Builder() {
+					@Override
+					public IR.Node build(LispList args, LispList valueList) throws CompilerException {
+						return new IR.Lambda(car(args),
+								buildProgn(cdr(args), cons(car(args), valueList)));
+					}
+				});
+			put(BLOCK, new Builder() {
+					@Override
+					public IR.Node build(LispList args, LispList valueList) throws CompilerException {
+						return new IR.Block(car(args), returnsFrom(car(args), cdr(args)),
+						                    buildProgn(cdr(args), valueList));
+					}
+				});
+		}};
+
+		f_passes.add(PassManager.inlining(this));
+		f_passes.add(PassManager.constantFolding(this));
+		f_passes.add(PassManager.DEAD_CODE);
+		f_passes.add(new ClosureConversion(this));
+		f_passes.add(PassManager.TAIL_POSITIONS);
+
 		// should be used only to test type. basic_macrop() retutns true for DUMMY_MACRO and false for DUMMY_FUNCTION
 		// this is NOT builtin function and macro
 		DUMMY_FUNCTION = new StandardLispFunction(null, cons(T, NIL));
@@ -402,7 +517,7 @@ public class LispCompiler extends LispProcessor
 			public LispValue Execute(LispValue a, LispValue b) {
 				return cons(a, b);
 			}
-		});
+		}, SECDMachine.CONS);
 		Register(LIST = new LispPrimitiveC("LIST", 0) {
 			@Override
 			public LispCons CompileArgs(LispCompiler compiler, SECDMachine machine, LispValue function,
@@ -411,9 +526,10 @@ public class LispCompiler extends LispProcessor
 			{
 				return CompileArgs(compiler, machine, args, valueList, code);
 			}
+			// called by FUNCALL, MAPCAR, ...: the list of the arguments is new
 			@Override
 			protected LispValue Execute(LispList arg) throws CompilerException {
-				throw new LispAssertionException(LispFunctionNameString() + " was compiled - shouldn't have been.");
+				return arg;
 			}
 			
 		});
@@ -434,6 +550,10 @@ public class LispCompiler extends LispProcessor
 				                 compiler.compile(args.second(), valueList, cons(ST, code))));
 			}
 			@Override
+			public boolean evaluatesArguments() {
+				return false;
+			}
+			@Override
 			protected LispValue Execute(LispValue arg1, LispValue arg2)
 					throws CompilerException {
 				throw new LispAssertionException(LispFunctionNameString() + " was compiled - shouldn't have been.");
@@ -441,6 +561,54 @@ public class LispCompiler extends LispProcessor
 		});
 		
 		
+		// (DEFCONSTANT name value [documentation])
+		Register(new LispPrimitiveC("DEFCONSTANT", 2, 3) {
+			// the name is not evaluated
+			@Override
+			public LispCons CompileArgs(LispCompiler compiler, SECDMachine machine, LispValue function,
+							LispList args, LispList valueList, LispCons code)
+					throws CompilerException
+			{
+				return super.CompileArgs(compiler, machine, function,
+						cons(list(QUOTE, car(args)), cdr(args)), valueList, code);
+			}
+			@Override
+			public boolean evaluatesArguments() {
+				return false;
+			}
+			@Override
+			protected LispValue Execute(LispList args) {
+				return defineConstant(car(args), car(cdr(args)));
+			}
+		});
+
+		// (DECLAIM declaration*), INLINE and NOTINLINE are known
+		Register(new LispPrimitiveC("DECLAIM", 0) {
+			// the declarations are not evaluated
+			@Override
+			public LispCons CompileArgs(LispCompiler compiler, SECDMachine machine, LispValue function,
+							LispList args, LispList valueList, LispCons code)
+					throws CompilerException
+			{
+				LispValue quoted = NIL;
+				for (LispValue p = args; p != NIL; p = cdr(p))
+					quoted = cons(list(QUOTE, car(p)), quoted);
+				return super.CompileArgs(compiler, machine, function,
+						(LispList)quoted.nreverse(), valueList, code);
+			}
+			@Override
+			public boolean evaluatesArguments() {
+				return false;
+			}
+			@Override
+			protected LispValue Execute(LispList args) {
+				for (LispValue p = args; p != NIL; p = cdr(p))
+					declaim(car(p));
+				return T;
+			}
+		});
+
+
 /*		Register(new LispPrimitive2("SET") {
 			@Override
 			protected LispValue Execute(LispValue arg1, LispValue arg2)
@@ -505,7 +673,7 @@ public class LispCompiler extends LispProcessor
 					return a.eq(b);
 				return NIL;
 			}
-		});
+		}, SECDMachine.EQ);
 		Register(new LispPrimitive2("EQL") {
 			public LispValue Execute(LispValue a, LispValue b) {
 				return a.eql(b);
@@ -516,7 +684,7 @@ public class LispCompiler extends LispProcessor
 			protected LispValue Execute(LispValue arg) {
 				return arg == NIL ? T : NIL;
 			}
-		});
+		}, SECDMachine.NOT);
 
 		require("FUNCTION");
 
@@ -559,12 +727,12 @@ public class LispCompiler extends LispProcessor
 			protected LispValue Execute(LispValue arg) {
 				return BOOL(is_atom(arg));
 			}
-		});
+		}, SECDMachine.ATOMP);
 		Register(new LispPrimitive1("NULL?") {
 			protected LispValue Execute(LispValue arg) {
 				return BOOL(is_null(arg));
 			}
-		});
+		}, SECDMachine.NULLP);
 		Register(new LispPrimitive1("CONS?") {
 			protected LispValue Execute(LispValue a) {
 				return (a instanceof LispCons) ? T : NIL;
@@ -599,109 +767,56 @@ public class LispCompiler extends LispProcessor
 		require("SETF");
 		
 		Register(new LispPrimitive1("MACROEXPAND") {
-			protected LispValue Execute(LispValue form) {
-		        LispValue now = expand(form);
-		        LispValue lastOne = form;
-		        while(now != lastOne && now instanceof LispCons && !(now == NIL)) {
-		            lastOne = now;
-		            now = expand(now);
-		        }
+			protected LispValue Execute(LispValue form) throws CompilerException {
+				LispValue now = expand1(form);
+				LispValue lastOne = form;
+				while (now != lastOne && now instanceof LispCons) {
+					lastOne = now;
+					now = expand1(now);
+				}
 				return now;
 			}
-		    private LispValue expand(final LispValue form) {
-		        final LispValue carForm = car(form); // todo: check for LispSymbol
-		        if (carForm.fboundp() && carForm.symbol_function() instanceof LispMacro) {
-		            return f_lisp.eval(f_lisp.makeCons(f_lisp.intern("%%%" + ((LispSymbol)carForm).symbol_name().toStringSimple()), quoteList(cdr(form))));
-		        } else {
-		            return form;
-		        }
-		    }
-
-		    private LispValue quoteList(final LispValue intern) {
-		        LispValue ret = NIL;
-		        for(final Iterator<LispValue> iter = intern.iterator(); iter.hasNext();) {
-		            final LispValue curr = (LispValue)iter.next();
-		            ret = cons(list(QUOTE, curr), ret);
-		        }
-		        return ret.nreverse();
-		    }
-			
 		});
 		Register(new LispPrimitive1("MACROEXPAND-1") {
-			protected LispValue Execute(LispValue form) {
-		        final LispValue carForm = car(form);	// todo: check for LispSymbol
-		        
-		        if(carForm.fboundp() && carForm.symbol_function() instanceof LispMacro) {
-		            return (f_lisp.eval(f_lisp.makeCons(f_lisp.intern("%%%" + ((LispSymbol)carForm).symbol_name().toStringSimple()), quoteList(f_lisp.cdr(form)))));
-		        } else {
-		            return (form);
-		        }
+			protected LispValue Execute(LispValue form) throws CompilerException {
+				return expand1(form);
+			}
+		});
+
+		// (MACHINE-STATS) returns the counts since the last call and
+		// clears them, (MACHINE-STATS T) starts counting, NIL stops
+		Register(new LispPrimitiveC("MACHINE-STATS", 0, 1) {
+			protected LispValue Execute(LispList args) {
+				SECDMachine machine = f_lisp.MACHINE;
+				SECDStatistics statistics = machine.getStatistics();
+				LispValue result = (statistics == null) ? NIL : statistics(statistics);
+				if (args != NIL)
+					machine.setStatistics(car(args) != NIL ? new SECDStatistics() : null);
+				else if (statistics != null)
+					statistics.clear();
+				return result;
 			}
-		    private LispValue quoteList(final LispValue intern) {
-		        LispValue ret = NIL;
-		        for(final Iterator<LispValue> iter = intern.iterator();iter.hasNext();) {
-		            final LispValue curr = (LispValue)iter.next();
-		            ret = cons(list(QUOTE,curr),ret);
-		        }
-		        return ret.nreverse();
-		    }
 		});
 
 		Register(new LispPrimitiveC("RETURN-FROM", 1, 2) {
 			@Override
 			public LispCons CompileArgs(final LispCompiler compiler, final SECDMachine machine, final LispList args, final LispList valueList, final LispCons code) throws CompilerException {
-				final LispValue tag = car(args);
-				if (!compiler.getLegalBlocks().contains(tag))
-					throw new LispAssertionException("No enclosing lexical block with tag " + tag);
-
-				final LispValue fullCode = cdr(args);
-				final LispCons compiledCode = compiler.compileArgsLeftToRight(fullCode, valueList,
-						cons(LIS,
-						     cons(integer(fullCode.length()),
-						          cons(LDC,
-						               cons(tag, code)))));
-				return compiledCode;
+				final LispValue name = car(args);
+				final int block = compiler.getLegalBlocks().lastIndexOf(name);
+				if (block < 0)
+					throw new LispAssertionException("No enclosing lexical block with tag " + name);
+				compiler.getReturnedBlocks().add(name);
+
+				return compiler.compileArgsLeftToRight(list(car(cdr(args))), valueList,
+						cons(SECDMachine.RETURN_FROM,
+						     cons(compiler.blockTags.get(block), code)));
 			}
 
-			public void Execute(SECDMachine machine)
-					throws CompilerException
-			{
-				final LispValue tag = machine.S.pop();
-				final LispValue args = machine.S.pop();
-				final LispValue retVal = (args.basic_length() == 0) ? NIL : car(args);
-				machine.S.push(retVal);
-				findBlock(tag,machine);
+			@Override
+			public boolean evaluatesArguments() {
+				return false;
 			}
-			private void findBlock(final LispValue tag, final SECDMachine machine) throws CompilerException 
-			{
-				LispValue currVal = null;
-				while (true) {
-					currVal = machine.C.pop();
-					while (
-						currVal != NIL &&
-						currVal != RTN && currVal != RTN_IF && currVal != RTN_IT && currVal != JOIN &&
-						currVal != BLK/* && !(currVal instanceof TagbodyPrimitive)*/
-					)
-						currVal = machine.C.pop();
-					if (currVal == BLK) 
-					{
-						currVal = machine.C.pop();
-						if (tag == currVal) 
-							return; // We found the place!
-						continue;
-					}
 
-					if (currVal == RTN || currVal == RTN_IF || currVal == RTN_IT || currVal == JOIN)
-						((LispPrimitive)currVal).Execute(machine);
-					else
-						throw new IllegalArgumentException("RETURN-FROM called with in bad form, no matching block outside");
-					/* else if (currVal instanceof TagbodyPrimitive) {
-			        machine.C.push(currVal);
-			        ((LispPrimitive)currVal).Execute(machine);
-			      } */
-				}
-			}
-			
 			@Override
 			protected LispValue Execute(LispList arg) throws CompilerException {
 				throw new LispAssertionException();
@@ -740,6 +855,306 @@ public class LispCompiler extends LispProcessor
 //		f_lisp.intern(primitive.LispFunctionNameString(), primitive);
 		final LispSymbol symbol = f_lisp.intern(primitive.LispFunctionNameString());
 		symbol.setf_symbol_function(primitive);//list(PRIMITIVE, primitive));
+		if (PURE_PRIMITIVES.contains(primitive.LispFunctionNameString()))
+			f_pure.add(primitive);
+	}
+	/**
+	 * Registers the primitive that is compiled to the machine instruction.
+	 * The instruction is emitted only for this primitive object, so the
+	 * calls of the redefined function are compiled as usual.
+	 */
+	void Register(LispPrimitive primitive, SECDMachine.Intrinsic intrinsic)
+	{
+		Register(primitive);
+		f_intrinsics.put(primitive, intrinsic);
+	}
+	private final Map<LispValue, SECDMachine.Intrinsic> f_intrinsics = new IdentityHashMap<LispValue, SECDMachine.Intrinsic>();
+
+	/**
+	 * The purity table: the primitives of init() and of the extras that
+	 * return the same value for the same arguments and have no effects,
+	 * so the compiler calls them on the constant arguments.  The ones
+	 * that make the new conses or strings (CONS, LIST, APPEND, STRING,
+	 * CONCATENATE) aren't here, the program may change what they return.
+	 * The primitives are marked as they are registered.
+	 * @see PassManager#constantFolding(LispCompiler)
+	 */
+	static final Set<String> PURE_PRIMITIVES = new HashSet<String>(Arrays.asList(
+			// init()
+			"EQ", "EQL", "NOT", "CAR", "CDR", "ELT", "LAST", "LENGTH",
+			"ATOM?", "NULL?", "CONS?", "LIST?", "CONSTANT?", "SQRT",
+			// MATH
+			"+", "-", "*", "/", "=", "<", ">", "MOD", "FLOOR", "POWER",
+			"ADD2", "SUB2", "NEG1", "MUL2", "DIV2", "NUMEQ2", "LT2", "GT2",
+			// Trigonometry
+			"SIN", "COS", "TAN", "CTG", "SEC", "CSC",
+			// Strings
+			"STRING-EQUAL"));
+	private final Set<LispValue> f_pure = Collections.newSetFromMap(new IdentityHashMap<LispValue, Boolean>());
+
+	boolean isPure(LispPrimitive primitive)
+	{
+		return f_pure.contains(primitive);
+	}
+
+	/**
+	 * Defines the constant, for DEFCONSTANT.  The references to the
+	 * symbol compiled after it are compiled to its value, and SETQ of
+	 * the symbol is an error.  The constant may be defined again only
+	 * with the EQL value.
+	 */
+	LispValue defineConstant(LispValue symbol, LispValue value)
+	{
+		if (!(symbol instanceof LispSymbol) || symbol instanceof LispConstant)
+			throw new LispValueNotASymbolException(symbol);
+		LispValue old = f_constants.get(symbol);
+		if (old != null && old.eql(value) == NIL)
+			throw new LispConstantRedefinedException(symbol.toString());
+		f_constants.put(symbol, value);
+		symbol.setf_symbol_value(value);
+		return symbol;
+	}
+	// the value of the constant, or null
+	LispValue constantValue(LispValue symbol)
+	{
+		return f_constants.get(symbol);
+	}
+	private final Map<LispValue, LispValue> f_constants = new IdentityHashMap<LispValue, LispValue>();
+
+	/**
+	 * The size of the body of the global function, in the nodes of the
+	 * tree, up to which its calls are inlined.  The function declaimed
+	 * INLINE is inlined at any size, the one declaimed NOTINLINE never.
+	 * The functions that call themselves, have &amp;REST or special
+	 * parameters, or forms the tree doesn't know aren't inlined.
+	 */
+	static final int INLINE_SIZE = 12;
+
+	// the body of the function that may be inlined, resolved in the
+	// frame of its parameters, and the code it was compiled to
+	private static final class InlineFunction
+	{
+		final LispValue code;
+		final LispValue parameters;
+		final int arity;
+		final IR.Node body;
+
+		InlineFunction(LispValue code, LispValue parameters, IR.Node body)
+		{
+			this.code = code;
+			this.parameters = parameters;
+			this.arity = parameters.basic_length();
+			this.body = body;
+		}
+	}
+	// the DEFUN that inlined the calls, to compile it again
+	private static final class Definition
+	{
+		final LispValue argsAndBody;
+		final LispValue code;
+
+		Definition(LispValue argsAndBody, LispValue code)
+		{
+			this.argsAndBody = argsAndBody;
+			this.code = code;
+		}
+	}
+	private final Map<LispValue, InlineFunction> f_inlines = new IdentityHashMap<LispValue, InlineFunction>();
+	// TRUE for INLINE, FALSE for NOTINLINE
+	private final Map<LispValue, Boolean> f_declaimed = new IdentityHashMap<LispValue, Boolean>();
+	// the DEFUNs that inlined the function, by the function
+	private final Map<LispValue, Set<LispValue>> f_dependents = new IdentityHashMap<LispValue, Set<LispValue>>();
+	private final Map<LispValue, Definition> f_definitions = new IdentityHashMap<LispValue, Definition>();
+	private boolean f_recompiling = false;
+	// the top level DEFUN that is compiled, and if it inlined a call
+	private LispValue f_defining = null;
+	private boolean f_inlined = false;
+
+	// (INLINE name*) or (NOTINLINE name*), the other declarations are ignored
+	void declaim(LispValue declaration)
+	{
+		LispValue kind = car(declaration);
+		if (kind != f_lisp.intern("INLINE") && kind != f_lisp.intern("NOTINLINE"))
+			return;
+		Boolean inline = Boolean.valueOf(kind == f_lisp.intern("INLINE"));
+		for (LispValue p = cdr(declaration); p != NIL; p = cdr(p)) {
+			f_declaimed.put(car(p), inline);
+			if (!inline)
+				f_inlines.remove(car(p));
+		}
+	}
+
+	// The copy of the body of the BLOCK of the top level DEFUN, read but
+	// not yet passed over, if it may be inlined.  It refers only to the
+	// parameters, the frame of the name of the function (for the calls
+	// of the function itself) is out of it.
+	private IR.Node inlineTemplate(LispValue name, LispValue parameters, IR.Node body)
+			throws CompilerException
+	{
+		Boolean declaimed = f_declaimed.get(name);
+		if (declaimed == Boolean.FALSE || !(body instanceof IR.Block))
+			return null;
+		LispValue p = parameters;
+		for (; p instanceof LispCons; p = cdr(p))
+			if (!(car(p) instanceof LispSymbol) || car(p) == AMP_REST || car(p).specialP())
+				return null;
+		if (p != NIL)
+			return null;
+		body = ((IR.Block)body).body;
+		if (!PassManager.closed(body, 0)
+				|| declaimed == null && PassManager.size(body) > INLINE_SIZE)
+			return null;
+		return body.duplicate();
+	}
+
+	// Records the DEFUN: its body to be inlined, and its definition if it
+	// inlined the other functions.
+	private void defined(LispValue name, LispValue argsAndBody, LispValue parameters,
+	                     IR.Node template, LispValue code, boolean inlined)
+	{
+		if (template != null)
+			f_inlines.put(name, new InlineFunction(code, parameters, template));
+		else
+			f_inlines.remove(name);
+		if (inlined)
+			f_definitions.put(name, new Definition(argsAndBody, code));
+		else
+			f_definitions.remove(name);
+	}
+
+	/**
+	 * The inlined call of the global function: the LET of its parameters
+	 * to the arguments around the copy of its body, or null if the call
+	 * isn't inlined.  The DEFUN that is compiled is recorded to depend
+	 * on the function, it is compiled again when the function is defined
+	 * again.
+	 */
+	IR.Node inline(IR.GlobalCall call)
+	{
+		if (f_defining == null)
+			return null;
+		InlineFunction function = f_inlines.get(call.symbol);
+		if (function == null || function.arity != call.args.length
+				|| !isDefinedAs(call.symbol, function.code))
+			return null;
+		Set<LispValue> dependents = f_dependents.get(call.symbol);
+		if (dependents == null)
+			f_dependents.put(call.symbol, dependents = new HashSet<LispValue>());
+		dependents.add(f_defining);
+		f_inlined = true;
+
+		// the slots of the frame are in the reverse order of the variables,
+		// the values are evaluated in the order of the arguments
+		IR.Node[] values = new IR.Node[call.args.length];
+		for (int i = 0; i < values.length; i++)
+			values[i] = call.args[values.length - 1 - i];
+		return new IR.Let(function.parameters.reverse(), false, values, function.body.duplicate());
+	}
+
+	// true if the function of the symbol is the code, not defined since
+	private static boolean isDefinedAs(LispValue symbol, LispValue code)
+	{
+		if (!symbol.fboundp())
+			return false;
+		LispValue function = symbol.symbol_function();
+		return function instanceof LispFunction && !(function instanceof LispMacro)
+				&& ((LispFunction)function).getCode() == code;
+	}
+
+	// Compiles again the DEFUNs that inlined the function, the one that
+	// fails to compile keeps its code.  The bodies are inlined as they
+	// were read, without the calls they inlined, so the DEFUNs compiled
+	// again don't change the code of their own callers.
+	private void recompileDependents(SECDMachine machine, LispValue name)
+	{
+		if (f_recompiling)
+			return;
+		Set<LispValue> dependents = f_dependents.remove(name);
+		if (dependents == null)
+			return;
+		f_recompiling = true;
+		try {
+			for (LispValue dependent : dependents) {
+				Definition definition = f_definitions.get(dependent);
+				if (definition == null || !isDefinedAs(dependent, definition.code))
+					continue;
+				LispValue function = dependent.symbol_function();
+				try {
+					compileDefun(machine, dependent, definition.argsAndBody, NIL, cons(STOP, NIL));
+				}
+				catch (EvaluationLimitException e) {
+					dependent.setf_symbol_function(function);
+					throw e;
+				}
+				catch (LispException e) {
+					dependent.setf_symbol_function(function);
+				}
+				catch (CompilerException e) {
+					dependent.setf_symbol_function(function);
+				}
+			}
+		}
+		finally {
+			f_recompiling = false;
+		}
+	}
+
+	/**
+	 * Expands the call of the global macro, by the expansion machine of
+	 * the machine.  The expansions are cached by the identity of the
+	 * form, so the form compiled again (by EVAL in a loop, or as a
+	 * part of the code compiled twice) isn't expanded again.  The entry
+	 * is valid while the symbol has the same macro: DEFMACRO makes a new
+	 * macro object and so invalidates the expansions of the old one.
+	 * The cache is cleared when it is full.
+	 */
+	LispValue expand(SECDMachine machine, LispValue form)
+			throws CompilerException
+	{
+		LispMacro macro = (LispMacro)car(form).symbol_function();
+		LispValue cached = f_expansions.get(form);
+		if (cached != null && car(cached) == macro)
+			return cdr(cached);
+
+		LispValue expansion = machine.expand(macro, cdr(form));
+		if (f_expansions.size() >= EXPANSION_CACHE_SIZE)
+			f_expansions.clear();
+		f_expansions.put(form, cons(macro, expansion));
+		return expansion;
+	}
+	// expands the form once if it is a call of the global macro, for
+	// MACROEXPAND; the expansion isn't cached as the caller may change it
+	LispValue expand1(LispValue form)
+			throws CompilerException
+	{
+		LispValue function = car(form);
+		if (function instanceof LispSymbol && function.fboundp() && function.symbol_function() instanceof LispMacro)
+			return f_lisp.MACHINE.expand((LispMacro)function.symbol_function(), cdr(form));
+		return form;
+	}
+	private final Map<LispValue, LispValue> f_expansions = new IdentityHashMap<LispValue, LispValue>();
+	static final int EXPANSION_CACHE_SIZE = 1024;
+
+	// the alist of MACHINE-STATS: ((INSTRUCTIONS . n) (OPCODES (op . n) ...)
+	// (PRIMITIVES (name . n) ...) (PAIRS ((op op) . n) ...))
+	private LispValue statistics(SECDStatistics statistics)
+	{
+		return list(cons(f_lisp.intern("INSTRUCTIONS"), integer(statistics.total())),
+				cons(f_lisp.intern("OPCODES"), counts(statistics.opcodes())),
+				cons(f_lisp.intern("PRIMITIVES"), counts(statistics.primitives())),
+				cons(f_lisp.intern("PAIRS"), counts(statistics.pairs())));
+	}
+	private LispValue counts(List<Object[]> rows)
+	{
+		LispValue counts = NIL;
+		for (int i = rows.size(); --i >= 0; ) {
+			Object[] row = rows.get(i);
+			LispValue key = f_lisp.intern(SECDStatistics.name((LispValue)row[0]));
+			if (row.length > 2)
+				key = list(key, f_lisp.intern(SECDStatistics.name((LispValue)row[1])));
+			counts = cons(cons(key, integer((Long)row[row.length - 1])), counts);
+		}
+		return counts;
 	}
 
 	// required by "return-from" primitive
@@ -747,6 +1162,13 @@ public class LispCompiler extends LispProcessor
 	public Stack<LispValue> getLegalBlocks() {
 		return legalBlocks;
 	}
+	// the tags of the legal blocks, made for each BLOCK form
+	private final Stack<LispValue> blockTags = new Stack<LispValue>();
+	// the blocks that have RETURN-FROM, they need the escape record
+	private final Set<LispValue> returnedBlocks = new HashSet<LispValue>();
+	Set<LispValue> getReturnedBlocks() {
+		return returnedBlocks;
+	}
 
 //   public Stack<Set<LispValue>> getLegalTags() {
 //        return legalTags;
@@ -770,6 +1192,30 @@ public class LispCompiler extends LispProcessor
   public void WarnAboutSpecials(boolean value)
   {  WarnAboutSpecialsP = value; }
 
+  /**
+   * When set, DEFUN also compiles the function to a JVM class, if it
+   * can.  The other functions are still run by the SECD machine.
+   * @see org.jatha.machine.SECDJvm
+   */
+  public void CompileClasses(boolean value)
+  {  CompileClassesP = value; }
+
+  /**
+   * When set (the default), the compiled code is rewritten with the
+   * superinstructions of the list machine.
+   * @see org.jatha.machine.SECDPeephole
+   */
+  public void Peephole(boolean value)
+  {  PeepholeP = value; }
+
+  /**
+   * When set (the default), the optimization passes are run over the
+   * intermediate representation of the forms.
+   * @see PassManager
+   */
+  public void Optimize(boolean value)
+  {  OptimizeP = value; }
+
 
   /* --- Utility routines --- */
   // New IndexInList and IndexAndAttributes contributed by
@@ -829,8 +1275,8 @@ public class LispCompiler extends LispProcessor
    * </pre>
    * @param e a Symbol
    * @param l a list of lists
-   * @return either (NIL.NIL), if not found, or a dotted pair; first is the attribute for symbol, second is a Cons of 2 LispIntegers\
-   (a . b) indicating list number (a) and index into that list (b)
+   * @return either (NIL.NIL), if not found, or a dotted pair; first is the attribute for symbol, second is
+   a SECDFrame.Slot, printed as (a . b), indicating list number (a) and index into that list (b)
    */
 	public static LispCons indexAndAttribute(LispValue e, LispValue l)
 	{
@@ -847,8 +1293,7 @@ public class LispCompiler extends LispProcessor
 			int indexInSubList = indexInList(e, car(subList), attribute);
 			if (indexInSubList != 0) // found
 			{
-				LispValue position = cons(cons(integer(indexSubList),
-				                               integer(indexInSubList)),
+				LispValue position = cons(new SECDFrame.Slot(indexSubList - 1, indexInSubList - 1),
 				                          NIL);
 				return cons(attribute[0], position);
 			}
@@ -916,7 +1361,10 @@ public class LispCompiler extends LispProcessor
 			System.out.println("initial code = " + cons(STOP, NIL));
 		}
 
-		return compile(expr, varValues, cons(STOP, NIL));
+		LispCons code = compile(expr, varValues, cons(STOP, NIL));
+		if (PeepholeP)
+			SECDPeephole.optimize(code);
+		return code;
 	}
 
 	// @author  Micheal S. Hewett    hewett@cs.stanford.edu
@@ -935,19 +1383,221 @@ public class LispCompiler extends LispProcessor
 	public LispCons compile(LispValue expr, LispList valueList, LispCons code)
 			throws CompilerException
 	{
-		SECDMachine machine = f_lisp.MACHINE;
-		
 		if (DEBUG) {
 			System.out.print("\nCompile: " + expr);
 			System.out.print("\n   code: " + code);
 		}
 
+		// the node of the tree compiled by the routines of the forms
+		if (expr instanceof IR.Node)
+			return ((IR.Node)expr).generate(this, code);
+
+		IR.Node node = f_passes.run(build(expr, valueList), car(code) == RTN, OptimizeP);
+		if (DEBUG)
+			System.out.print("\n     IR: " + node);
+		return node.generate(this, code);
+	}
+
+	/**
+	 * Compiles the form by the compiler routines, without the
+	 * intermediate representation.  The parts of the form are
+	 * compiled by {@link #compile(LispValue, LispList, LispCons)}.
+	 */
+	LispCons compileForm(LispValue expr, LispList valueList, LispCons code)
+			throws CompilerException
+	{
+		SECDMachine machine = f_lisp.MACHINE;
+
 		if (expr instanceof LispAtom)
 			return compileAtom(machine, (LispAtom)expr, valueList, code);
 		else
 			return compileList(machine, (LispList)expr, valueList, code);
 	}
 
+	/**
+	 * Reads the form into the intermediate representation.  The variables
+	 * are resolved in the valueList, the global macros are expanded.
+	 * @see IR
+	 */
+	IR.Node build(LispValue expr, LispList valueList)
+			throws CompilerException
+	{
+		if (expr instanceof LispAtom)
+			return buildAtom((LispAtom)expr, valueList);
+		if (expr == NIL)
+			return new IR.Constant(NIL);
+
+		LispValue function = car(expr);
+		LispList args      = (LispList)cdr(expr);
+
+		Builder builder = f_builders.get(function);
+		if (builder != null)
+			return builder.build(args, valueList);
+		if (SpecialOperators.containsKey(function))
+			return new IR.Opaque(expr, valueList);
+
+		// the local functions of FLET and LABELS
+		LocalFunction local = localFunction(function, valueList);
+		if (local != null) {
+			checkLocalArguments(local, args.basic_length());
+			return new IR.LocalCall(local, local.depth(valueList), buildArgs(args, valueList));
+		}
+		if (function == FUNCTION && args != NIL && localFunction(car(args), valueList) != null)
+			return new IR.Opaque(expr, valueList);
+
+		if (function instanceof LispPrimitive)
+			return buildPrimitive(expr, (LispPrimitive)function, args, valueList);
+		if (function instanceof LispFunction && !(function instanceof LispMacro))
+			return new IR.Opaque(expr, valueList);
+
+		if (function instanceof LispAtom)
+		{
+			if (Lisp.isBuiltinFunction(function)) {
+				LispValue fn = function.symbol_function();
+				if (fn instanceof LispFunction)
+					fn = ((LispFunction)fn).getCode();
+				return buildPrimitive(expr, (LispPrimitive)fn, args, valueList);
+			}
+
+			LispValue fnIdxAndAttributes = indexAndAttribute(function, valueList);
+			LispValue defn = definition(function, fnIdxAndAttributes);
+			switch (callOf(function, defn)) {
+			case LOCAL_MACRO:
+			case INTERPRETED:
+				return new IR.Opaque(expr, valueList);
+			case MACRO:
+				return build(expand(f_lisp.MACHINE, expr), valueList);
+			case LOCAL:
+				return new IR.Call(new IR.LocalRef(defn, car(fnIdxAndAttributes) == AMP_REST),
+				                   buildArgs(args, valueList));
+			default:
+				return new IR.GlobalCall(function, buildArgs(args, valueList));
+			}
+		}
+
+		/* an application from within a nested function */
+		return new IR.Call(build(function, valueList), buildArgs(args, valueList));
+	}
+
+	// The calls of a function symbol, told apart by callOf() for both
+	// the compiler routines and the intermediate representation.
+	enum Call { LOCAL_MACRO, MACRO, LOCAL, INTERPRETED, GLOBAL }
+
+	/**
+	 * Resolves the function of the call: its slot in the valueList, or
+	 * the code of the global function.
+	 * @param fnIdxAndAttributes the indexAndAttribute() of the function
+	 * @throws UndefinedFunctionException if the function has neither
+	 */
+	private LispValue definition(LispValue function, LispValue fnIdxAndAttributes)
+			throws UndefinedFunctionException
+	{
+		LispValue defn = car(cdr(fnIdxAndAttributes));
+		if (defn != NIL)
+			return defn;
+		try
+		{
+			defn = ((LispFunction)function.symbol_function()).getCode();
+		}
+		catch (LispException e)
+		{
+			defn = null;
+		}
+		if ((defn == NIL) || (defn == null))
+		{
+			if (function instanceof LispSymbol)
+				throw new UndefinedFunctionException(((LispSymbol)function).symbol_name().toString());
+			else
+				throw new UndefinedFunctionException(function.toString());
+		}
+		return defn;
+	}
+
+	// how the call of the function with the definition is compiled
+	private Call callOf(LispValue function, LispValue defn)
+	{
+		if (function.symbol_function() instanceof LispMacro)
+			return (defn instanceof SECDFrame.Slot) ? Call.LOCAL_MACRO : Call.MACRO;
+		if (defn instanceof SECDFrame.Slot)
+			return Call.LOCAL;
+		if (car(defn) == LAMBDA)    /* Interpreted fn */
+			return Call.INTERPRETED;
+		return Call.GLOBAL;
+	}
+
+	IR.Node buildAtom(LispAtom expr, LispList valueList)
+	{
+		if (expr instanceof LispSymbol && !(expr instanceof LispConstant) && expr != T)
+		{
+			LispValue varIdxAndAttributes = indexAndAttribute(expr, valueList);
+			LispValue varIndex            = car(cdr(varIdxAndAttributes));
+			if (varIndex == NIL)
+			{
+				if (!expr.specialP() && WarnAboutSpecialsP) /* Not a local variable, maybe it's global */
+					System.err.print("\n;; ** Warning - " + expr.toString() + " assumed special.\n");
+				return new IR.GlobalRef(expr);
+			}
+			return new IR.LocalRef(varIndex, car(varIdxAndAttributes) == AMP_REST);
+		}
+		return new IR.Constant(expr);
+	}
+
+	IR.Node[] buildArgs(LispValue args, LispList valueList)
+			throws CompilerException
+	{
+		IR.Node[] nodes = new IR.Node[args.basic_length()];
+		for (int i = 0; i < nodes.length; i++, args = cdr(args))
+			nodes[i] = build(car(args), valueList);
+		return nodes;
+	}
+
+	IR.Node buildProgn(LispValue body, LispList valueList)
+			throws CompilerException
+	{
+		if (body == NIL)
+			return new IR.Constant(NIL);  // (PROGN) is NIL
+		if (cdr(body) == NIL)
+			return build(car(body), valueList);
+		return new IR.Seq(buildArgs(body, valueList));
+	}
+
+	// The body is resolved in the frame of the local variables, in the
+	// order compileLet makes it.
+	IR.Node buildLet(LispList bindings, LispValue body, LispList valueList)
+			throws CompilerException
+	{
+		LispList vars = varsFromLetBindings(bindings);
+		IR.Node[] values = buildArgs(valuesFromLetBindings(bindings), valueList);
+		LispValue localVars = NIL;
+		boolean specials = false;
+		for (LispValue p = vars; p != NIL; p = cdr(p))
+			if (car(p).specialP())
+				specials = true;
+			else
+				localVars = cons(car(p), localVars);
+		return new IR.Let(vars, specials, values, buildProgn(body, cons(localVars, valueList)));
+	}
+
+	// The primitives that compile their arguments as the forms are kept
+	// as the forms, SETQ is read to the assignment.
+	IR.Node buildPrimitive(LispValue expr, LispPrimitive primitive, LispList args, LispList valueList)
+			throws CompilerException
+	{
+		if (!primitive.validArgumentList(args))
+			throw new ArgumentCountMismatchException(primitive, args.length());
+		if (primitive == SETQ && args.first() instanceof LispSymbol) {
+			LispValue variable = indexAndAttribute(args.first(), valueList).second();
+			if (variable == NIL) { // not a local variable (inside a LET or something like that)
+				variable = args.first();
+				if (constantValue(variable) != null)
+					throw new LispConstantRedefinedException(variable.toString());
+			}
+			return new IR.Setq(variable, build(args.second(), valueList));
+		}
+		if (!primitive.evaluatesArguments())
+			return new IR.Opaque(expr, valueList);
+		return new IR.PrimitiveCall(primitive, f_intrinsics.get(primitive), buildArgs(args, valueList));
+	}
 
 	LispCons compileAtom(SECDMachine machine, LispAtom expr, LispList valueList, LispCons code)
 	{
@@ -1007,6 +1657,14 @@ public class LispCompiler extends LispProcessor
 		Compiler specialCompiler;
 		if ((specialCompiler = SpecialOperators.get(function)) != null)
 			return specialCompiler.compile(machine, args, valueList, code);
+
+		// the local functions of FLET and LABELS
+		LocalFunction local = localFunction(function, valueList);
+		if (local != null)
+			return compileLocalCall(local, args, valueList, code);
+		if (function == FUNCTION && args != NIL
+		    && (local = localFunction(car(args), valueList)) != null)
+			return cons(LDL, cons(local.local, cons(integer(local.depth(valueList)), code)));
 		
 		if (function instanceof LispPrimitive) {
 			// special for manual add for LIST etc.
@@ -1014,6 +1672,9 @@ public class LispCompiler extends LispProcessor
 			if (!primitive.validArgumentList(args))
 				throw new ArgumentCountMismatchException(primitive, args.length());
 
+			SECDMachine.Intrinsic intrinsic = f_intrinsics.get(primitive);
+			if (intrinsic != null)
+				return compileArgsLeftToRight(args, valueList, cons(intrinsic, code));
 			return primitive.CompileArgs(this, machine, function, args, valueList, code);
 		}
 
@@ -1041,98 +1702,177 @@ public class LispCompiler extends LispProcessor
 				// ##JPG if function has a variable number of parameters (&rest is present in paraameters list)
 				//   the opcode LDR (LoaD with Rest) is used in place of LD
 				LispValue fnIdxAndAttributes = indexAndAttribute(function, valueList);
-				LispValue defn = car(cdr(fnIdxAndAttributes));
+				LispValue defn = definition(function, fnIdxAndAttributes);
 				LispValue loadOpCode = (car(fnIdxAndAttributes) == AMP_REST) ? LDR : LD;
+				Call call = callOf(function, defn);
 
-				if (defn == NIL)
+				// ##JPG add this if block to compile macro
+				//------------------------ compile macro --------------------------------
+				if (call == Call.LOCAL_MACRO) /* macro present in closure */
 				{
-					try
-					{
-						defn = ((LispFunction)function.symbol_function()).getCode();
-					}
-					catch (LispException e)
-					{
-						defn = null;
-					}
-
-
-					if ((defn == NIL) || (defn == null))
-					{
-						if (function instanceof LispSymbol)
-							throw new UndefinedFunctionException(((LispString)(((LispSymbol)function).symbol_name())).toString());
-						else
-							throw new UndefinedFunctionException(function.toString());
-					}
+					//##JPG idem compileApp but don't evaluate arguments
+					return compileAppConstant(machine, args, valueList,
+                                  f_lisp.makeCons(loadOpCode,
+                                                  f_lisp.makeCons(defn,
+                                                                  (f_lisp.car(code) == machine.RTN) ? f_lisp.makeCons(machine.DAP, f_lisp.cdr(code))
+                                                                  : f_lisp.makeCons(machine.AP, code))));
 				}
-
-				// ##JPG add this if block to compile macro
-				if (function.symbol_function() instanceof LispMacro)
-					//------------------------ compile macro --------------------------------
+				if (call == Call.MACRO) /* Compiled macro */
 				{
-					if (car(defn) instanceof LispNumber) /* macro present in closure */
-					{
-						//##JPG idem compileApp but don't evaluate arguments
-						return compileAppConstant(machine, args, valueList,
-                                      f_lisp.makeCons(loadOpCode,
-                                                      f_lisp.makeCons(defn,
-                                                                      (f_lisp.car(code) == machine.RTN) ? f_lisp.makeCons(machine.DAP, f_lisp.cdr(code))
-                                                                      : f_lisp.makeCons(machine.AP, code))));
-
-					}
-					else /* Compiled macro */
-					{
-						LispValue expandCode =
-							f_lisp.makeCons(machine.DUM,
-                                f_lisp.makeCons(machine.LDFC,
-                                                f_lisp.makeCons(function,
-                                                                f_lisp.makeCons(machine.LDNIL,
-                                                                                f_lisp.makeCons(CONS,
-                                                                                                compileLambda(machine, expr,  f_lisp.makeCons(
-                                                                                                    f_lisp.makeCons(function, NIL),
-                                                                                                    valueList),
-                                                                                                              f_lisp.makeCons(machine.RAP,
-                                                                                                                              NIL)))))));
-
-						LispValue expandValue = machine.Execute(expandCode, NIL);
-						if (DEBUG)
-							System.out.print("\nMacro " + expr + " expanded to " + expandValue);
-						return compile(expandValue, valueList,code );
-					}
+					LispValue expandValue = expand(machine, expr);
+					if (DEBUG)
+						System.out.print("\nMacro " + expr + " expanded to " + expandValue);
+					return compile(expandValue, valueList,code );
 				}
 
 				// compile a function  --------------------------------
-				if (car(defn) instanceof LispNumber)
-					return compileApp(machine, args, valueList,
-                              f_lisp.makeCons(loadOpCode,
-                                              f_lisp.makeCons(defn,
-                                                              (f_lisp.car(code) == machine.RTN) ? f_lisp.makeCons(machine.DAP, f_lisp.cdr(code))
-                                                              : f_lisp.makeCons(machine.AP, code))));
+				if (call == Call.LOCAL)
+					return compileArguments(machine, args, valueList,
+							cons(loadOpCode, cons(defn, compileApply(args, code))));
 
-				if (f_lisp.car(defn) == LAMBDA)    /* Interpreted fn */
+				if (call == Call.INTERPRETED)
 					return compileApp(machine, args, valueList,
                               compileLambda(machine, f_lisp.cdr(f_lisp.cdr(defn)),
                                             f_lisp.makeCons(defn.second(), valueList),
                                             code));
 
 					/* Compiled fn */
-				return f_lisp.makeCons(machine.DUM,
-                                   f_lisp.makeCons(machine.LDFC,
-                                                   f_lisp.makeCons(function,
-                                                                   f_lisp.makeCons(machine.LDNIL,
-                                                                                 f_lisp.makeCons(CONS,
-                                                                                                 compileLambda(machine, expr,
-                                                                                                               f_lisp.makeCons(f_lisp.makeCons(function, NIL),
-                                                                                                                               valueList),
-                                                                                                               f_lisp.makeCons(machine.RAP, code)))))));
+				// the closure made by LDFC doesn't keep the caller's environment,
+				// so the tail calls between the functions run in constant space
+				return compileArguments(machine, args, valueList,
+						cons(LDFC, cons(function, compileApply(args, code))));
 			}
 		}
 		
 		/* an application from within a nested function */
-		return compileApp(machine, args, valueList,
-				compile(function, valueList,
-						(car(code) == machine.RTN)
-							? cons(machine.DAP, cdr(code))
-							: cons(machine.AP, code)));
+		return compileArguments(machine, args, valueList,
+				compile(function, valueList, compileApply(args, code)));
+	}
+
+	// The arguments of the call: pushed on the stack one by one if the
+	// call is made by APn or DAPn, or the list for AP and DAP.
+	LispCons compileArguments(SECDMachine machine, LispValue args, LispList valueList, LispCons code)
+			throws CompilerException
+	{
+		if (args.basic_length() <= MAX_STACK_ARGUMENTS)
+			return compileArgsLeftToRight(args, valueList, code);
+		return compileApp(machine, args, valueList, code);
+	}
+
+	/**
+	 * The local function of FLET or LABELS while its scope is compiled:
+	 * the valueList it is defined in, and the parameters.
+	 */
+	static final class LocalFunction
+	{
+		final LispValue name;
+		final LispValue parameters;
+		final LispList valueList;
+		final LocalFunction outer;
+		final SECDMachine.Local local;
+
+		LocalFunction(LispValue name, LispValue parameters, LispList valueList, LocalFunction outer)
+		{
+			this.name = name;
+			this.parameters = parameters;
+			this.valueList = valueList;
+			this.outer = outer;
+			this.local = new SECDMachine.Local(name);
+		}
+
+		// the number of the frames made since the definition, or -1 if the
+		// valueList is out of the scope.  The variables don't hide the
+		// function, only the inner FLET or LABELS of the name does.
+		int depth(LispValue valueList)
+		{
+			int depth = 0;
+			for (LispValue p = valueList; p != this.valueList; p = cdr(p), depth++)
+				if (p == NIL)
+					return -1;
+			return depth;
+		}
+	}
+	// the local functions in the scope, the innermost first
+	private LocalFunction f_functions = null;
+
+	LocalFunction localFunction(LispValue name, LispList valueList)
+	{
+		for (LocalFunction f = f_functions; f != null; f = f.outer)
+			if (f.name == name)
+				return f.depth(valueList) >= 0 ? f : null;
+		return null;
+	}
+
+	/**
+	 * FLET and LABELS.  The local functions are not closures: the calls
+	 * are compiled to APL or DAPL that name the function, and make the
+	 * frame of the arguments in front of the frame the function is
+	 * defined in, so a local function costs as much as a loop.  Only
+	 * (FUNCTION f) makes the closure, by LDL.  The functions of LABELS
+	 * see themselves, the functions of FLET only the outer ones.
+	 */
+	LispCons compileLocalFunctions(LispList definitions, LispValue body, boolean recursive,
+	                               LispList valueList, LispCons code)
+			throws CompilerException
+	{
+		LocalFunction outer = f_functions;
+		LocalFunction scope = outer;
+		for (LispValue p = definitions; p != NIL; p = cdr(p))
+			scope = new LocalFunction(car(car(p)), car(cdr(car(p))), valueList, scope);
+		try {
+			f_functions = recursive ? scope : outer;
+			LocalFunction f = scope;
+			for (LispValue p = definitions.reverse(); p != NIL; p = cdr(p), f = f.outer) {
+				LispCons functionCode = compile(cons(PROGN, cdr(cdr(car(p)))),
+				                                cons(f.parameters, valueList), cons(RTN, NIL));
+				if (PeepholeP)
+					SECDPeephole.optimize(functionCode);
+				f.local.setCode(functionCode);
+			}
+			f_functions = scope;
+			return compileProgn(body, valueList, code);
+		}
+		finally {
+			f_functions = outer;
+		}
+	}
+
+	// The call of the local function, the arguments are pushed on the stack.
+	LispCons compileLocalCall(LocalFunction f, LispValue args, LispList valueList, LispCons code)
+			throws CompilerException
+	{
+		long count = args.basic_length();
+		checkLocalArguments(f, count);
+
+		boolean tail = (car(code) == RTN);
+		return compileArgsLeftToRight(args, valueList,
+				cons(tail ? DAPL : APL,
+				     cons(f.local,
+				          cons(integer(f.depth(valueList)),
+				               cons(integer(count), tail ? cdr(code) : code)))));
+	}
+
+	void checkLocalArguments(LocalFunction f, long count)
+			throws CompilerException
+	{
+		long required = 0;
+		boolean rest = false;
+		for (LispValue p = f.parameters; p != NIL && !rest; p = cdr(p))
+			if (car(p) == AMP_REST)
+				rest = true;
+			else
+				required++;
+		if (rest ? count < required : count != required)
+			throw new ArgumentCountMismatchException(f.name.toString(),
+					(rest ? "at least " : "") + required, count);
+	}
+
+	// The call instruction for the arguments, before the RTN it is the
+	// tail call and replaces the RTN.
+	LispCons compileApply(LispValue args, LispCons code)
+	{
+		boolean tail = (car(code) == RTN);
+		return cons(apply(args.basic_length(), tail), tail ? cdr(code) : code);
 	}
 
   LispValue compileSpecialForm(SECDMachine machine, LispValue function,
@@ -1187,19 +1927,19 @@ public class LispCompiler extends LispProcessor
 			valPtr = cdr(valPtr);
 		}
 
-		// The local vars get compiled by the compileApp,
-		// the special vars get compiled after that and just
-		// before the Lambda is compiled.
+		// The local vars are pushed on the stack, the special vars
+		// get compiled after that and just before the frame is made
+		// of the locals by ENTER.  The body runs in the frame, LEAVE
+		// drops it; before the RTN the body is in the tail position
+		// and the RTN restores the environment.
+		LispCons after = compileSpecialUnbind(machine, specialVars, code);
+		LispCons bodyCode = compile(body, cons(localVars, valueList),
+		                             (car(after) == RTN) ? after : cons(LEAVE, after));
 		LispCons ret =
-				compileApp(machine, localVals, valueList,
+				compileArgsLeftToRight(localVals, valueList,
 						compileSpecialBind(machine, specialVars, specialVals, valueList,
-								compileLambda(machine, body, cons(localVars, valueList),
-										cons(AP,
-										     compileSpecialUnbind(machine, specialVars, code)))));
+								cons(ENTER, cons(integer(localVals.basic_length()), bodyCode))));
 		return ret;
-		// (code.car() == machine.RTN) ?
-		// f_lisp.makeCons(machine.DAP, code.cdr())
-		//			        : f_lisp.makeCons(machine.AP, code));
 	}
 
 
@@ -1285,7 +2025,7 @@ public class LispCompiler extends LispProcessor
 		if (args == NIL)
 			return cons(LDNIL, code);
 		return compile(car(args), valueList,
-				compileApp(machine, cdr(args), valueList, cons(CONS, code)));
+				compileApp(machine, cdr(args), valueList, cons(SECDMachine.CONS, code)));
 	}
 
 
@@ -1299,7 +2039,7 @@ public class LispCompiler extends LispProcessor
 		List<LispValue> list = args.toRandomAccess();
 		if (args != NIL)
 			for (int i = list.size() - 1; i >= 0; i--)
-				code = cons(CONS, code);
+				code = cons(SECDMachine.CONS, code);
 		code = cons(LDNIL, code);
 		
 		LispCons rest = code;
@@ -1338,6 +2078,9 @@ public class LispCompiler extends LispProcessor
 			throw new ArgumentCountMismatchException(executableCode,
                                                args.basic_length());
 
+		SECDMachine.Intrinsic intrinsic = f_intrinsics.get(executableCode);
+		if (intrinsic != null)
+			return compileArgsLeftToRight(args, valueList, cons(intrinsic, code));
 		return executableCode.CompileArgs(this, machine, executableCode, args, valueList, code);
 	}
 
@@ -1357,6 +2100,13 @@ public class LispCompiler extends LispProcessor
 		if (DEBUG)
 			System.out.print("\nCompile user-defined: (" + fn + "  " + args + "), vl = " + valueList);
 
+		// the function of a symbol is called through the symbol, so the
+		// call sees the redefinitions and has the inline cache
+		LispValue symbol = ((LispFunction)fn).getSymbol();
+		if (symbol instanceof LispSymbol && symbol.fboundp() && symbol.symbol_function() == fn)
+			return compileArguments(machine, args, valueList,
+					cons(LDFC, cons(symbol, compileApply(args, code))));
+
 		LispCons executableCode = (LispCons)((LispFunction)fn).getCode();
 
     // Assume that the arguments are correct ?
@@ -1374,65 +2124,49 @@ public class LispCompiler extends LispProcessor
 
 	LispCons compileAnd(SECDMachine machine, LispList args, LispList valueList, LispCons code)
 			throws CompilerException
+	{
+		return compile(andForm(args), valueList, code);
+	}
+	// The form AND is compiled as: (IF a (IF b c NIL) NIL).
+	LispValue andForm(LispList args)
 	{
 		// No args: return default value of T
 		if (args == NIL)
-			return cons(LDT, code);
+			return T;
 
 		// 1 arg: just compile the argument.
-		if (cdr(args) == NIL)
-			return compile(car(args), valueList, code);
-
-		// Multiple arguments: construct an IF statement
-		// (let ((*dummy* args.first())) (if ...))
-
-		LispValue var = new StandardLispSymbol(); // here add new temporary variable
-		return
-		compile(list(LET,
-		             cons(list(var, car(args)), NIL),
-		             list(IF, var, compileAndAux(var, cdr(args)), NIL)),
-		        valueList, code);
-	}
-	LispValue compileAndAux(LispValue var, LispValue args)
-	{
 		if (cdr(args) == NIL)
 			return car(args);
 
-		return list(PROGN,
-		            list(SETQ, var, car(args)),
-		            list(IF, var, compileAndAux(var, cdr(args)), NIL));
+		return list(IF, car(args), andForm((LispList)cdr(args)), NIL);
 	}
 
 
 	LispCons compileOr(SECDMachine machine, LispList args, LispList valueList, LispCons code)
 			throws CompilerException
+	{
+		return compile(orForm(args), valueList, code);
+	}
+	// The form OR is compiled as: (LET ((*dummy* a)) (IF *dummy* *dummy* (OR b c))),
+	// the variable or the constant is tested and returned as is.
+	LispValue orForm(LispList args)
 	{
 		// No args: return default value of NIL
 		if (args == NIL)
-			return cons(LDNIL, code);
+			return NIL;
 
 		// 1 arg: just compile the argument.
 		if (cdr(args) == NIL)
-			return compile(car(args), valueList, code);
+			return car(args);
 
-		// Multiple arguments: construct an IF statement
-		// (let ((*dummy* args.first())) (if ...))
+		LispValue first = car(args);
+		if (first instanceof LispAtom)
+			return list(IF, first, first, orForm((LispList)cdr(args)));
 
 		LispValue var = new StandardLispSymbol(); // here add new temporary variable
-		return
-		compile(list(LET,
-	                 cons(list(var, car(args)), NIL),
-	                 list(IF, var, var, compileOrAux(var, cdr(args)))),
-	            valueList, code);
-	}
-	LispValue compileOrAux(LispValue var, LispValue args)
-	{
-		if (cdr(args) == NIL)
-			return car(args);
-
-		return list(PROGN,
-		            list(SETQ, var, car(args)),
-		            list(IF, var, var, compileOrAux(var, cdr(args))));
+		return list(LET,
+		            cons(list(var, first), NIL),
+		            list(IF, var, var, orForm((LispList)cdr(args))));
 	}
 
 
@@ -1493,11 +2227,36 @@ public class LispCompiler extends LispProcessor
 			endArgsAndBody = cons(car(argsAndBody), cddr(argsAndBody));
 		}
 		// Adds an implicit BLOCK with the same name as the defun around the definition.
-		endArgsAndBody = list(car(endArgsAndBody), cons(BLOCK, cons(name, cdr(endArgsAndBody))));
-		name.setf_symbol_function(
-				compileList(machine, cons(LAMBDA, endArgsAndBody),
-						cons(cons(name, NIL), valueList),
-                        cons(STOP, NIL)).second());
+		// The body is compiled as the body of the LAMBDA, in the frame of the
+		// parameters, and is kept to be inlined.  The calls are inlined only
+		// in the top level DEFUNs, that may be compiled again.
+		LispValue parameters = car(endArgsAndBody);
+		LispValue defining = f_defining;
+		boolean inlined = f_inlined;
+		LispValue functionCode;
+		try {
+			f_defining = (valueList == NIL) ? name : null;
+			f_inlined = false;
+			IR.Node body = build(cons(BLOCK, cons(name, cdr(endArgsAndBody))),
+			                     cons(parameters, cons(cons(name, NIL), valueList)));
+			IR.Node template = (valueList == NIL) ? inlineTemplate(name, parameters, body) : null;
+			body = f_passes.run(body, true, 2, OptimizeP);
+			functionCode = body.generate(this, cons(RTN, NIL));
+			if (PeepholeP)
+				SECDPeephole.optimize(functionCode);
+			name.setf_symbol_function(functionCode);
+			defined(name, argsAndBody, parameters, template, functionCode, f_inlined);
+		}
+		finally {
+			f_defining = defining;
+			f_inlined = inlined;
+		}
+
+		// the class of the previous definition is dropped in any case
+		machine.defineClass(name, CompileClassesP && valueList == NIL
+				? SECDJvm.compile(machine, name, parameters, functionCode, SECDMachine.CONS)
+				: null);
+		recompileDependents(machine, name);
 		
 		return compileList(machine, cons(QUOTE, cons(name, NIL)),
 									cons(cons(name, NIL), valueList),
@@ -1507,13 +2266,95 @@ public class LispCompiler extends LispProcessor
 					LispList valueList, LispCons code)
 			throws CompilerException
 	{
+		return compile(cons(BLOCK, cons(name, argsAndBody)), valueList, code);
+	}
+	// The body is the node of the tree, marked by the passes as in the
+	// tail position only if the block isn't returned.
+	LispCons compileBlock(LispValue name, boolean returned, IR.Node body,
+	                      LispList valueList, LispCons code)
+			throws CompilerException
+	{
+		// The escape record is needed only by RETURN-FROM, without it the
+		// calls at the end of the block (and of every DEFUN) are tail calls.
+		final boolean outer = getReturnedBlocks().remove(name);
 		getLegalBlocks().push(name);
-		final LispList fullCode = list(cons(PROGN, argsAndBody));
-		final LispCons compiledCode = compileArgsLeftToRight(fullCode, valueList, cons(BLK, cons(name, code)));
+		blockTags.push(f_lisp.makeSymbol(name.toStringSimple()));
+		LispCons compiledCode = returned
+				? cons(SECDMachine.ESC, cons(blockTags.peek(), cons(code,
+						compile(body, valueList, cons(SECDMachine.UNESC, code)))))
+				: compile(body, valueList, code);
+		// the RETURN-FROM missed by returnsFrom() would find no escape
+		// record when it runs, so it fails here
+		final boolean missed = !returned && getReturnedBlocks().contains(name);
+		blockTags.pop();
 		getLegalBlocks().pop();
+		if (outer)
+			getReturnedBlocks().add(name);
+		else
+			getReturnedBlocks().remove(name);
+		if (missed)
+			throw new LispAssertionException("RETURN-FROM " + name + " not found in the block before it is compiled");
 		return compiledCode;
 	}
 
+	// True if a RETURN-FROM of the block may be in the forms, read before
+	// the forms are compiled.  The calls of the global macros are looked
+	// through (their expansions are cached for the compiler), the block of
+	// the same name inside hides the outer one.  The form that fails to
+	// expand may return.
+	private boolean returnsFrom(LispValue name, LispValue forms)
+	{
+		for (; forms instanceof LispCons; forms = cdr(forms)) {
+			LispValue form = car(forms);
+			if (!(form instanceof LispCons))
+				continue;
+			LispValue head = car(form);
+			if (head == QUOTE)
+				continue;
+			if (head == RETURN_FROM && car(cdr(form)) == name)
+				return true;
+			if (head == BLOCK && car(cdr(form)) == name)
+				continue;
+			if (head instanceof LispSymbol && head.fboundp() && head.symbol_function() instanceof LispMacro) {
+				try {
+					if (returnsFrom(name, list(expand(f_lisp.MACHINE, form))))
+						return true;
+				}
+				catch (CompilerException e) {
+					return true;
+				}
+				catch (EvaluationLimitException e) {
+					throw e;
+				}
+				catch (RuntimeException e) {
+					return true;
+				}
+				continue;
+			}
+			if (returnsFrom(name, form))
+				return true;
+		}
+		return false;
+	}
+
+	// (CATCH tag form*): tag CATCH code body UNESC . code
+	LispCons compileCatch(LispList args, LispList valueList, LispCons code)
+			throws CompilerException
+	{
+		return compile(car(args), valueList,
+				cons(SECDMachine.CATCH, cons(code,
+						compileProgn(cdr(args), valueList, cons(SECDMachine.UNESC, code)))));
+	}
+
+	// (THROW tag result): tag result THROW
+	LispCons compileThrow(LispList args, LispList valueList, LispCons code)
+			throws CompilerException
+	{
+		return compile(car(args), valueList,
+				compile(car(cdr(args)), valueList,
+						cons(SECDMachine.THROW, code)));
+	}
+
 	//##JPG  method added, compile DEFMACRO, April 2005
 	// todo: change name to LispSymbol
 	LispCons compileDefmacro(SECDMachine machine, LispValue name, LispValue argsAndBody,
@@ -1596,9 +2437,18 @@ public class LispCompiler extends LispProcessor
 			throws CompilerException
 	{
 		if (body == NIL)
-			return code;
+			return cons(LDNIL, code);  // (PROGN) is NIL
+		return compileForms(body, valueList, code);
+	}
+	// The values of the forms but the last one are dropped by POP, so
+	// the body of a LET leaves just its value on the stack for LEAVE.
+	private LispCons compileForms(LispValue body, LispList valueList, LispCons code)
+			throws CompilerException
+	{
+		if (cdr(body) == NIL)
+			return compile(car(body), valueList, code);
 		return compile(car(body), valueList,
-				compileProgn(cdr(body), valueList, code));
+				cons(POP, compileForms(cdr(body), valueList, code)));
 	}
     /*
     private java.util.Map blocks = new java.util.HashMap();
@@ -1649,7 +2499,7 @@ public class LispCompiler extends LispProcessor
 					return ((LispList)arg).car();
 				throw new LispValueNotAConsException(arg);
 			}
-		});
+		}, SECDMachine.CAR);
 		Register(new LispPrimitive1("CDR") {
 			@Override
 			protected LispValue Execute(LispValue arg) {
@@ -1657,7 +2507,7 @@ public class LispCompiler extends LispProcessor
 					return ((LispList)arg).cdr();
 				throw new LispValueNotAConsException(arg); 
 			}
-		});
+		}, SECDMachine.CDR);
 		Register(new LispPrimitive2("ELT") {
 			protected LispValue Execute(LispValue list, LispValue n) {
 				return list.elt(n);
@@ -197,6 +197,84 @@ public abstract class LispPrimitive extends StandardLispValue
 		machine.C.pop();
 	}
 
+	/**
+	 * Returns the number of values the primitive takes from the
+	 * operand stack: the arguments of a fixed-arity primitive, or
+	 * the single argument list collected by LIS.
+	 */
+	public abstract int argumentCount();
+
+	/**
+	 * Performs the operation directly on an operand array, without
+	 * touching the machine registers.  The arguments are the last
+	 * <code>argumentCount()</code> values below <code>top</code>.
+	 * Only valid for simple primitives.
+	 *
+	 * @see #isSimple()
+	 * @see org.jatha.machine.SECDBytecode
+	 * @param stack operand array
+	 * @param top   index of the first free element of the array
+	 * @return the result of the operation
+	 */
+	public abstract LispValue Execute(LispValue[] stack, int top)
+			throws CompilerException;
+
+	/**
+	 * Calls the primitive with the arguments in Java variables, used
+	 * by the DEFUNs compiled to the JVM classes.  The subclasses
+	 * override these with the direct calls of their <code>Execute</code>.
+	 * Only valid for simple primitives.
+	 *
+	 * @see org.jatha.machine.SECDJvm
+	 */
+	public LispValue call()
+			throws CompilerException
+	{
+		return Execute(new LispValue[0], 0);
+	}
+	public LispValue call(LispValue arg1)
+			throws CompilerException
+	{
+		return Execute(new LispValue[] { arg1 }, 1);
+	}
+	public LispValue call(LispValue arg1, LispValue arg2)
+			throws CompilerException
+	{
+		return Execute(new LispValue[] { arg1, arg2 }, 2);
+	}
+	public LispValue call(LispValue arg1, LispValue arg2, LispValue arg3)
+			throws CompilerException
+	{
+		return Execute(new LispValue[] { arg1, arg2, arg3 }, 3);
+	}
+
+	private int f_simple = 0; // 0 - not checked yet, 1 - simple, -1 - not simple
+
+	/**
+	 * Returns true if the primitive doesn't override
+	 * <code>Execute(SECDMachine)</code>, i.e. it only pops its arguments,
+	 * pushes the result and pops itself from the C register.  Such
+	 * primitives can be called directly with <code>Execute(LispValue[], int)</code>.
+	 */
+	public boolean isSimple()
+	{
+		if (f_simple == 0) {
+			Class<?> declaringClass;
+			try {
+				declaringClass = getClass().getMethod("Execute", SECDMachine.class).getDeclaringClass();
+			}
+			catch (NoSuchMethodException e) {
+				declaringClass = null;
+			}
+			f_simple = (declaringClass == LispPrimitive0.class ||
+			            declaringClass == LispPrimitive1.class ||
+			            declaringClass == LispPrimitive2.class ||
+			            declaringClass == LispPrimitive3.class ||
+			            declaringClass == LispPrimitiveC.class) ? 1 : -1;
+		}
+		return f_simple > 0;
+	}
+
 //	todo: restore this after code refactoring
 //	public abstract LispValue Execute(LispValue arg)
 //			throws CompilerException;
@@ -232,6 +310,7 @@ public abstract class LispPrimitive extends StandardLispValue
    * @param valueList
    * @param code
    * @return LispValue The code generated and cons'ed onto the front of the incoming code.
+   * @see #evaluatesArguments()
    */
 	public LispCons CompileArgs(LispCompiler compiler, SECDMachine machine, LispList args,
 					LispList valueList, LispCons code)
@@ -253,4 +332,16 @@ public abstract class LispPrimitive extends StandardLispValue
 		LispValue fncode = function;//((LispFunction)function).getCode().second();
 		return CompileArgs(compiler, machine, args, valueList, cons(fncode, code));
 	}
+
+	/**
+	 * True if CompileArgs compiles the arguments as the evaluated forms,
+	 * by the compiler.  The compiler then reads them into its
+	 * intermediate representation and passes the nodes to CompileArgs
+	 * for the forms.  The primitive that looks at its arguments, or
+	 * doesn't evaluate them, must return false.
+	 */
+	public boolean evaluatesArguments()
+	{
+		return true;
+	}
 }
@@ -49,6 +49,22 @@ public abstract class LispPrimitive0 extends LispPrimitive
 
 		machine.C.pop(); // pop the primitive
 	}
+
+	public int argumentCount()
+	{
+		return 0;
+	}
+
+	public LispValue Execute(LispValue[] stack, int top)
+			throws CompilerException
+	{
+		return Execute();
+	}
+	public LispValue call()
+			throws CompilerException
+	{
+		return Execute();
+	}
 	
 
 	/**
@@ -68,6 +68,22 @@ public abstract class LispPrimitive1 extends LispPrimitive
 		machine.S.push(result);
 		machine.C.pop();
 	}
+
+	public int argumentCount()
+	{
+		return 1;
+	}
+
+	public LispValue Execute(LispValue[] stack, int top)
+			throws CompilerException
+	{
+		return Execute(stack[top-1]);
+	}
+	public LispValue call(LispValue arg1)
+			throws CompilerException
+	{
+		return Execute(arg1);
+	}
 	
 
   /**
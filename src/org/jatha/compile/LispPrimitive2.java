@@ -74,6 +74,22 @@ public abstract class LispPrimitive2 extends LispPrimitive
 	    machine.S.push(result);
 	    machine.C.pop();
 	}
+
+	public int argumentCount()
+	{
+		return 2;
+	}
+
+	public LispValue Execute(LispValue[] stack, int top)
+			throws CompilerException
+	{
+		return Execute(stack[top-2], stack[top-1]);
+	}
+	public LispValue call(LispValue arg1, LispValue arg2)
+			throws CompilerException
+	{
+		return Execute(arg1, arg2);
+	}
 	
 
   /**
@@ -74,6 +74,22 @@ public abstract class LispPrimitive3 extends LispPrimitive
 		machine.S.push(result);
 		machine.C.pop();
 	}
+
+	public int argumentCount()
+	{
+		return 3;
+	}
+
+	public LispValue Execute(LispValue[] stack, int top)
+			throws CompilerException
+	{
+		return Execute(stack[top-3], stack[top-2], stack[top-1]);
+	}
+	public LispValue call(LispValue arg1, LispValue arg2, LispValue arg3)
+			throws CompilerException
+	{
+		return Execute(arg1, arg2, arg3);
+	}
 	
 
   /**
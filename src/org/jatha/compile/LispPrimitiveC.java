@@ -58,6 +58,22 @@ public abstract class LispPrimitiveC extends LispPrimitive
 		machine.S.push(result);
 		machine.C.pop();
 	}
+
+	public int argumentCount()
+	{
+		return 1;
+	}
+
+	public LispValue Execute(LispValue[] stack, int top)
+			throws CompilerException
+	{
+		return Execute(assertList(stack[top-1]));
+	}
+	public LispValue call(LispValue arg1)
+			throws CompilerException
+	{
+		return Execute(assertList(arg1));
+	}
 	protected abstract LispValue Execute(LispList arg)
 			throws CompilerException;
 	
@@ -83,6 +99,28 @@ public abstract class LispPrimitiveC extends LispPrimitive
 	  
 	
 
+	/**
+	 * Returns the primitive that does the call with the given number
+	 * of arguments, or null if the call needs the list of arguments.
+	 * The fixed-arity primitive takes the arguments from the stack,
+	 * so the call doesn't build the list.
+	 */
+	public LispPrimitive specialized(int count)
+	{
+		return null;
+	}
+
+	@Override
+	public LispCons CompileArgs(LispCompiler compiler, SECDMachine machine, LispValue function,
+			LispList args, LispList valueList, LispCons code)
+			throws CompilerException
+	{
+		LispPrimitive primitive = specialized(args.basic_length());
+		if (primitive != null)
+			return compiler.compileArgsLeftToRight(args, valueList, cons(primitive, code));
+		return super.CompileArgs(compiler, machine, function, args, valueList, code);
+	}
+
 	// Unlimited number of evaluated args.
 	@Override
 	public LispCons CompileArgs(LispCompiler compiler, SECDMachine machine, LispList args,
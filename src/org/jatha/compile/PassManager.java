@@ -0,0 +1,442 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+package org.jatha.compile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jatha.LispProcessor;
+import org.jatha.dynatype.LispValue;
+import org.jatha.exception.CompilerException;
+import org.jatha.machine.SECDFrame;
+
+/**
+ * The passes over the intermediate representation, run in the order
+ * they are added on every tree the compiler reads.  The optimizations
+ * may be turned off, the required passes (the tail marking, that the
+ * code generation depends on) run anyway.
+ * <p>
+ * The standard passes are here: the inlining of the small global
+ * functions, the constant folding, DEAD_CODE that
+ * drops the branches of the constant tests and the pure forms whose
+ * values are dropped, the closure conversion that makes the flat
+ * closures, and TAIL_POSITIONS that marks the calls in the
+ * tail position, so they are compiled to the tail calls.  It runs the
+ * last, after the passes that move the calls.
+ * </p>
+ * @see IR
+ */
+final class PassManager
+{
+	private final List<IR.Pass> f_passes = new ArrayList<IR.Pass>();
+
+	void add(IR.Pass pass)
+	{
+		f_passes.add(pass);
+	}
+
+	List<IR.Pass> getPasses()
+	{
+		return f_passes;
+	}
+
+	/**
+	 * Runs the passes over the tree, the root is in the tail position
+	 * if its code is followed by the RTN.
+	 */
+	IR.Node run(IR.Node root, boolean tail, boolean optimize)
+			throws CompilerException
+	{
+		return run(root, tail, 0, optimize);
+	}
+
+	/**
+	 * Runs the passes over the tree that owns the frames innermost in
+	 * its valueList: no code out of the tree refers to them.
+	 * @see IR.Pass#apply(IR.Node, boolean, int)
+	 */
+	IR.Node run(IR.Node root, boolean tail, int frames, boolean optimize)
+			throws CompilerException
+	{
+		for (IR.Pass pass : f_passes)
+			if (optimize || pass.required())
+				root = pass.apply(root, tail, frames);
+		return root;
+	}
+
+	static final IR.Pass TAIL_POSITIONS = new IR.Pass("TAIL-POSITIONS") {
+		@Override
+		boolean required()
+		{
+			return true;
+		}
+
+		@Override
+		IR.Node visit(IR.Node node, boolean tail)
+		{
+			if (node instanceof IR.Application)
+				((IR.Application)node).tail = tail;
+			return node;
+		}
+	};
+
+	static final IR.Pass DEAD_CODE = new IR.Pass("DEAD-CODE") {
+		@Override
+		IR.Node visit(IR.Node node, boolean tail)
+		{
+			if (node instanceof IR.If) {
+				IR.If branch = (IR.If)node;
+				if (branch.test instanceof IR.Constant)
+					return ((IR.Constant)branch.test).value == LispValue.NIL
+							? branch.otherwise : branch.then;
+			}
+			else if (node instanceof IR.Seq)
+				return forms((IR.Seq)node);
+			return node;
+		}
+
+		// the forms of the PROGN, those of the inner ones too, but the
+		// values that are dropped and have no effect
+		IR.Node forms(IR.Seq seq)
+		{
+			IR.Node[] forms = seq.forms;
+			List<IR.Node> kept = new ArrayList<IR.Node>(forms.length);
+			boolean changed = false;
+			for (int i = 0; i < forms.length; i++) {
+				boolean last = (i == forms.length - 1);
+				if (forms[i] instanceof IR.Seq) {
+					IR.Node[] inner = ((IR.Seq)forms[i]).forms;
+					for (int j = 0; j < inner.length; j++)
+						if (!inner[j].pure() || (last && j == inner.length - 1))
+							kept.add(inner[j]);
+					changed = true;
+				}
+				else if (!forms[i].pure() || last)
+					kept.add(forms[i]);
+				else
+					changed = true;
+			}
+			if (!changed)
+				return seq;
+			if (kept.size() == 1)
+				return kept.get(0);
+			return new IR.Seq(kept.toArray(new IR.Node[kept.size()]));
+		}
+	};
+
+	/**
+	 * The constant folding.  The references to the constants of
+	 * DEFCONSTANT are replaced by the values, the pure primitives are
+	 * called on the constant arguments, and the IF of the constant test
+	 * is replaced by the branch.  The LET that binds its variables to
+	 * the constants, and doesn't change them, is replaced by its body
+	 * with the constants in place of the variables; so is the variable
+	 * of OR.  The variables bound to the local variables are replaced too,
+	 * if the body only reads.  The call that fails is left to fail when it is run.
+	 */
+	static IR.Pass constantFolding(final LispCompiler compiler)
+	{
+		return new IR.Pass("CONSTANT-FOLDING") {
+			@Override
+			IR.Node visit(IR.Node node, boolean tail) throws CompilerException
+			{
+				if (node instanceof IR.GlobalRef) {
+					LispValue value = compiler.constantValue(((IR.GlobalRef)node).symbol);
+					if (value != null)
+						return new IR.Constant(value);
+				}
+				else if (node instanceof IR.PrimitiveCall)
+					return call((IR.PrimitiveCall)node);
+				else if (node instanceof IR.If) {
+					IR.If branch = (IR.If)node;
+					if (branch.test instanceof IR.Constant)
+						return ((IR.Constant)branch.test).value == LispValue.NIL
+								? branch.otherwise : branch.then;
+				}
+				else if (node instanceof IR.Let) {
+					IR.Let let = (IR.Let)node;
+					if (!let.specials && substitutable(let) && unframed(let.body, 0)) {
+						// the slots of the frame are in the reverse order of the variables
+						IR.Node[] values = new IR.Node[let.values.length];
+						for (int i = 0; i < values.length; i++)
+							values[i] = let.values[values.length - 1 - i];
+						// the constants are folded again where they are now
+						return unframe(let.body, 0, values).run(this, tail);
+					}
+				}
+				return node;
+			}
+
+			// The values may replace the variables: the constants, and the
+			// local variables if the body can't change them.
+			boolean substitutable(IR.Let let) throws CompilerException
+			{
+				boolean locals = false;
+				for (IR.Node value : let.values)
+					if (value instanceof IR.LocalRef && !((IR.LocalRef)value).rest)
+						locals = true;
+					else if (!(value instanceof IR.Constant))
+						return false;
+				return !locals || reads(let.body);
+			}
+
+			// True if the node only reads the variables: it has no
+			// assignments, no closures and no calls but of the pure primitives.
+			boolean reads(IR.Node node) throws CompilerException
+			{
+				final boolean[] reads = { true };
+				node.run(new IR.Pass("READS") {
+					@Override
+					IR.Node visit(IR.Node node, boolean tail)
+					{
+						if (node instanceof IR.Setq || node instanceof IR.Lambda
+								|| node instanceof IR.Application || node instanceof IR.Opaque
+								|| node instanceof IR.PrimitiveCall && !compiler.isPure(((IR.PrimitiveCall)node).primitive))
+							reads[0] = false;
+						return node;
+					}
+				}, false);
+				return reads[0];
+			}
+
+			IR.Node call(IR.PrimitiveCall call)
+			{
+				LispPrimitive primitive = call.primitive;
+				if (!compiler.isPure(primitive) || !constants(call.args) || !primitive.isSimple())
+					return call;
+				LispValue[] values = new LispValue[call.args.length];
+				for (int i = 0; i < values.length; i++)
+					values[i] = ((IR.Constant)call.args[i]).value;
+				try {
+					if (primitive instanceof LispPrimitiveC)
+						return new IR.Constant(primitive.call(LispProcessor.list(values)));
+					return new IR.Constant(primitive.Execute(values, values.length));
+				}
+				catch (Exception e) {
+					return call;
+				}
+			}
+		};
+	}
+
+	/**
+	 * The inlining of the small global functions: the call is replaced
+	 * by the LET of the parameters to the arguments around the body of
+	 * the function.  The bodies aren't inlined again in the caller.
+	 * @see LispCompiler#inline(IR.GlobalCall)
+	 */
+	static IR.Pass inlining(final LispCompiler compiler)
+	{
+		return new IR.Pass("INLINING") {
+			@Override
+			IR.Node visit(IR.Node node, boolean tail)
+			{
+				if (node instanceof IR.GlobalCall) {
+					IR.Node body = compiler.inline((IR.GlobalCall)node);
+					if (body != null)
+						return body;
+				}
+				return node;
+			}
+		};
+	}
+
+	static boolean constants(IR.Node[] nodes)
+	{
+		for (IR.Node node : nodes)
+			if (!(node instanceof IR.Constant))
+				return false;
+		return true;
+	}
+
+	// True if the frame the level of frames out may be dropped from the
+	// node: its variables aren't changed and the node has no forms that
+	// are compiled in the valueList.
+	static boolean unframed(IR.Node node, int level)
+	{
+		if (node instanceof IR.Opaque)
+			return false;
+		if (node instanceof IR.Setq) {
+			IR.Setq setq = (IR.Setq)node;
+			if (setq.variable instanceof SECDFrame.Slot && ((SECDFrame.Slot)setq.variable).depth == level)
+				return false;
+			return unframed(setq.value, level);
+		}
+		if (node instanceof IR.If) {
+			IR.If branch = (IR.If)node;
+			return unframed(branch.test, level) && unframed(branch.then, level)
+					&& unframed(branch.otherwise, level);
+		}
+		if (node instanceof IR.Seq)
+			return unframed(((IR.Seq)node).forms, level);
+		if (node instanceof IR.Let)
+			return unframed(((IR.Let)node).values, level) && unframed(((IR.Let)node).body, level + 1);
+		if (node instanceof IR.Lambda)
+			return unframed(((IR.Lambda)node).body, level + 1);
+		if (node instanceof IR.Block)
+			return unframed(((IR.Block)node).body, level);
+		if (node instanceof IR.PrimitiveCall)
+			return unframed(((IR.PrimitiveCall)node).args, level);
+		if (node instanceof IR.Call && !unframed(((IR.Call)node).function, level))
+			return false;
+		if (node instanceof IR.Application)
+			return unframed(((IR.Application)node).args, level);
+		return true;
+	}
+	static boolean unframed(IR.Node[] nodes, int level)
+	{
+		for (IR.Node node : nodes)
+			if (!unframed(node, level))
+				return false;
+		return true;
+	}
+
+	// Drops the frame the level of frames out from the node: the variables
+	// of the frame are replaced by the values, the slots and the local
+	// calls out of it are one frame nearer.
+	static IR.Node unframe(IR.Node node, int level, IR.Node[] values)
+	{
+		if (node instanceof IR.LocalRef) {
+			IR.LocalRef ref = (IR.LocalRef)node;
+			SECDFrame.Slot slot = (SECDFrame.Slot)ref.slot;
+			if (slot.depth == level)
+				return relocate(values[slot.index], level);
+			if (slot.depth > level)
+				return new IR.LocalRef(new SECDFrame.Slot(slot.depth - 1, slot.index), ref.rest);
+		}
+		else if (node instanceof IR.Setq) {
+			IR.Setq setq = (IR.Setq)node;
+			LispValue variable = setq.variable;
+			if (variable instanceof SECDFrame.Slot && ((SECDFrame.Slot)variable).depth > level)
+				variable = new SECDFrame.Slot(((SECDFrame.Slot)variable).depth - 1,
+				                              ((SECDFrame.Slot)variable).index);
+			return new IR.Setq(variable, unframe(setq.value, level, values));
+		}
+		else if (node instanceof IR.If) {
+			IR.If branch = (IR.If)node;
+			branch.test = unframe(branch.test, level, values);
+			branch.then = unframe(branch.then, level, values);
+			branch.otherwise = unframe(branch.otherwise, level, values);
+		}
+		else if (node instanceof IR.Seq)
+			unframe(((IR.Seq)node).forms, level, values);
+		else if (node instanceof IR.Let) {
+			IR.Let let = (IR.Let)node;
+			unframe(let.values, level, values);
+			let.body = unframe(let.body, level + 1, values);
+		}
+		else if (node instanceof IR.Lambda)
+			((IR.Lambda)node).body = unframe(((IR.Lambda)node).body, level + 1, values);
+		else if (node instanceof IR.Block)
+			((IR.Block)node).body = unframe(((IR.Block)node).body, level, values);
+		else if (node instanceof IR.PrimitiveCall)
+			unframe(((IR.PrimitiveCall)node).args, level, values);
+		else if (node instanceof IR.LocalCall) {
+			IR.LocalCall call = (IR.LocalCall)node;
+			unframe(call.args, level, values);
+			// the local function is defined out of the tree
+			return new IR.LocalCall(call.function, call.depth - 1, call.args);
+		}
+		else if (node instanceof IR.Application) {
+			if (node instanceof IR.Call)
+				((IR.Call)node).function = unframe(((IR.Call)node).function, level, values);
+			unframe(((IR.Application)node).args, level, values);
+		}
+		return node;
+	}
+	static void unframe(IR.Node[] nodes, int level, IR.Node[] values)
+	{
+		for (int i = 0; i < nodes.length; i++)
+			nodes[i] = unframe(nodes[i], level, values);
+	}
+
+	// the value of the dropped frame, the level of frames in it
+	static IR.Node relocate(IR.Node value, int level)
+	{
+		if (value instanceof IR.LocalRef) {
+			SECDFrame.Slot slot = (SECDFrame.Slot)((IR.LocalRef)value).slot;
+			return new IR.LocalRef(new SECDFrame.Slot(slot.depth + level, slot.index), false);
+		}
+		return value;
+	}
+
+	// True if the node refers to no frame out of the level frames: it
+	// may be moved in any other frame.
+	static boolean closed(IR.Node node, int level)
+	{
+		if (node instanceof IR.Opaque || node instanceof IR.LocalCall)
+			return false;
+		if (node instanceof IR.LocalRef)
+			return ((SECDFrame.Slot)((IR.LocalRef)node).slot).depth <= level;
+		if (node instanceof IR.Setq) {
+			IR.Setq setq = (IR.Setq)node;
+			if (setq.variable instanceof SECDFrame.Slot && ((SECDFrame.Slot)setq.variable).depth > level)
+				return false;
+			return closed(setq.value, level);
+		}
+		if (node instanceof IR.If) {
+			IR.If branch = (IR.If)node;
+			return closed(branch.test, level) && closed(branch.then, level)
+					&& closed(branch.otherwise, level);
+		}
+		if (node instanceof IR.Seq)
+			return closed(((IR.Seq)node).forms, level);
+		if (node instanceof IR.Let)
+			return closed(((IR.Let)node).values, level) && closed(((IR.Let)node).body, level + 1);
+		if (node instanceof IR.Lambda)
+			return closed(((IR.Lambda)node).body, level + 1);
+		if (node instanceof IR.Block)
+			return closed(((IR.Block)node).body, level);
+		if (node instanceof IR.PrimitiveCall)
+			return closed(((IR.PrimitiveCall)node).args, level);
+		if (node instanceof IR.Call && !closed(((IR.Call)node).function, level))
+			return false;
+		if (node instanceof IR.Application)
+			return closed(((IR.Application)node).args, level);
+		return true;
+	}
+	static boolean closed(IR.Node[] nodes, int level)
+	{
+		for (IR.Node node : nodes)
+			if (!closed(node, level))
+				return false;
+		return true;
+	}
+
+	// the number of the nodes of the tree
+	static int size(IR.Node node) throws CompilerException
+	{
+		final int[] size = { 0 };
+		node.run(new IR.Pass("SIZE") {
+			@Override
+			IR.Node visit(IR.Node node, boolean tail)
+			{
+				size[0]++;
+				return node;
+			}
+		}, false);
+		return size[0];
+	}
+}
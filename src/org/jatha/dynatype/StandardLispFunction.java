@@ -65,7 +65,7 @@ public class StandardLispFunction extends StandardLispValue implements LispFunct
 
 	public String toString()
 	{
-		return toString("standardFunction");
+		return toStringNamed("standardFunction");
 	}
 	protected String toStringNamed(String name)
 	{
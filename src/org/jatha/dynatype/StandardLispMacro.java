@@ -42,6 +42,6 @@ public class StandardLispMacro extends StandardLispFunction implements LispMacro
 
 	public String toString()
 	{
-		return toString("standardMacro");
+		return toStringNamed("standardMacro");
 	}
 }
\ No newline at end of file
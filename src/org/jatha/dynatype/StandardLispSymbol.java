@@ -65,6 +65,7 @@ public class StandardLispSymbol extends StandardLispAtom implements LispSymbol
 	protected  LispValue    f_function;     // Function value
 	protected  LispString   f_name;         // Print name
 	protected  LispValue    f_value;        // Assigned value
+	private volatile int    f_functionVersion = 0;  // of the function cell
 
 	protected  boolean    f_isExternalInPackage = false;
 	protected  boolean    f_isSpecial = false;  // Special? (dynamically-bound)
@@ -231,29 +232,42 @@ public class StandardLispSymbol extends StandardLispAtom implements LispSymbol
   {
     // function or macro
     if (newCode instanceof LispFunction/* && !(newCode instanceof LispMacro)*/) // ??
-    {
       f_function = newCode;
-      return f_function;
-    }
 
-    if (newCode instanceof LispPrimitive) // ??
-    {
+    else if (newCode instanceof LispPrimitive) // ??
       f_function = newCode;
-      return f_function;
-    }
-    
+
     // A macro has the symbol :MACRO as the first element.
-    if (isMacroCode(newCode))
-    {
+    else if (isMacroCode(newCode))
       f_function = new StandardLispMacro(this, cdr(newCode));
-      return f_function;
-    }
 
     // Else, create a new function.
-    f_function = new StandardLispFunction(this, newCode);
+    else
+      f_function = new StandardLispFunction(this, newCode);
+
+    functionChanged();   // the calls cache the function
     return f_function;
   }
 
+  /**
+   * The version of the function cell, changed after every change of
+   * the function.  The inline caches of the calls keep the function
+   * with the version it was read at.
+   */
+  public int functionVersion()
+  {
+    return f_functionVersion;
+  }
+
+  /**
+   * Changes the version of the function cell, also when the function
+   * is compiled to another form, e.g. the JVM class.
+   */
+  public synchronized void functionChanged()
+  {
+    f_functionVersion++;
+  }
+
   public LispValue setf_symbol_value(LispValue newValue)
   {
     f_value = newValue;
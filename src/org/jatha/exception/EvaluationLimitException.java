@@ -0,0 +1,55 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+package org.jatha.exception;
+
+/**
+ * Thrown by the machine when the evaluation runs out of its budget of
+ * the steps or its time, or is cancelled from other thread.
+ *
+ * @see org.jatha.Lisp#eval(org.jatha.dynatype.LispValue, long, long, java.util.concurrent.TimeUnit)
+ * @see org.jatha.machine.SECDMachine#cancel()
+ */
+@SuppressWarnings("serial")
+public class EvaluationLimitException extends LispException
+{
+	public enum Limit { BUDGET, DEADLINE, CANCELLED }
+
+	private final Limit f_limit;
+
+	public EvaluationLimitException(Limit limit)
+	{
+		super(limit == Limit.BUDGET ? "The evaluation exceeded its budget of steps."
+		    : limit == Limit.DEADLINE ? "The evaluation exceeded its deadline."
+		    : "The evaluation was cancelled.");
+		f_limit = limit;
+	}
+
+	/**
+	 * Returns the limit that stopped the evaluation.
+	 */
+	public Limit getLimit()
+	{
+		return f_limit;
+	}
+}
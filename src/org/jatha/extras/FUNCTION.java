@@ -19,17 +19,31 @@ import org.jatha.dynatype.LispList;
 import org.jatha.dynatype.LispNumber;
 import org.jatha.dynatype.LispSymbol;
 import org.jatha.dynatype.LispValue;
+import org.jatha.dynatype.StandardLispCons;
 import org.jatha.dynatype.StandardLispReal;
 import org.jatha.exception.CompilerException;
 import org.jatha.exception.LispAssertionException;
 import org.jatha.exception.LispValueNotANumberException;
 import org.jatha.exception.WrongArgumentTypeException;
+import org.jatha.machine.SECDFrame;
 import org.jatha.machine.SECDMachine;
 
 public class FUNCTION implements LispExtension
 {
 	private final Charset UTF8_CHARSET = Charset.forName("UTF-8");
 	
+	// the elements of the list, for the calls of the functions
+	static LispValue[] array(LispValue list)
+	{
+		int length = 0;
+		for (LispValue p = list; p instanceof LispCons; p = ((LispCons)p).cdr())
+			length++;
+		LispValue[] values = new LispValue[length];
+		for (int i = 0; i < length; i++, list = ((LispCons)list).cdr())
+			values[i] = ((LispCons)list).car();
+		return values;
+	}
+
 	@Override
 	public void Register(final LispCompiler compiler)
 	{
@@ -68,6 +82,11 @@ public class FUNCTION implements LispExtension
 					throws CompilerException
 			{
 				return compiler.compileConstantArgsLeftToRight(args, valueList, code);
+			}
+			@Override
+			public boolean evaluatesArguments()
+			{
+				return false;
 			}});
 		
 		
@@ -97,7 +116,7 @@ public class FUNCTION implements LispExtension
 				{
 					machine.S.pop();
 					machine.S.push(list(fn));
-					machine.E.push(fnArgs);
+					machine.E.assign(new SECDFrame(fnArgs, machine.E.value()));
 				}
 
 				machine.C.push(EVAL);
@@ -166,37 +185,97 @@ public class FUNCTION implements LispExtension
 			}});
 
 		
-/*		// todo: must be integrated, but needs to test
-		Register(new LispPrimitiveC(f_lisp, "FUNCALL", 1) {
-			  public void Execute(SECDMachine machine)
-			  {
-			    // The args list is an expression to be evaluated.
-			    // Need to quote the argument(s) because they have already been evaluated.
-			    // The EVAL will evaluate them again.
-			    LispValue args   = machine.S.pop();
-			    LispValue fn     = ((LispCons)args).car();
-			    LispValue fnArgs = ((LispCons)args).cdr();
-
-			    machine.S.push(f_lisp.makeCons(fn, quoteList(fnArgs)));
+		// The higher-order functions call the functions by the machine
+		// of the Lisp, the engines call them as the simple primitives.
+		compiler.Register(new LispPrimitiveC("FUNCALL", 1) {
+			@Override
+			protected LispValue Execute(LispList args) throws CompilerException {
+				return compiler.getLisp().MACHINE.invoke(args.car(), array(args.cdr()));
+			}});
 
-			    // (mh) 4 Sep 2004
-			    // This seems like a kludge, but I don't know how to get around it.
-			    // if the fn is a user-defined function, we have to move the arguments to the E register.
-			    if ((fn instanceof LispFunction) && (! ((LispFunction)fn).isBuiltin()))
-			    {
-			      machine.S.pop();
-			      machine.S.push(f_lisp.makeList(fn));
-			      machine.E.push(fnArgs);
-			    }
-
-			    machine.C.pop();
-			    machine.C.push(EVAL);
-			  }
-			protected LispValue Execute(LispValue args) {
-				return null;
+		compiler.Register(new LispPrimitiveC("MAPCAR", 2) {
+			@Override
+			protected LispValue Execute(LispList args) throws CompilerException {
+				SECDMachine machine = compiler.getLisp().MACHINE;
+				LispValue fn = machine.function(args.car());
+				LispValue[] lists = array(args.cdr());
+
+				LispCons head = cons(NIL, NIL);
+				LispCons p = head;
+				for (;;) {
+					LispValue[] values = new LispValue[lists.length];
+					for (int i = 0; i < lists.length; i++) {
+						if (!(lists[i] instanceof StandardLispCons))
+							return head.cdr();
+						StandardLispCons list = (StandardLispCons)lists[i];
+						values[i] = list.car();
+						lists[i] = list.cdr();
+					}
+					p.setf_cdr(cons(machine.invoke(fn, values), NIL));
+					p = (LispCons)p.cdr();
+				}
+			}});
+
+		// (reduce fn list [:initial-value value])
+		compiler.Register(new LispPrimitiveC("REDUCE", 2, 4) {
+			@Override
+			protected LispValue Execute(LispList args) throws CompilerException {
+				SECDMachine machine = compiler.getLisp().MACHINE;
+				LispValue fn = machine.function(args.car());
+				LispValue list = car(cdr(args));
+				LispValue keys = cdr(cdr(args));
+
+				LispValue result;
+				if (keys != NIL) {
+					if (!car(keys).toStringSimple().equalsIgnoreCase("INITIAL-VALUE") || cdr(keys) == NIL)
+						throw new WrongArgumentTypeException("REDUCE", ":INITIAL-VALUE", car(keys).toString());
+					result = car(cdr(keys));
+				}
+				else if (list == NIL)
+					return machine.invoke(fn);
+				else {
+					result = car(list);
+					list = cdr(list);
+				}
+				for (; list != NIL; list = cdr(list))
+					result = machine.invoke(fn, result, car(list));
+				return result;
+			}});
+
+		// (sort list predicate), a stable merge sort that calls the
+		// predicate once per comparison.  The list is not modified.
+		LispPrimitive SORT = new LispPrimitive2("SORT") {
+			@Override
+			protected LispValue Execute(LispValue list, LispValue predicate) throws CompilerException {
+				SECDMachine machine = compiler.getLisp().MACHINE;
+				LispValue[] values = array(list);
+				sort(machine, machine.function(predicate), values, values.clone(), 0, values.length);
+
+				LispValue result = NIL;
+				for (int i = values.length - 1; i >= 0; i--)
+					result = cons(values[i], result);
+				return result;
 			}
-		}, SYSTEM_PKG);
-*/
+			// sorts values[from, to), the buffer has the same contents
+			void sort(SECDMachine machine, LispValue predicate, LispValue[] values, LispValue[] buffer, int from, int to)
+					throws CompilerException
+			{
+				if (to - from < 2)
+					return;
+				int middle = (from + to) >>> 1;
+				sort(machine, predicate, buffer, values, from, middle);
+				sort(machine, predicate, buffer, values, middle, to);
+				// merge the halves of the buffer, the equal ones stay in order
+				for (int i = from, j = middle, k = from; k < to; k++) {
+					if (j < to && (i == middle || machine.invoke(predicate, buffer[j], buffer[i]) != NIL))
+						values[k] = buffer[j++];
+					else
+						values[k] = buffer[i++];
+				}
+			}};
+		compiler.Register(SORT);
+		compiler.getLisp().intern("STABLE-SORT").setf_symbol_function(SORT);
+		
 		
 		InputStreamReader resourceReader = null;
 		try
@@ -10,6 +10,7 @@ import org.jatha.Lisp;
 import org.jatha.Tests;
 import org.jatha.compile.LispCompiler;
 import org.jatha.compile.LispExtension;
+import org.jatha.compile.LispPrimitive;
 import org.jatha.compile.LispPrimitive1;
 import org.jatha.compile.LispPrimitive2;
 import org.jatha.compile.LispPrimitiveC;
@@ -17,6 +18,7 @@ import org.jatha.dynatype.LispCons;
 import org.jatha.dynatype.LispList;
 import org.jatha.dynatype.LispNumber;
 import org.jatha.dynatype.LispValue;
+import org.jatha.dynatype.StandardLispInteger;
 import org.jatha.dynatype.StandardLispReal;
 import org.jatha.exception.CompilerException;
 import org.jatha.exception.LispValueNotANumberException;
@@ -29,6 +31,8 @@ public class MATH implements LispExtension
 	public void Register(LispCompiler compiler)
 	{
 		// +, -, *, /, =
+		// The calls with one or two arguments are compiled to the
+		// fixed-arity primitives below, the other calls build the list.
 		compiler.Register(new LispPrimitiveC("+", 0) {
 			protected LispValue Execute(LispList args) {
 				if (args == NIL)
@@ -36,12 +40,18 @@ public class MATH implements LispExtension
 				LispNumber x = assertNumber(args.car());
 				return x.add(args.cdr());
 			}
+			public LispPrimitive specialized(int count) {
+				return count == 2 ? ADD2 : null;
+			}
 		});
 		compiler.Register(new LispPrimitiveC("-", 1) {
 			protected LispValue Execute(LispList args) {
 				LispNumber x = assertNumber(args.car());
 				return x.sub(args.cdr());
 			}
+			public LispPrimitive specialized(int count) {
+				return count == 1 ? NEG1 : count == 2 ? SUB2 : null;
+			}
 		});
 		compiler.Register(new LispPrimitiveC("*", 0) {
 			protected LispValue Execute(LispList args) {
@@ -50,12 +60,18 @@ public class MATH implements LispExtension
 				LispNumber x = assertNumber(args.car());
 				return x.mul(args.cdr());
 			}
+			public LispPrimitive specialized(int count) {
+				return count == 2 ? MUL2 : null;
+			}
 		});
 		compiler.Register(new LispPrimitiveC("/", 1) {
 			protected LispValue Execute(LispList args) {
 				LispNumber x = assertNumber(args.car());
 				return x.div(args.cdr());
 			}
+			public LispPrimitive specialized(int count) {
+				return count == 2 ? DIV2 : null;
+			}
 		});
 		
 		compiler.Register(new LispPrimitiveC("=", 2) {
@@ -73,7 +89,10 @@ public class MATH implements LispExtension
 			    	}
 			    	return T;
 			    }
-			}			
+			}
+			public LispPrimitive specialized(int count) {
+				return count == 2 ? NUMEQ2 : null;
+			}
 		});
 		
 		compiler.Register(new LispPrimitiveC("<", 2) {
@@ -88,6 +107,9 @@ public class MATH implements LispExtension
 				}
 				return T;
 			}
+			public LispPrimitive specialized(int count) {
+				return count == 2 ? LT2 : null;
+			}
 		});
 		compiler.Register(new LispPrimitiveC(">", 2) {
 			@Override
@@ -101,6 +123,9 @@ public class MATH implements LispExtension
 				}
 				return T;
 			}
+			public LispPrimitive specialized(int count) {
+				return count == 2 ? GT2 : null;
+			}
 		});
 		
 		
@@ -125,4 +150,111 @@ public class MATH implements LispExtension
 		
 		// 
 	}
-}
\ No newline at end of file
+
+	// The fixnums and the doubles are handled inline, the other
+	// numbers (the bignums, the mixed arguments, the overflows) by
+	// the same methods as the variadic calls.
+
+	// bignums are StandardLispInteger too
+	static boolean fixnum(LispValue x)
+	{
+		return x.getClass() == StandardLispInteger.class;
+	}
+	static boolean flonum(LispValue x)
+	{
+		return x.getClass() == StandardLispReal.class;
+	}
+	static long longValue(LispValue x)
+	{
+		return ((StandardLispInteger)x).getLongValue();
+	}
+	static double doubleValue(LispValue x)
+	{
+		return ((StandardLispReal)x).getDoubleValue();
+	}
+
+	static final LispPrimitive2 ADD2 = new LispPrimitive2("ADD2") {
+		protected LispValue Execute(LispValue a, LispValue b) {
+			if (fixnum(a) && fixnum(b)) {
+				long x = longValue(a), y = longValue(b), r = x + y;
+				if (((x ^ r) & (y ^ r)) >= 0)  // no overflow
+					return integer(r);
+			}
+			else if (flonum(a) && flonum(b))
+				return real(doubleValue(a) + doubleValue(b));
+			return assertNumber(a).add(cons(b, NIL));
+		}
+	};
+	static final LispPrimitive2 SUB2 = new LispPrimitive2("SUB2") {
+		protected LispValue Execute(LispValue a, LispValue b) {
+			if (fixnum(a) && fixnum(b)) {
+				long x = longValue(a), y = longValue(b), r = x - y;
+				if (((x ^ y) & (x ^ r)) >= 0)  // no overflow
+					return integer(r);
+			}
+			else if (flonum(a) && flonum(b))
+				return real(doubleValue(a) - doubleValue(b));
+			return assertNumber(a).sub(cons(b, NIL));
+		}
+	};
+	static final LispPrimitive1 NEG1 = new LispPrimitive1("NEG1") {
+		protected LispValue Execute(LispValue a) {
+			if (fixnum(a) && longValue(a) != Long.MIN_VALUE)
+				return integer(-longValue(a));
+			else if (flonum(a))
+				return real(-doubleValue(a));
+			return assertNumber(a).sub(NIL);
+		}
+	};
+	static final LispPrimitive2 MUL2 = new LispPrimitive2("MUL2") {
+		protected LispValue Execute(LispValue a, LispValue b) {
+			if (fixnum(a) && fixnum(b)) {
+				long x = longValue(a), y = longValue(b), r = x * y;
+				if (x == 0 || (r / x == y && !(x == -1 && y == Long.MIN_VALUE)))
+					return integer(r);
+			}
+			else if (flonum(a) && flonum(b))
+				return real(doubleValue(a) * doubleValue(b));
+			return assertNumber(a).mul(cons(b, NIL));
+		}
+	};
+	static final LispPrimitive2 DIV2 = new LispPrimitive2("DIV2") {
+		protected LispValue Execute(LispValue a, LispValue b) {
+			// the exact quotient of the fixnums, the rest makes a real
+			if (fixnum(a) && fixnum(b)) {
+				long x = longValue(a), y = longValue(b);
+				if (y != 0 && y != -1 && x % y == 0)
+					return integer(x / y);
+			}
+			return assertNumber(a).div(cons(b, NIL));
+		}
+	};
+
+	static final LispPrimitive2 NUMEQ2 = new LispPrimitive2("NUMEQ2") {
+		protected LispValue Execute(LispValue a, LispValue b) {
+			if (fixnum(a) && fixnum(b))
+				return longValue(a) == longValue(b) ? T : NIL;
+			else if (flonum(a) && flonum(b))
+				return doubleValue(a) == doubleValue(b) ? T : NIL;
+			return a.equalNumeric(b);
+		}
+	};
+	static final LispPrimitive2 LT2 = new LispPrimitive2("LT2") {
+		protected LispValue Execute(LispValue a, LispValue b) {
+			if (fixnum(a) && fixnum(b))
+				return longValue(a) < longValue(b) ? T : NIL;
+			else if (flonum(a) && flonum(b))
+				return doubleValue(a) < doubleValue(b) ? T : NIL;
+			return a.lessThan(b);
+		}
+	};
+	static final LispPrimitive2 GT2 = new LispPrimitive2("GT2") {
+		protected LispValue Execute(LispValue a, LispValue b) {
+			if (fixnum(a) && fixnum(b))
+				return longValue(a) > longValue(b) ? T : NIL;
+			else if (flonum(a) && flonum(b))
+				return doubleValue(a) > doubleValue(b) ? T : NIL;
+			return a.greaterThan(b);
+		}
+	};
+}
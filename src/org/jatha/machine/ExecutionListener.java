@@ -0,0 +1,83 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+
+package org.jatha.machine;
+
+import org.jatha.dynatype.*;
+
+/**
+ * Receives the events of the list machine, set by
+ * {@link SECDMachine#setListener}.  While a listener is set the machine
+ * runs all the code by the list engine, in the instrumented loop; the
+ * loop without a listener doesn't check for it.
+ * <pre>
+ *    lisp.MACHINE.setListener(new ExecutionListener.Adapter() {
+ *        public void call(SECDMachine machine, LispValue code, LispValue args) {
+ *            System.out.println("call " + args);
+ *        }
+ *    });
+ * </pre>
+ * A tail call replaces the frame of the caller, so it is reported as
+ * a call but there is no return of the caller.  The functions compiled
+ * to the JVM classes don't run on the machine and aren't reported, and
+ * neither are the frames left by RETURN-FROM and THROW.
+ */
+public interface ExecutionListener
+{
+	/**
+	 * Called before the instruction runs, C is the code that starts
+	 * with it.
+	 */
+	void instruction(SECDMachine machine, LispValue opcode);
+
+	/**
+	 * Called when the machine enters the function.
+	 * @param code the list code of the function
+	 * @param args the list of the arguments
+	 */
+	void call(SECDMachine machine, LispValue code, LispValue args);
+
+	/**
+	 * Called when the function returns the value to its caller.
+	 */
+	void ret(SECDMachine machine, LispValue value);
+
+	/**
+	 * Called when the instruction fails, before the exception leaves
+	 * the machine.
+	 */
+	void error(SECDMachine machine, LispValue opcode, Exception error);
+
+	/**
+	 * The listener that ignores all the events, to be extended.
+	 */
+	public static class Adapter implements ExecutionListener
+	{
+		public void instruction(SECDMachine machine, LispValue opcode) {}
+		public void call(SECDMachine machine, LispValue code, LispValue args) {}
+		public void ret(SECDMachine machine, LispValue value) {}
+		public void error(SECDMachine machine, LispValue opcode, Exception error) {}
+	}
+}
@@ -0,0 +1,773 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+package org.jatha.machine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jatha.compile.LispPrimitive;
+import org.jatha.dynatype.*;
+import org.jatha.exception.*;
+
+import
+static org.jatha.dynatype.LispValue.*;
+
+/**
+ * Flat form of the SECD code.
+ *
+ * The list code produced by the LispCompiler is assembled into
+ * an <tt>int[]</tt> instruction stream and a constant pool, and is
+ * run by a switch-dispatched loop with a program counter instead
+ * of walking the C register.  SEL/JOIN and TEST become relative
+ * jumps, local variable slots are inlined as ints, and the
+ * nested LDF bodies are assembled into their own SECDBytecode
+ * objects.
+ *
+ * The environment has the same layout as in the list machine, so
+ * the closures made by both forms can call each other.
+ *
+ * Code that uses primitives working with the machine registers
+ * directly (EVAL, APPLY, RETURN-FROM, ...) can't be assembled and
+ * is run by the list machine.
+ *
+ * @see SECDMachine#setEngine(SECDMachine.Engine)
+ */
+public final class SECDBytecode extends SECDCode
+{
+	// ------  Instructions  --------------
+	// operands follow the opcode, jump offsets are relative to the next instruction
+	public static final int LDNIL     =  0;
+	public static final int LDT       =  1;
+	public static final int LDC       =  2;  // constant
+	public static final int LD        =  3;  // depth index
+	public static final int LDR       =  4;  // depth index
+	public static final int LD_GLOBAL =  5;  // constant (symbol)
+	public static final int ST        =  6;
+	public static final int LDF       =  7;  // constant (SECDBytecode)
+	public static final int LDFC      =  8;  // constant (the inline cache of the symbol)
+	public static final int JMP       =  9;  // offset
+	public static final int JMPF      = 10;  // offset, jumps if NIL
+	public static final int JMPT      = 11;  // offset, jumps if not NIL
+	public static final int AP        = 12;
+	public static final int DAP       = 13;
+	public static final int RAP       = 14;
+	public static final int DUM       = 15;
+	public static final int RTN       = 16;
+	public static final int RTN_IF    = 17;
+	public static final int RTN_IT    = 18;
+	public static final int LIS       = 19;  // count
+	public static final int SP_BIND   = 20;  // constant (symbol)
+	public static final int SP_UNBIND = 21;  // constant (symbol)
+	public static final int CALL      = 22;  // constant (LispPrimitive), argument count
+	public static final int STOP      = 23;
+	public static final int APN       = 24;  // argument count
+	public static final int DAPN      = 25;  // argument count
+	// intrinsics
+	public static final int CAR       = 26;
+	public static final int CDR       = 27;
+	public static final int CONS      = 28;
+	public static final int EQ        = 29;
+	public static final int NOT       = 30;  // also NULL?
+	public static final int ATOMP     = 31;
+	// the frame of LET
+	public static final int ENTER     = 32;  // count
+	public static final int LEAVE     = 33;
+	public static final int POP       = 34;
+	// the local functions
+	public static final int APL       = 35;  // constant (SECDMachine.Local), depth, argument count
+	public static final int DAPL      = 36;  // constant (SECDMachine.Local), depth, argument count
+	public static final int LDL       = 37;  // constant (SECDMachine.Local), depth
+	// the flat closure
+	public static final int LDFF      = 38;  // constant (SECDBytecode), constant (SECDFrame.Captures)
+
+	static final String[] NAMES = {
+		"LDNIL", "LDT", "LDC", "LD", "LDR", "LD_GLOBAL", "ST", "LDF", "LDFC",
+		"JMP", "JMPF", "JMPT", "AP", "DAP", "RAP", "DUM", "RTN", "RTN_IF", "RTN_IT",
+		"LIS", "SP_BIND", "SP_UNBIND", "CALL", "STOP", "APN", "DAPN",
+		"CAR", "CDR", "CONS", "EQ", "NOT", "ATOM?",
+		"ENTER", "LEAVE", "POP", "APL", "DAPL", "LDL",
+		"LDFF"
+	};
+	static final int[] OPERANDS = {
+		0, 0, 1, 2, 2, 1, 0, 1, 1,
+		1, 1, 1, 0, 0, 0, 0, 0, 0, 0,
+		1, 1, 1, 2, 0, 1, 1,
+		0, 0, 0, 0, 0, 0,
+		1, 0, 0, 3, 3, 2,
+		2
+	};
+
+	final int[] code;
+	final LispValue[] constants;
+	final int maxStack;   // operand stack depth needed by this code
+
+	SECDBytecode(int[] code, LispValue[] constants, int maxStack, LispValue source)
+	{
+		super(source);
+		this.code = code;
+		this.constants = constants;
+		this.maxStack = maxStack;
+	}
+
+	/**
+	 * Returns the length of the instruction stream in ints,
+	 * including the code of the nested functions.
+	 */
+	public int codeLength()
+	{
+		int length = code.length;
+		for (LispValue constant : constants)
+			if (constant instanceof SECDBytecode)
+				length += ((SECDBytecode)constant).codeLength();
+		return length;
+	}
+
+	/**
+	 * Returns the number of the constant pool entries,
+	 * including the pools of the nested functions.
+	 */
+	public int constantCount()
+	{
+		int count = constants.length;
+		for (LispValue constant : constants)
+			if (constant instanceof SECDBytecode)
+				count += ((SECDBytecode)constant).constantCount() - 1;
+		return count;
+	}
+
+	public String toString()
+	{
+		StringBuilder out = new StringBuilder("#<bytecode");
+		for (int pc = 0; pc < code.length; ) {
+			int op = code[pc++];
+			out.append(' ').append(NAMES[op]);
+			for (int i = 0; i < OPERANDS[op]; i++, pc++) {
+				if (op == LD || op == LDR || op == LIS || op == ENTER || op == JMP || op == JMPF || op == JMPT
+				    || op == APN || op == DAPN || (op == CALL && i == 1)
+				    || ((op == APL || op == DAPL || op == LDL) && i > 0))
+					out.append(' ').append(code[pc]);
+				else
+					out.append(' ').append(constants[code[pc]]);
+			}
+		}
+		return out.append('>').toString();
+	}
+
+/* ------------------  ASSEMBLER   ------------------------------ */
+
+	/**
+	 * Assembles the SECD list code.
+	 * @param list code produced by the LispCompiler
+	 * @return the bytecode or null if the code can't be assembled
+	 */
+	public static SECDBytecode assemble(LispValue list)
+	{
+		Assembler assembler = new Assembler();
+		if (!assembler.emit(list, null))
+			return null;
+		return new SECDBytecode(Arrays.copyOf(assembler.code, assembler.length),
+		                        assembler.constants.toArray(new LispValue[assembler.constants.size()]),
+		                        assembler.maxDepth,
+		                        list);
+	}
+
+	static final class Assembler
+	{
+		int[] code = new int[32];
+		int length = 0;
+		List<LispValue> constants = new ArrayList<LispValue>();
+		int depth = 0, maxDepth = 0;
+
+		void emit(int value)
+		{
+			if (length == code.length)
+				code = Arrays.copyOf(code, length * 2);
+			code[length++] = value;
+		}
+		void emit(int op, int operand)
+		{
+			emit(op);
+			emit(operand);
+		}
+		int constant(LispValue value)
+		{
+			for (int i = 0; i < constants.size(); i++)
+				if (constants.get(i) == value)
+					return i;
+			constants.add(value);
+			return constants.size() - 1;
+		}
+		int jump(int op)
+		{
+			emit(op, 0);
+			return length - 1;
+		}
+		void patch(int at)
+		{
+			code[at] = length - at - 1;
+		}
+		void push(int count)
+		{
+			depth += count;
+			if (depth > maxDepth)
+				maxDepth = depth;
+		}
+
+		/**
+		 * Emits the code list.  JOINs are emitted as jumps, their
+		 * positions are collected to the <tt>joins</tt> list.
+		 */
+		boolean emit(LispValue list, List<Integer> joins)
+		{
+			while (list != NIL)
+			{
+				LispValue op = car(list);
+				list = cdr(list);
+
+				if (op instanceof SECDMachine.Superinstruction) {
+					list = ((SECDMachine.Superinstruction)op).expand(list);
+					continue;
+				}
+				if (op == SECDMachine.LDNIL) {
+					emit(LDNIL); push(1);
+				}
+				else if (op == SECDMachine.LDT) {
+					emit(LDT); push(1);
+				}
+				else if (op == SECDMachine.LDC) {
+					emit(LDC, constant(car(list))); push(1);
+					list = cdr(list);
+				}
+				else if (op == SECDMachine.LD || op == SECDMachine.LDR) {
+					SECDFrame.Slot slot = (SECDFrame.Slot)car(list);
+					emit(op == SECDMachine.LD ? LD : LDR);
+					emit(slot.depth);
+					emit(slot.index);
+					push(1);
+					list = cdr(list);
+				}
+				else if (op == SECDMachine.LD_GLOBAL) {
+					emit(LD_GLOBAL, constant(car(list))); push(1);
+					list = cdr(list);
+				}
+				else if (op == SECDMachine.ST) {
+					emit(ST); push(-1);
+				}
+				else if (op == SECDMachine.LDF) {
+					SECDBytecode body = assemble(car(list));
+					if (body == null)
+						return false;
+					emit(LDF, constant(body)); push(1);
+					list = cdr(list);
+				}
+				else if (op == SECDMachine.LDFF) {
+					SECDBytecode body = assemble(car(list));
+					if (body == null)
+						return false;
+					emit(LDFF, constant(body));
+					emit(constant(car(cdr(list))));
+					push(1);
+					list = cdr(cdr(list));
+				}
+				else if (op == SECDMachine.LDFC) {
+					emit(LDFC, constant(new SECDMachine.InlineCache(car(list), true))); push(1);
+					list = cdr(list);
+				}
+				else if (op == SECDMachine.SEL) {
+					push(-1);
+					int depth = this.depth;
+					List<Integer> ends = new ArrayList<Integer>();
+					int otherwise = jump(JMPF);
+					if (!emit(car(list), ends))
+						return false;
+					patch(otherwise);
+					this.depth = depth;
+					if (!emit(car(cdr(list)), ends))
+						return false;
+					for (int end : ends)
+						patch(end);
+					list = cdr(cdr(list));
+				}
+				else if (op == SECDMachine.JOIN) {
+					if (joins == null)
+						return false;
+					joins.add(jump(JMP));
+					return true;
+				}
+				else if (op == SECDMachine.TEST) {
+					push(-1);
+					int depth = this.depth;
+					int then = jump(JMPT);
+					if (!emit(cdr(list), joins))
+						return false;
+					patch(then);
+					this.depth = depth;
+					return emit(car(list), joins);
+				}
+				else if (op == SECDMachine.AP || op == SECDMachine.RAP) {
+					emit(op == SECDMachine.AP ? AP : RAP); push(-1);
+				}
+				else if (op == SECDMachine.DAP) {
+					emit(DAP);
+					return true;
+				}
+				else if (op instanceof SECDMachine.Apply) {
+					SECDMachine.Apply apply = (SECDMachine.Apply)op;
+					emit(apply.tail ? DAPN : APN, apply.arity);
+					if (apply.tail)
+						return true;
+					push(-apply.arity);
+				}
+				else if (op instanceof SECDMachine.LocalApply) {
+					boolean tail = ((SECDMachine.LocalApply)op).tail;
+					int count = (int)((LispInteger)car(cdr(cdr(list)))).getLongValue();
+					emit(tail ? DAPL : APL, constant(car(list)));
+					emit((int)((LispInteger)car(cdr(list))).getLongValue());
+					emit(count);
+					list = cdr(cdr(cdr(list)));
+					if (tail)
+						return true;
+					push(1 - count);
+				}
+				else if (op == SECDMachine.LDL) {
+					emit(LDL, constant(car(list)));
+					emit((int)((LispInteger)car(cdr(list))).getLongValue());
+					push(1);
+					list = cdr(cdr(list));
+				}
+				else if (op == SECDMachine.DUM)
+					emit(DUM);
+				else if (op == SECDMachine.RTN) {
+					emit(RTN);
+					return true;
+				}
+				else if (op == SECDMachine.RTN_IF || op == SECDMachine.RTN_IT) {
+					emit(op == SECDMachine.RTN_IF ? RTN_IF : RTN_IT); push(-1);
+				}
+				else if (op == SECDMachine.LIS) {
+					int count = (int)((LispInteger)car(list)).getLongValue();
+					emit(LIS, count); push(1 - count);
+					list = cdr(list);
+				}
+				else if (op == SECDMachine.ENTER) {
+					int count = (int)((LispInteger)car(list)).getLongValue();
+					emit(ENTER, count); push(-count);
+					list = cdr(list);
+				}
+				else if (op == SECDMachine.LEAVE)
+					emit(LEAVE);
+				else if (op == SECDMachine.POP) {
+					emit(POP); push(-1);
+				}
+				else if (op == SECDMachine.SP_BIND) {
+					emit(SP_BIND, constant(car(list))); push(-1);
+					list = cdr(list);
+				}
+				else if (op == SECDMachine.SP_UNBIND) {
+					emit(SP_UNBIND, constant(car(list)));
+					list = cdr(list);
+				}
+				else if (op instanceof SECDMachine.Intrinsic) {
+					SECDMachine.Intrinsic intrinsic = (SECDMachine.Intrinsic)op;
+					if (op == SECDMachine.CAR)
+						emit(CAR);
+					else if (op == SECDMachine.CDR)
+						emit(CDR);
+					else if (op == SECDMachine.CONS)
+						emit(CONS);
+					else if (op == SECDMachine.EQ)
+						emit(EQ);
+					else if (op == SECDMachine.NOT || op == SECDMachine.NULLP)
+						emit(NOT);
+					else if (op == SECDMachine.ATOMP)
+						emit(ATOMP);
+					else
+						return false;
+					push(1 - intrinsic.arity);
+				}
+				else if (op == SECDMachine.STOP) {
+					emit(STOP);
+					return true;
+				}
+				else if (op instanceof SECDop)
+					return false;
+				else if (op instanceof LispPrimitive && ((LispPrimitive)op).isSimple()) {
+					int count = ((LispPrimitive)op).argumentCount();
+					emit(CALL, constant(op));
+					emit(count);
+					push(1 - count);
+				}
+				else
+					return false;
+			}
+			// the end of the code list stops the machine
+			emit(STOP);
+			return true;
+		}
+	}
+
+/* ------------------  INTERPRETER   ------------------------------ */
+
+	/**
+	 * The operand stack and the dump of the bytecode loop.
+	 * The machine keeps one instance between the runs, and one
+	 * more for each level of the re-entrant runs (a primitive
+	 * that calls a function by SECDMachine.invoke()).
+	 */
+	static final class Registers
+	{
+		Registers next;  // for the re-entrant run
+
+		LispValue[] stack = new LispValue[64];
+
+		// dump
+		SECDBytecode[] function = new SECDBytecode[32];
+		int[] pc = new int[32];
+		int[] base = new int[32];
+		LispValue[] env = new LispValue[32];
+
+		LispValue[] growStack(int size)
+		{
+			return stack = Arrays.copyOf(stack, size * 2);
+		}
+		void growDump()
+		{
+			int size = pc.length * 2;
+			function = Arrays.copyOf(function, size);
+			pc = Arrays.copyOf(pc, size);
+			base = Arrays.copyOf(base, size);
+			env = Arrays.copyOf(env, size);
+		}
+		void clear()
+		{
+			Arrays.fill(stack, null);
+			Arrays.fill(function, null);
+			Arrays.fill(env, null);
+		}
+	}
+
+	/**
+	 * Runs the bytecode.  The operand stack and the dump are kept
+	 * in arrays, the machine registers are not used except B.
+	 * The lists are cast to the StandardLispList class, which is
+	 * much cheaper for the JIT than a cast to the LispList interface.
+	 *
+	 * @param machine the machine, used for special bindings and for
+	 *        running the closures that have no bytecode
+	 * @param function code to run
+	 * @param env initial environment
+	 * @return the top value of the stack
+	 */
+	static LispValue Execute(SECDMachine machine, SECDBytecode function, LispValue env)
+			throws CompilerException
+	{
+		Registers registers = machine.f_registers;
+		if (registers == null)  // the first re-entrant call
+			registers = new Registers();
+		machine.f_registers = registers.next;
+		try {
+			return Execute(machine, registers, function, env);
+		}
+		finally {
+			registers.clear();
+			registers.next = machine.f_registers;
+			machine.f_registers = registers;
+		}
+	}
+
+	static LispValue Execute(SECDMachine machine, Registers d, SECDBytecode function, LispValue env)
+			throws CompilerException
+	{
+		LispValue[] stack = d.stack;
+		int sp = 0, base = 0;
+		int dp = 0;
+
+		if (function.maxStack >= stack.length)
+			stack = d.growStack(function.maxStack);
+
+		int[] code = function.code;
+		LispValue[] constants = function.constants;
+		int pc = 0;
+
+		for (;;)
+		{
+			if (--machine.f_countdown < 0)
+				machine.check();
+			switch (code[pc++])
+			{
+			case LDNIL:
+				stack[sp++] = NIL;
+				break;
+			case LDT:
+				stack[sp++] = T;
+				break;
+			case LDC:
+				stack[sp++] = constants[code[pc++]];
+				break;
+			case LD: {
+				LispValue frame = env;
+				for (int i = code[pc++]; i > 0; i--)
+					frame = ((SECDFrame)frame).parent;
+				stack[sp++] = ((SECDFrame)frame).values[code[pc++]];
+				break;
+			}
+			case LDR: {
+				LispValue frame = env;
+				for (int i = code[pc++]; i > 0; i--)
+					frame = ((SECDFrame)frame).parent;
+				stack[sp++] = ((SECDFrame)frame).rest(code[pc++]);
+				break;
+			}
+			case LD_GLOBAL:
+				stack[sp++] = machine.special_value(constants[code[pc++]]);
+				break;
+			case ST: {
+				LispValue val = stack[--sp];
+				machine.store(env, stack[sp-1], val);
+				stack[sp-1] = val;
+				break;
+			}
+			case LDF:
+				stack[sp++] = cons(constants[code[pc++]], env);
+				break;
+			case LDFF: {
+				LispValue body = constants[code[pc++]];
+				stack[sp++] = cons(body, ((SECDFrame.Captures)constants[code[pc++]]).frame(env));
+				break;
+			}
+			case LDFC:
+				stack[sp++] = ((SECDMachine.InlineCache)constants[code[pc++]]).closure(machine);
+				break;
+			case JMP:
+				pc += code[pc] + 1;
+				break;
+			case JMPF:
+				if (stack[--sp] == NIL)
+					pc += code[pc] + 1;
+				else
+					pc++;
+				break;
+			case JMPT:
+				if (stack[--sp] != NIL)
+					pc += code[pc] + 1;
+				else
+					pc++;
+				break;
+
+			case AP:
+			case DAP:
+			case RAP:
+			case APN:
+			case DAPN:
+			case APL:
+			case DAPL: {
+				int op = code[pc-1];
+				LispValue fe, body, parent;
+				if (op == APL || op == DAPL) {
+					// the local function: no closure unless another engine runs it
+					body = ((SECDMachine.Local)constants[code[pc++]]).code;
+					parent = SECDMachine.outer(env, code[pc++]);
+					fe = null;
+				}
+				else {
+					fe = stack[--sp];
+					body = ((StandardLispList)fe).car();
+					parent = ((StandardLispList)fe).cdr();
+				}
+				LispValue v;
+				LispValue[] values;
+				if (op != AP && op != DAP && op != RAP) {
+					// the arguments go from the stack to the frame
+					int count = code[pc++];
+					values = (count == 0) ? SECDFrame.EMPTY : new LispValue[count];
+					sp -= count;
+					System.arraycopy(stack, sp, values, 0, count);
+					v = null;
+				}
+				else {
+					v = stack[--sp];
+					values = null;
+				}
+				boolean tail = (op == DAP || op == DAPN || op == DAPL);
+
+				SECDCode compiled = machine.compiled(body);
+				if (!(compiled instanceof SECDBytecode)) {
+					if (fe == null)
+						fe = cons(body, parent);
+					// no bytecode for this function, let the list machine
+					// (or the JVM class) run it
+					if (op == RAP) {
+						stack[sp++] = machine.call(fe, v, env);
+						env = ((SECDFrame)env).parent;
+						break;
+					}
+					LispValue result = (values == null) ? machine.call(fe, v)
+					                                    : machine.call(fe, values);
+					if (tail) {  // return the result
+						if (dp == 0)
+							return result;
+						sp = base;
+						dp--;
+						base = d.base[dp];
+						env = d.env[dp];
+						function = d.function[dp];
+						code = function.code;
+						constants = function.constants;
+						pc = d.pc[dp];
+					}
+					stack[sp++] = result;
+					break;
+				}
+				SECDBytecode callee = (SECDBytecode)compiled;
+
+				if (tail)
+					sp = base;
+				else {
+					if (dp == d.pc.length)
+						d.growDump();
+					d.function[dp] = function;
+					d.pc[dp] = pc;
+					d.base[dp] = base;
+					d.env[dp] = (op == RAP) ? ((SECDFrame)env).parent : env;
+					dp++;
+					base = sp;
+				}
+				if (sp + callee.maxStack >= stack.length)
+					stack = d.growStack(sp + callee.maxStack);
+
+				function = callee;
+				code = callee.code;
+				constants = callee.constants;
+				pc = 0;
+				if (op == RAP)
+					((SECDFrame)env).values = SECDFrame.array(v);  // env is the frame made by DUM
+				else
+					env = new SECDFrame(values != null ? values : SECDFrame.array(v), parent);
+				break;
+			}
+			case DUM:
+				env = new SECDFrame(SECDFrame.EMPTY, env);
+				break;
+			case ENTER: {
+				int count = code[pc++];
+				LispValue[] values = (count == 0) ? SECDFrame.EMPTY : new LispValue[count];
+				sp -= count;
+				System.arraycopy(stack, sp, values, 0, count);
+				env = new SECDFrame(values, env);
+				break;
+			}
+			case LDL: {
+				LispValue body = ((SECDMachine.Local)constants[code[pc++]]).code;
+				stack[sp++] = cons(body, SECDMachine.outer(env, code[pc++]));
+				break;
+			}
+			case LEAVE:
+				env = ((SECDFrame)env).parent;
+				break;
+			case POP:
+				stack[--sp] = null;
+				break;
+
+			case RTN_IF:
+			case RTN_IT:
+			case RTN: {
+				int op = code[pc-1];
+				LispValue result = stack[--sp];
+				if ((op == RTN_IF && result != NIL) || (op == RTN_IT && result == NIL))
+					break;  // continue processing
+				if (dp == 0)
+					return result;
+				sp = base;
+				dp--;
+				base = d.base[dp];
+				env = d.env[dp];
+				function = d.function[dp];
+				code = function.code;
+				constants = function.constants;
+				pc = d.pc[dp];
+				stack[sp++] = result;
+				break;
+			}
+
+			case LIS: {
+				int count = code[pc++];
+				LispValue list = NIL;
+				while (count-- > 0)
+					list = cons(stack[--sp], list);
+				stack[sp++] = list;
+				break;
+			}
+			case SP_BIND:
+				machine.special_bind(constants[code[pc++]], stack[--sp]);
+				break;
+			case SP_UNBIND:
+				machine.special_unbind(constants[code[pc++]]);
+				break;
+
+			case CALL: {
+				LispValue result = ((LispPrimitive)constants[code[pc++]]).Execute(stack, sp);
+				sp -= code[pc++];
+				stack[sp++] = result;
+				break;
+			}
+
+			case CAR: {
+				LispValue list = stack[sp-1];
+				stack[sp-1] = (list instanceof StandardLispList) ? ((StandardLispList)list).car()
+				                                                 : SECDMachine.CAR.call(list);
+				break;
+			}
+			case CDR: {
+				LispValue list = stack[sp-1];
+				stack[sp-1] = (list instanceof StandardLispList) ? ((StandardLispList)list).cdr()
+				                                                 : SECDMachine.CDR.call(list);
+				break;
+			}
+			case CONS:
+				sp--;
+				stack[sp-1] = cons(stack[sp-1], stack[sp]);
+				break;
+			case EQ: {
+				LispValue b = stack[--sp];
+				stack[sp-1] = SECDMachine.Intrinsic.eq(stack[sp-1], b);
+				break;
+			}
+			case NOT:
+				stack[sp-1] = (stack[sp-1] == NIL) ? T : NIL;
+				break;
+			case ATOMP:
+				stack[sp-1] = SECDMachine.Intrinsic.atom(stack[sp-1]) ? T : NIL;
+				break;
+
+			case STOP:
+				return sp > 0 ? stack[sp-1] : NIL;
+
+			default:
+				throw new LispException("Illegal bytecode " + code[pc-1]);
+			}
+		}
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+package org.jatha.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Minimal writer of the JVM class files, only what SECDJvm needs:
+ * a class without fields and interfaces, methods with the code and
+ * no exception handlers.
+ *
+ * The class file version is 49 (Java 5), so the verifier infers the
+ * types itself and no StackMapTable is needed.
+ */
+final class SECDClassWriter
+{
+	// opcodes
+	static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13;
+	static final int ALOAD = 0x19, ALOAD_0 = 0x2a, AALOAD = 0x32;
+	static final int ASTORE = 0x3a, ASTORE_0 = 0x4b, AASTORE = 0x53;
+	static final int POP = 0x57, DUP = 0x59;
+	static final int IF_ICMPNE = 0xa0, IF_ACMPEQ = 0xa5, IF_ACMPNE = 0xa6, GOTO = 0xa7;
+	static final int ARETURN = 0xb0, RETURN = 0xb1;
+	static final int GETSTATIC = 0xb2, GETFIELD = 0xb4;
+	static final int INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+	static final int ANEWARRAY = 0xbd, ARRAYLENGTH = 0xbe, CHECKCAST = 0xc0;
+
+	static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+	/**
+	 * The code doesn't fit the limits of the class file.
+	 */
+	@SuppressWarnings("serial")
+	static final class TooLargeException extends RuntimeException
+	{
+	}
+
+	private final ByteArrayOutputStream f_pool = new ByteArrayOutputStream();
+	private final DataOutputStream pool = new DataOutputStream(f_pool);
+	private final HashMap<String, Integer> f_constants = new HashMap<String, Integer>();
+	private int f_count = 1;
+	private final List<Method> f_methods = new ArrayList<Method>();
+
+/* ------------------  CONSTANT POOL   ------------------------------ */
+
+	private int constant(String key, int tag, int a, int b, String utf)
+	{
+		Integer index = f_constants.get(key);
+		if (index != null)
+			return index;
+		try {
+			pool.writeByte(tag);
+			if (utf != null)
+				pool.writeUTF(utf);
+			else if (tag == 3)  // CONSTANT_Integer
+				pool.writeInt(a);
+			else {
+				pool.writeShort(a);
+				if (b >= 0)
+					pool.writeShort(b);
+			}
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		if (f_count > 0xffff)
+			throw new TooLargeException();
+		f_constants.put(key, f_count);
+		return f_count++;
+	}
+
+	int utf8(String s)
+	{
+		return constant("U" + s, 1, 0, 0, s);
+	}
+	int integer(int value)
+	{
+		return constant("I" + value, 3, value, -1, null);
+	}
+	int classRef(String name)
+	{
+		return constant("C" + name, 7, utf8(name), -1, null);
+	}
+	int nameAndType(String name, String desc)
+	{
+		return constant("N" + name + " " + desc, 12, utf8(name), utf8(desc), null);
+	}
+	int fieldRef(String owner, String name, String desc)
+	{
+		return constant("F" + owner + "." + name + " " + desc, 9, classRef(owner), nameAndType(name, desc), null);
+	}
+	int methodRef(String owner, String name, String desc)
+	{
+		return constant("M" + owner + "." + name + " " + desc, 10, classRef(owner), nameAndType(name, desc), null);
+	}
+
+/* ------------------  METHODS   ------------------------------ */
+
+	Method method(int access, String name, String desc, int arguments)
+	{
+		Method method = new Method(access, name, desc, arguments);
+		f_methods.add(method);
+		return method;
+	}
+
+	static final class Label
+	{
+		int position = -1;
+		int stack = -1;   // stack depth at the label
+		final List<Integer> jumps = new ArrayList<Integer>();
+	}
+
+	final class Method
+	{
+		final int access, name, desc;
+		private final ByteArrayOutputStream f_code = new ByteArrayOutputStream();
+		private int f_stack = 0, f_maxStack = 0, f_maxLocals;
+		private final List<Label> f_labels = new ArrayList<Label>();
+
+		Method(int access, String name, String desc, int arguments)
+		{
+			this.access = access;
+			this.name = utf8(name);
+			this.desc = utf8(desc);
+			f_maxLocals = arguments + 1;   // with "this"
+		}
+
+		int stack()
+		{
+			return f_stack;
+		}
+
+		private void stack(int delta)
+		{
+			f_stack += delta;
+			if (f_stack > f_maxStack)
+				f_maxStack = f_stack;
+		}
+
+		private void u1(int b)
+		{
+			f_code.write(b);
+		}
+		private void u2(int s)
+		{
+			f_code.write(s >> 8);
+			f_code.write(s);
+		}
+
+		void op(int opcode, int delta)
+		{
+			u1(opcode);
+			stack(delta);
+		}
+
+		void iconst(int value)
+		{
+			if (value >= -1 && value <= 5)
+				u1(ICONST_0 + value);
+			else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				u1(BIPUSH);
+				u1(value);
+			}
+			else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				u1(SIPUSH);
+				u2(value);
+			}
+			else {
+				u1(LDC_W);
+				u2(integer(value));
+			}
+			stack(1);
+		}
+
+		void aload(int local)
+		{
+			if (local < 4)
+				u1(ALOAD_0 + local);
+			else
+				wide(ALOAD, local);
+			stack(1);
+		}
+		void astore(int local)
+		{
+			if (local < 4)
+				u1(ASTORE_0 + local);
+			else
+				wide(ASTORE, local);
+			stack(-1);
+			if (local + 1 > f_maxLocals)
+				f_maxLocals = local + 1;
+		}
+		private void wide(int opcode, int local)
+		{
+			if (local > 0xff)
+				throw new TooLargeException();
+			u1(opcode);
+			u1(local);
+		}
+
+		void field(int opcode, String owner, String name, String desc)
+		{
+			u1(opcode);
+			u2(fieldRef(owner, name, desc));
+			stack(opcode == GETFIELD ? 0 : 1);
+		}
+
+		void invoke(int opcode, String owner, String name, String desc)
+		{
+			u1(opcode);
+			u2(methodRef(owner, name, desc));
+			int arguments = 0;
+			for (int i = 1; desc.charAt(i) != ')'; i++, arguments++) {
+				while (desc.charAt(i) == '[')
+					i++;
+				if (desc.charAt(i) == 'L')
+					i = desc.indexOf(';', i);
+			}
+			stack(-arguments - (opcode == INVOKESTATIC ? 0 : 1) + (desc.endsWith(")V") ? 0 : 1));
+		}
+
+		void type(int opcode, String className)
+		{
+			u1(opcode);
+			u2(classRef(className));
+		}
+
+		Label label()
+		{
+			Label label = new Label();
+			f_labels.add(label);
+			return label;
+		}
+
+		void mark(Label label)
+		{
+			label.position = f_code.size();
+			if (f_stack < 0)
+				f_stack = label.stack;
+			label.stack = f_stack;
+		}
+
+		/**
+		 * Conditional or unconditional jump, after GOTO the code is
+		 * unreachable until the next label.
+		 */
+		void jump(int opcode, Label label)
+		{
+			stack(opcode == GOTO ? 0 : -2);
+			label.jumps.add(f_code.size());
+			label.stack = f_stack;
+			u1(opcode);
+			u2(0);
+			if (opcode == GOTO)
+				f_stack = -1;
+		}
+
+		void areturn()
+		{
+			op(ARETURN, -1);
+			f_stack = -1;
+		}
+
+		byte[] code()
+		{
+			byte[] code = f_code.toByteArray();
+			if (code.length > 0x7fff)
+				throw new TooLargeException();
+			for (Label label : f_labels)
+				for (int jump : label.jumps) {
+					int offset = label.position - jump;
+					code[jump + 1] = (byte)(offset >> 8);
+					code[jump + 2] = (byte)offset;
+				}
+			return code;
+		}
+	}
+
+/* ------------------  CLASS   ------------------------------ */
+
+	byte[] toByteArray(String name, String superName)
+	{
+		int thisClass = classRef(name);
+		int superClass = classRef(superName);
+		int code = utf8("Code");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(f_count);
+			pool.flush();
+			f_pool.writeTo(out);
+
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0);  // interfaces
+			out.writeShort(0);  // fields
+
+			out.writeShort(f_methods.size());
+			for (Method method : f_methods) {
+				byte[] body = method.code();
+				out.writeShort(method.access);
+				out.writeShort(method.name);
+				out.writeShort(method.desc);
+				out.writeShort(1);
+				out.writeShort(code);
+				out.writeInt(12 + body.length);
+				out.writeShort(method.f_maxStack);
+				out.writeShort(method.f_maxLocals);
+				out.writeInt(body.length);
+				out.write(body);
+				out.writeShort(0);  // exception table
+				out.writeShort(0);  // attributes
+			}
+			out.writeShort(0);  // attributes
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+}
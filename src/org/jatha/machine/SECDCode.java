@@ -0,0 +1,53 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+package org.jatha.machine;
+
+import org.jatha.dynatype.*;
+
+/**
+ * Code of a function prepared for one of the machine engines
+ * other than the list machine.  It is used in closures in place
+ * of the list code: <tt>(code . env)</tt>.  The list machine runs
+ * the <tt>source</tt> of such a closure.
+ *
+ * @see SECDBytecode
+ * @see SECDTree
+ */
+public abstract class SECDCode extends StandardLispValue
+{
+	/**
+	 * The list code produced by the LispCompiler.
+	 */
+	public final LispValue source;
+
+	protected SECDCode(LispValue source)
+	{
+		this.source = source;
+	}
+
+	public void internal_princ(java.io.PrintStream os) { os.print(toString()); }
+	public void internal_prin1(java.io.PrintStream os) { os.print(toString()); }
+	public void internal_print(java.io.PrintStream os) { os.print(toString()); }
+}
@@ -0,0 +1,191 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+
+package org.jatha.machine;
+
+import org.jatha.dynatype.*;
+import org.jatha.exception.LispException;
+
+import
+static org.jatha.dynatype.LispValue.*;
+
+/**
+ * SECDDump is the D register of the register-file mode
+ * of the SECD machine.  The dump is a stack of preallocated
+ * records, so that AP/RTN and SEL/JOIN don't cons.
+ * 
+ * A call record (pushed by <tt>pushFrame</tt>) holds the base of
+ * the caller's frame on the {@link SECDStack}, the saved E and C.
+ * A plain record (pushed by <tt>push</tt>, e.g. by SEL) holds only
+ * the code to continue with.
+ *
+ * @see SECDStack
+ */
+public class SECDDump extends SECDRegister
+{
+	private static final class Frame
+	{
+		boolean   call;  // saved by AP/RAP, otherwise by SEL
+		int       base;  // caller's stack frame base
+		LispValue e;
+		LispValue c;
+	}
+
+	private Frame[] f_frames = allocate(new Frame[0], 256);
+	private int f_top = 0;
+
+	public SECDDump(String name)
+	{
+		super(name);
+	}
+
+	private static Frame[] allocate(Frame[] frames, int size)
+	{
+		Frame[] result = new Frame[size];
+		System.arraycopy(frames, 0, result, 0, frames.length);
+		for (int i = frames.length; i < size; i++)
+			result[i] = new Frame();
+		return result;
+	}
+
+	private Frame next()
+	{
+		if (f_top == f_frames.length)
+			f_frames = allocate(f_frames, f_frames.length * 2);
+		return f_frames[f_top++];
+	}
+
+	public LispValue push(LispValue newValue)
+	{
+		Frame frame = next();
+		frame.call = false;
+		frame.c = newValue;
+		return newValue;
+	}
+
+	public LispValue pop()
+	{
+		if (f_top == 0)
+			return NIL;
+
+		Frame frame = f_frames[--f_top];
+		LispValue returns = frame.c;
+		frame.e = null;
+		frame.c = null;
+		return returns;
+	}
+
+	public LispValue top()
+	{
+		if (f_top == 0)
+			return NIL;
+		return f_frames[f_top - 1].c;
+	}
+
+	public void pushFrame(SECDRegister S, LispValue e, LispValue c)
+	{
+		Frame frame = next();
+		frame.call = true;
+		frame.base = ((SECDStack)S).enter();
+		frame.e = e;
+		frame.c = c;
+	}
+
+	public void popFrame(SECDRegister S, SECDRegister E, SECDRegister C, LispValue result)
+	{
+		Frame frame = f_frames[--f_top];
+		((SECDStack)S).leave(frame.base);
+		S.push(result);
+		E.assign(frame.e);
+		C.assign(frame.c);
+		frame.e = null;
+		frame.c = null;
+	}
+
+	/**
+	 * Only an empty dump can be assigned, the saved stack
+	 * frames can't be rebuilt from a list.
+	 */
+	public void assign(LispValue newValue)
+	{
+		if (newValue != null && newValue != NIL)
+			throw new LispException("The dump of the register-file machine can't be assigned.");
+		clear();
+	}
+
+	/**
+	 * Returns the dump as a list, top record first.  A call record
+	 * is shown as its E and C values, a plain record as its code.
+	 * This allocates, so it's only for debugging and legacy code.
+	 */
+	public LispValue value()
+	{
+		LispValue result = NIL;
+		for (int i = 0; i < f_top; i++) {
+			Frame frame = f_frames[i];
+			if (frame.call)
+				result = cons(frame.e, result);
+			result = cons(frame.c, result);
+		}
+		return result;
+	}
+
+	public void clear()
+	{
+		// f_frames is not yet initialized when called from the constructor
+		if (f_frames == null)
+			return;
+		while (f_top > 0) {
+			Frame frame = f_frames[--f_top];
+			frame.e = null;
+			frame.c = null;
+		}
+	}
+
+	// the depth saved by the escape records of BLOCK and CATCH
+	int depth()
+	{
+		return f_top;
+	}
+
+	/**
+	 * Drops the records pushed after the escape record was made,
+	 * the escape record itself too.
+	 * @see SECDEscape
+	 */
+	void unwind(int depth)
+	{
+		while (f_top > depth) {
+			Frame frame = f_frames[--f_top];
+			frame.e = null;
+			frame.c = null;
+		}
+	}
+
+	public String toString()
+	{
+		return value().toString();
+	}
+}
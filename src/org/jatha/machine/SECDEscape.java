@@ -0,0 +1,138 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+
+package org.jatha.machine;
+
+import org.jatha.dynatype.*;
+
+/**
+ * The escape record of BLOCK and CATCH, pushed on the dump by the
+ * ESC and CATCH instructions.  It holds the state of the machine at
+ * the entry: the S, E and D registers, the code to continue with
+ * and the special bindings.  RETURN-FROM and THROW restore it at once
+ * instead of running the rest of the code up to the end of the block.
+ *
+ * The records of the active blocks are chained from the innermost
+ * one.  A BLOCK is found by its tag, made by the compiler for each
+ * BLOCK form, a CATCH by the value of its tag form.
+ */
+public final class SECDEscape extends StandardLispValue
+{
+	final LispValue tag;
+	final boolean catcher;   // made by CATCH, found by THROW
+	final SECDEscape previous;
+	final int level;         // the nested loop of the machine
+
+	private final LispValue env;
+	private final LispValue code;
+	private final LispValue bound;
+	// S and D: the lists of the list machine, or the depths of the
+	// register-file mode
+	private final LispValue stack;
+	private final LispValue dump;
+	private final int top, base, depth;
+
+	SECDEscape(SECDMachine machine, LispValue tag, boolean catcher, LispValue code)
+	{
+		this.tag = tag;
+		this.catcher = catcher;
+		this.previous = machine.f_escape;
+		this.level = machine.f_level;
+		this.env = machine.E.value();
+		this.code = code;
+		this.bound = machine.f_bound;
+
+		if (machine.S instanceof SECDStack) {
+			SECDStack s = (SECDStack)machine.S;
+			stack = null;
+			top = s.depth();
+			base = s.base();
+		}
+		else {
+			stack = machine.S.value();
+			top = base = 0;
+		}
+		if (machine.D instanceof SECDDump) {
+			dump = null;
+			depth = ((SECDDump)machine.D).depth();
+		}
+		else {
+			dump = machine.D.value();
+			depth = 0;
+		}
+	}
+
+	/**
+	 * Restores the machine to the entry of the block and pushes
+	 * the value of the block.
+	 */
+	void unwind(SECDMachine machine, LispValue value)
+	{
+		while (machine.f_bound != bound && machine.f_bound != NIL)
+			machine.special_unbind(((LispCons)machine.f_bound).car());
+
+		if (stack == null)
+			((SECDStack)machine.S).unwind(top, base);
+		else
+			machine.S.assign(stack);
+		if (dump == null)
+			((SECDDump)machine.D).unwind(depth);
+		else
+			machine.D.assign(dump);
+		machine.E.assign(env);
+		machine.C.assign(code);
+		machine.S.push(value);
+		machine.f_escape = previous;
+	}
+
+	public String toString()
+	{
+		return (catcher ? "#<catch " : "#<block ") + tag + ">";
+	}
+
+	public void internal_princ(java.io.PrintStream os) { os.print(toString()); }
+	public void internal_prin1(java.io.PrintStream os) { os.print(toString()); }
+	public void internal_print(java.io.PrintStream os) { os.print(toString()); }
+
+	/**
+	 * Carries the exit to the nested loop of the machine that
+	 * entered the block, through the Java frames of the engines
+	 * and primitives between them.
+	 */
+	@SuppressWarnings("serial")
+	static final class Unwind extends RuntimeException
+	{
+		final SECDEscape escape;
+		final LispValue value;
+
+		Unwind(SECDEscape escape, LispValue value)
+		{
+			this.escape = escape;
+			this.value = value;
+		}
+
+		public Throwable fillInStackTrace() { return this; }
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+package org.jatha.machine;
+
+import org.jatha.dynatype.*;
+
+/**
+ * A frame of the environment: the values of the variables of one
+ * LAMBDA (or LET) in an array, and the enclosing frame.  The E
+ * register holds the chain of the frames, a closure is
+ * <tt>(code . frame)</tt>.  The flat closure has the frame of the
+ * variables it copied instead of the chain, see {@link Captures}.
+ *
+ * The compiler resolves every local variable to its {@link Slot},
+ * the frame depth and the index in the frame, so LD, LDR and ST
+ * don't walk the lists and don't unbox the indexes.
+ */
+public final class SECDFrame extends StandardLispValue
+{
+	static final LispValue[] EMPTY = new LispValue[0];
+
+	/**
+	 * The values of the variables.  The frame made by DUM is empty
+	 * until RAP sets the values.
+	 */
+	LispValue[] values;
+	/**
+	 * The enclosing frame, or NIL.
+	 */
+	public final LispValue parent;
+
+	public SECDFrame(LispValue[] values, LispValue parent)
+	{
+		this.values = values;
+		this.parent = parent;
+	}
+
+	/**
+	 * Makes the frame of the arguments list.
+	 */
+	public SECDFrame(LispValue args, LispValue parent)
+	{
+		this(array(args), parent);
+	}
+
+	static LispValue[] array(LispValue list)
+	{
+		int length = 0;
+		for (LispValue p = list; p != NIL; p = ((StandardLispList)p).cdr())
+			length++;
+		if (length == 0)
+			return EMPTY;
+		LispValue[] values = new LispValue[length];
+		for (int i = 0; i < length; i++, list = ((StandardLispList)list).cdr())
+			values[i] = ((StandardLispList)list).car();
+		return values;
+	}
+
+	/**
+	 * Builds the environment from the list of frames, each frame is
+	 * the list of the values.  The first frame is the innermost one.
+	 */
+	public static LispValue environment(LispValue frames)
+	{
+		if (frames == NIL || frames instanceof SECDFrame)
+			return frames;
+		return new SECDFrame(((StandardLispList)frames).car(),
+		                     environment(((StandardLispList)frames).cdr()));
+	}
+
+	// The frame of the variable: depth 0 is the current frame.
+	static SECDFrame frame(LispValue env, int depth)
+	{
+		while (depth-- > 0)
+			env = ((SECDFrame)env).parent;
+		return (SECDFrame)env;
+	}
+
+	/**
+	 * Returns the value of the variable.
+	 */
+	public LispValue get(Slot slot)
+	{
+		return frame(this, slot.depth).values[slot.index];
+	}
+	/**
+	 * Sets the value of the variable.
+	 */
+	public void set(Slot slot, LispValue value)
+	{
+		frame(this, slot.depth).values[slot.index] = value;
+	}
+	/**
+	 * Returns the list of the values from the slot to the end of
+	 * the frame, the &amp;rest argument.
+	 */
+	public LispValue rest(Slot slot)
+	{
+		return frame(this, slot.depth).rest(slot.index);
+	}
+	LispValue rest(int index)
+	{
+		LispValue list = NIL;
+		for (int i = values.length; --i >= index; )
+			list = cons(values[i], list);
+		return list;
+	}
+
+	public String toString()
+	{
+		return "#<frame " + values.length + ">";
+	}
+
+	public void internal_princ(java.io.PrintStream os) { os.print(toString()); }
+	public void internal_prin1(java.io.PrintStream os) { os.print(toString()); }
+	public void internal_print(java.io.PrintStream os) { os.print(toString()); }
+
+	/**
+	 * The variables a flat closure copies, for LDFF: the slots of them
+	 * in the environment the closure is made in.  The closure gets the
+	 * frame of their values, without the enclosing frames, and its code
+	 * refers to them in that frame.  The variables that are changed are
+	 * copied in their boxes.
+	 */
+	public static final class Captures extends StandardLispValue
+	{
+		final Slot[] slots;
+
+		public Captures(Slot[] slots)
+		{
+			this.slots = slots;
+		}
+
+		/**
+		 * Makes the frame of the values of the variables.
+		 */
+		public SECDFrame frame(LispValue env)
+		{
+			LispValue[] values = new LispValue[slots.length];
+			for (int i = 0; i < values.length; i++)
+				values[i] = ((SECDFrame)env).get(slots[i]);
+			return new SECDFrame(values, NIL);
+		}
+
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder("(");
+			for (int i = 0; i < slots.length; i++)
+				sb.append(i == 0 ? "" : " ").append(slots[i]);
+			return sb.append(')').toString();
+		}
+
+		public void internal_princ(java.io.PrintStream os) { os.print(toString()); }
+		public void internal_prin1(java.io.PrintStream os) { os.print(toString()); }
+		public void internal_print(java.io.PrintStream os) { os.print(toString()); }
+	}
+
+	/**
+	 * The place of a local variable, resolved by the compiler:
+	 * the number of the frames to go up and the index in the frame.
+	 * It is printed as the <tt>(i . j)</tt> pair of the old list
+	 * environment, both counted from 1.
+	 */
+	public static final class Slot extends StandardLispValue
+	{
+		public final int depth, index;
+
+		public Slot(int depth, int index)
+		{
+			this.depth = depth;
+			this.index = index;
+		}
+
+		public String toString()
+		{
+			return "(" + (depth + 1) + " . " + (index + 1) + ")";
+		}
+
+		public void internal_princ(java.io.PrintStream os) { os.print(toString()); }
+		public void internal_prin1(java.io.PrintStream os) { os.print(toString()); }
+		public void internal_print(java.io.PrintStream os) { os.print(toString()); }
+	}
+}
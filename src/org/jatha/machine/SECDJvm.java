@@ -0,0 +1,796 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+package org.jatha.machine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jatha.compile.LispPrimitive;
+import org.jatha.dynatype.*;
+import org.jatha.exception.*;
+
+import
+static org.jatha.dynatype.LispValue.*;
+import
+static org.jatha.machine.SECDTree.*;
+import
+static org.jatha.machine.SECDClassWriter.*;
+
+/**
+ * Compiler of the DEFUNs to the JVM classes.
+ *
+ * The list code of the function is translated to the SECDTree nodes,
+ * and the nodes are compiled to a class with a fixed-arity method
+ * <tt>invoke(arg1, ..., argN)</tt>:
+ * <ul>
+ * <li>the arguments and the LET variables are the JVM locals,</li>
+ * <li>the simple primitives are called directly by
+ *     <tt>LispPrimitive.call(...)</tt>,</li>
+ * <li>the calls of the function itself are JVM calls of <tt>invoke</tt>,
+ *     the tail calls are jumps to its start,</li>
+ * <li>the other global functions are called by name, the tail calls
+ *     return to the caller that makes them (see <tt>Function.result</tt>).</li>
+ * </ul>
+ * So the hot Lisp code is compiled by HotSpot like the ordinary Java.
+ *
+ * Each class is loaded by its own class loader, and is unloaded when
+ * the function is redefined.  The functions that can't be compiled
+ * (closures, &amp;rest arguments, RETURN-FROM across frames, EVAL, ...)
+ * are run by the SECD machine.
+ *
+ * @see org.jatha.compile.LispCompiler#CompileClasses(boolean)
+ */
+public final class SECDJvm
+{
+	private SECDJvm() { }
+
+	/**
+	 * Base class of the generated classes.
+	 */
+	public abstract static class Function extends SECDCode
+	{
+		protected final SECDMachine machine;
+		protected final LispValue[] constants;
+		// the name and the parameter count, for the errors
+		LispValue name;
+		int arity;
+
+		protected Function(SECDMachine machine, LispValue source, LispValue[] constants)
+		{
+			super(source);
+			this.machine = machine;
+			this.constants = constants;
+		}
+
+		/**
+		 * Calls the function with the list of arguments.
+		 */
+		public final LispValue call(LispValue args)
+				throws CompilerException
+		{
+			return result(enter(args));
+		}
+
+		/**
+		 * Calls the function with the arguments in the array.
+		 */
+		public final LispValue call(LispValue[] values)
+				throws CompilerException
+		{
+			return result(enter(values));
+		}
+
+		/**
+		 * Runs the function with the list of arguments, the result
+		 * may be a pending tail call.
+		 */
+		protected abstract LispValue enter(LispValue args)
+				throws CompilerException;
+		/**
+		 * Same with the arguments in the array.
+		 */
+		protected abstract LispValue enter(LispValue[] values)
+				throws CompilerException;
+
+		// makes the pending tail calls
+		protected final LispValue result(LispValue value)
+				throws CompilerException
+		{
+			while (value == TAIL_CALL) {
+				Function function = machine.f_tailFunction;
+				LispValue[] values = machine.f_tailValues;
+				machine.f_tailFunction = null;
+				machine.f_tailValues = null;
+				value = function.enter(values);
+			}
+			return value;
+		}
+
+		// counts the call for the limits of the evaluation
+		protected final void step()
+		{
+			if (--machine.f_countdown < 0)
+				machine.check();
+		}
+
+		// the next one of the arguments list, index are unpacked before it
+		protected final LispValue argument(LispValue args, int index)
+				throws CompilerException
+		{
+			if (args == NIL)
+				throw new ArgumentCountMismatchException(name.toString(),
+						String.valueOf(arity), index);
+			return ((StandardLispList)args).car();
+		}
+
+		// car, cdr and cons for the generated code
+		protected static LispValue head(LispValue list)
+		{
+			return ((StandardLispList)list).car();
+		}
+		protected static LispValue tail(LispValue list)
+		{
+			return ((StandardLispList)list).cdr();
+		}
+		protected static LispValue pair(LispValue car, LispValue cdr)
+		{
+			return cons(car, cdr);
+		}
+
+		// calls the global function, site is the inline cache of the call
+		protected final LispValue callGlobal(LispValue site, LispValue args)
+				throws CompilerException
+		{
+			SECDMachine.InlineCache cache = (SECDMachine.InlineCache)site;
+			LispValue code = cache.code(machine);
+			if (code instanceof Function)
+				return ((Function)code).call(args);
+			return machine.call(cache.closure(machine), args);
+		}
+		protected final LispValue callGlobal(LispValue site, LispValue[] values)
+				throws CompilerException
+		{
+			SECDMachine.InlineCache cache = (SECDMachine.InlineCache)site;
+			LispValue code = cache.code(machine);
+			if (code instanceof Function)
+				return ((Function)code).call(values);
+			return machine.call(cache.closure(machine), values);
+		}
+		// the tail call of the global function, made by the caller
+		protected final LispValue tailGlobal(LispValue site, LispValue args)
+				throws CompilerException
+		{
+			return tailGlobal(site, SECDFrame.array(args));
+		}
+		protected final LispValue tailGlobal(LispValue site, LispValue[] values)
+				throws CompilerException
+		{
+			SECDMachine.InlineCache cache = (SECDMachine.InlineCache)site;
+			LispValue code = cache.code(machine);
+			if (code instanceof Function) {
+				machine.f_tailFunction = (Function)code;
+				machine.f_tailValues = values;
+				return TAIL_CALL;
+			}
+			return machine.call(cache.closure(machine), values);
+		}
+
+		protected final LispValue special(LispValue symbol)
+		{
+			return machine.special_value(symbol);
+		}
+		protected final LispValue store(LispValue symbol, LispValue value)
+		{
+			machine.store(NIL, symbol, value);
+			return value;
+		}
+		protected final LispValue bind(LispValue symbol, LispValue value)
+		{
+			machine.special_bind(symbol, value);
+			return NIL;
+		}
+		protected final LispValue unbind(LispValue symbol)
+		{
+			machine.special_unbind(symbol);
+			return NIL;
+		}
+
+		public String toString()
+		{
+			return "#<class " + getClass().getName() + ">";
+		}
+	}
+
+	// the class loader of one function
+	static final class Loader extends ClassLoader
+	{
+		Loader()
+		{
+			super(SECDJvm.class.getClassLoader());
+		}
+		Class<?> define(String name, byte[] bytes)
+		{
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	private static final AtomicInteger f_serial = new AtomicInteger();
+
+	// the locals above are too many for the class file
+	static final int MAX_ARGUMENTS = 64;
+
+	/**
+	 * Compiles the DEFUN to a JVM class.
+	 * @param machine    the machine the function runs in
+	 * @param name       name of the function
+	 * @param parameters the lambda list
+	 * @param code       the list code of the function body
+	 * @param cons       the CONS primitive the compiler builds the argument lists with
+	 * @return the function or null if it can't be compiled
+	 */
+	public static Function compile(SECDMachine machine, LispValue name, LispValue parameters,
+	                               LispValue code, LispPrimitive cons)
+	{
+		int arity = 0;
+		for (LispValue p = parameters; p != NIL; p = ((StandardLispList)p).cdr()) {
+			LispValue parameter = ((StandardLispList)p).car();
+			if (!(parameter instanceof LispSymbol) || parameter.toStringSimple().startsWith("&"))
+				return null;  // &rest, &optional, ...
+			arity++;
+		}
+		if (arity > MAX_ARGUMENTS)
+			return null;
+
+		SECDTree.Function tree = SECDTree.translate(code);
+		if (tree == null)
+			return null;
+
+		String className = "jatha/F" + f_serial.incrementAndGet() + "_" + mangle(name.toStringSimple());
+		try {
+			Generator generator = new Generator(className, arity, cons);
+			byte[] bytes = generator.generate(tree);
+			Class<?> type = new Loader().define(className.replace('/', '.'), bytes);
+			Function function = (Function)type.getConstructor(SECDMachine.class, LispValue.class, LispValue[].class)
+					.newInstance(machine, code, generator.constants());
+			function.name = name;
+			function.arity = arity;
+			return function;
+		}
+		catch (Uncompilable e) {
+			return null;
+		}
+		catch (TooLargeException e) {
+			return null;
+		}
+		catch (LinkageError e) {
+			return null;
+		}
+		catch (Exception e) {  // the reflection
+			return null;
+		}
+	}
+
+	static String mangle(String name)
+	{
+		StringBuilder out = new StringBuilder();
+		for (char c : name.toCharArray())
+			out.append(Character.isJavaIdentifierPart(c) ? c : '_');
+		return out.toString();
+	}
+
+	@SuppressWarnings("serial")
+	static final class Uncompilable extends Exception
+	{
+		public Throwable fillInStackTrace() { return this; }
+	}
+
+/* ------------------  CODE GENERATOR   ------------------------------ */
+
+	static final String FUNCTION  = "org/jatha/machine/SECDJvm$Function";
+	static final String MACHINE   = "org/jatha/machine/SECDMachine";
+	static final String PRIMITIVE = "org/jatha/compile/LispPrimitive";
+	static final String PROCESSOR = "org/jatha/LispProcessor";
+	static final String VALUE     = "org/jatha/dynatype/LispValue";
+	static final String V         = "L" + VALUE + ";";
+
+	static String descriptor(int arguments)
+	{
+		StringBuilder desc = new StringBuilder("(");
+		for (int i = 0; i < arguments; i++)
+			desc.append(V);
+		return desc.append(")").append(V).toString();
+	}
+
+	/**
+	 * A frame of the environment: the JVM locals of its variables,
+	 * or the closure of the defun itself.
+	 */
+	static final class Scope
+	{
+		final Scope outer;
+		final int[] locals;   // null for the defun
+
+		Scope(Scope outer, int[] locals)
+		{
+			this.outer = outer;
+			this.locals = locals;
+		}
+	}
+
+	// Where the nodes of a SECDTree function find their variables.
+	static final class Context
+	{
+		final Scope scope;
+		final int temps;   // the first local of the temporaries
+
+		Context(Scope scope, int temps)
+		{
+			this.scope = scope;
+			this.temps = temps;
+		}
+	}
+
+	static final class Generator
+	{
+		final String className;
+		final int arity;
+		final LispPrimitive cons;
+		final SECDClassWriter writer = new SECDClassWriter();
+		final List<LispValue> f_constants = new ArrayList<LispValue>();
+		final IdentityHashMap<LispValue, Integer> f_indices = new IdentityHashMap<LispValue, Integer>();
+
+		SECDClassWriter.Method m;
+		SECDClassWriter.Label start;
+		int nextLocal;
+		int constantsLocal;
+
+		Generator(String className, int arity, LispPrimitive cons)
+		{
+			this.className = className;
+			this.arity = arity;
+			this.cons = cons;
+		}
+
+		LispValue[] constants()
+		{
+			return f_constants.toArray(new LispValue[f_constants.size()]);
+		}
+
+		byte[] generate(SECDTree.Function tree)
+				throws Uncompilable
+		{
+			String init = "(L" + MACHINE + ";" + V + "[" + V + ")V";
+			SECDClassWriter.Method constructor = writer.method(ACC_PUBLIC, "<init>", init, 3);
+			constructor.aload(0);
+			constructor.aload(1);
+			constructor.aload(2);
+			constructor.aload(3);
+			constructor.invoke(INVOKESPECIAL, FUNCTION, "<init>", init);
+			constructor.op(RETURN, 0);
+
+			// enter(args): unpacks the arguments list, the extra ones are
+			// ignored as by the SECD machine
+			SECDClassWriter.Method call = writer.method(ACC_PUBLIC, "enter", "(" + V + ")" + V, 1);
+			call.aload(0);
+			for (int i = 0; i < arity; i++) {
+				call.aload(0);
+				call.aload(1);
+				call.iconst(i);
+				call.invoke(INVOKEVIRTUAL, FUNCTION, "argument", "(" + V + "I)" + V);
+				call.aload(1);
+				call.invoke(INVOKESTATIC, FUNCTION, "tail", "(" + V + ")" + V);
+				call.astore(1);
+			}
+			call.invoke(INVOKEVIRTUAL, className, "invoke", descriptor(arity));
+			call.areturn();
+
+			// enter(values): unpacks the array, or the list of another length
+			SECDClassWriter.Method array = writer.method(ACC_PUBLIC, "enter", "([" + V + ")" + V, 1);
+			SECDClassWriter.Label other = array.label();
+			array.aload(1);
+			array.op(ARRAYLENGTH, 0);
+			array.iconst(arity);
+			array.jump(IF_ICMPNE, other);
+			array.aload(0);
+			for (int i = 0; i < arity; i++) {
+				array.aload(1);
+				array.iconst(i);
+				array.op(AALOAD, -1);
+			}
+			array.invoke(INVOKEVIRTUAL, className, "invoke", descriptor(arity));
+			array.areturn();
+			array.mark(other);
+			array.aload(0);
+			array.aload(1);
+			array.invoke(INVOKESTATIC, PROCESSOR, "list", "([" + V + ")Lorg/jatha/dynatype/LispList;");
+			array.invoke(INVOKEVIRTUAL, className, "enter", "(" + V + ")" + V);
+			array.areturn();
+
+			// invoke(arg1, ..., argN)
+			m = writer.method(ACC_PUBLIC, "invoke", descriptor(arity), arity);
+			constantsLocal = arity + 1;
+			m.aload(0);
+			m.field(GETFIELD, FUNCTION, "constants", "[" + V);
+			m.astore(constantsLocal);
+			nextLocal = constantsLocal + 1;
+
+			int[] arguments = new int[arity];
+			for (int i = 0; i < arity; i++)
+				arguments[i] = i + 1;
+			Scope scope = new Scope(new Scope(null, null), arguments);
+
+			start = m.label();
+			m.mark(start);
+			m.aload(0);  // the calls and the tail calls of itself count
+			m.invoke(INVOKEVIRTUAL, FUNCTION, "step", "()V");
+			tail(tree.body, new Context(scope, allocate(tree.temps)));
+
+			return writer.toByteArray(className, FUNCTION);
+		}
+
+		int allocate(int count)
+		{
+			int first = nextLocal;
+			nextLocal += count;
+			if (nextLocal > 0xff)
+				throw new TooLargeException();
+			return first;
+		}
+
+		void constant(LispValue value)
+		{
+			Integer index = f_indices.get(value);
+			if (index == null) {
+				index = f_constants.size();
+				f_constants.add(value);
+				f_indices.put(value, index);
+			}
+			m.aload(constantsLocal);
+			m.iconst(index);
+			m.op(AALOAD, -1);
+		}
+
+		static Scope frame(Context c, int i)
+				throws Uncompilable
+		{
+			Scope scope = c.scope;
+			while (--i > 0 && scope != null)
+				scope = scope.outer;
+			if (scope == null)
+				throw new Uncompilable();
+			return scope;
+		}
+
+		// JVM local of the (i . j) variable
+		static int local(Context c, int i, int j)
+				throws Uncompilable
+		{
+			Scope scope = frame(c, i);
+			if (scope.locals == null || j < 1 || j > scope.locals.length)
+				throw new Uncompilable();
+			return scope.locals[j-1];
+		}
+
+		// the arguments of the list built by the CONS primitives, or null
+		List<Node> arguments(Node args)
+		{
+			List<Node> list = new ArrayList<Node>();
+			while (args instanceof PrimitiveCall2Node && ((PrimitiveCall2Node)args).primitive == cons) {
+				list.add(((PrimitiveCall2Node)args).arg1);
+				args = ((PrimitiveCall2Node)args).arg2;
+			}
+			if (args instanceof ConstantNode && ((ConstantNode)args).value == NIL)
+				return list;
+			return null;
+		}
+
+		// the node in the tail position: returns its value
+		void tail(Node n, Context c)
+				throws Uncompilable
+		{
+			if (n instanceof IfNode) {
+				IfNode node = (IfNode)n;
+				SECDClassWriter.Label otherwise = m.label();
+				value(node.test, c);
+				m.field(GETSTATIC, VALUE, "NIL", "Lorg/jatha/dynatype/LispList;");
+				m.jump(IF_ACMPEQ, otherwise);
+				tail(node.then, c);
+				m.mark(otherwise);
+				tail(node.otherwise, c);
+			}
+			else if (n instanceof SeqNode) {
+				Node[] nodes = ((SeqNode)n).nodes;
+				for (int i = 0; i < nodes.length - 1; i++) {
+					value(nodes[i], c);
+					m.op(POP, -1);
+				}
+				tail(nodes[nodes.length-1], c);
+			}
+			else if (n instanceof LetNode)
+				tail(((LetNode)n).body, let((LetNode)n, c));
+			else if (n instanceof InvokeNode)
+				invoke(((InvokeNode)n).args, ((InvokeNode)n).function, c, true);
+			else if (n instanceof TailInvokeNode)
+				invoke(((TailInvokeNode)n).args, ((TailInvokeNode)n).function, c, true);
+			else if (n instanceof CallNode)
+				call(((CallNode)n).args, ((CallNode)n).function, c, true);
+			else if (n instanceof TailCallNode)
+				call(((TailCallNode)n).args, ((TailCallNode)n).function, c, true);
+			else {
+				value(n, c);
+				m.areturn();
+			}
+		}
+
+		// the node pushes its value
+		void value(Node n, Context c)
+				throws Uncompilable
+		{
+			if (n instanceof ConstantNode) {
+				LispValue value = ((ConstantNode)n).value;
+				if (value == NIL)
+					m.field(GETSTATIC, VALUE, "NIL", "Lorg/jatha/dynatype/LispList;");
+				else
+					constant(value);
+			}
+			else if (n instanceof ArgumentNode)
+				m.aload(local(c, 1, ((ArgumentNode)n).j));
+			else if (n instanceof LocalRefNode)
+				m.aload(local(c, ((LocalRefNode)n).i, ((LocalRefNode)n).j));
+			else if (n instanceof TempRefNode)
+				m.aload(c.temps + ((TempRefNode)n).t);
+			else if (n instanceof TempSetNode) {
+				value(((TempSetNode)n).value, c);
+				m.op(DUP, 1);
+				m.astore(c.temps + ((TempSetNode)n).t);
+			}
+			else if (n instanceof StoreLocalNode) {
+				StoreLocalNode node = (StoreLocalNode)n;
+				int local = local(c, node.i, node.j);
+				value(node.value, c);
+				m.op(DUP, 1);
+				m.astore(local);
+			}
+			else if (n instanceof GlobalRefNode) {
+				m.aload(0);
+				constant(((GlobalRefNode)n).symbol);
+				m.invoke(INVOKEVIRTUAL, FUNCTION, "special", "(" + V + ")" + V);
+			}
+			else if (n instanceof StoreNode) {
+				m.aload(0);
+				constant(((StoreNode)n).symbol);
+				value(((StoreNode)n).value, c);
+				m.invoke(INVOKEVIRTUAL, FUNCTION, "store", "(" + V + V + ")" + V);
+			}
+			else if (n instanceof BindNode) {
+				m.aload(0);
+				constant(((BindNode)n).symbol);
+				value(((BindNode)n).value, c);
+				m.invoke(INVOKEVIRTUAL, FUNCTION, "bind", "(" + V + V + ")" + V);
+			}
+			else if (n instanceof UnbindNode) {
+				m.aload(0);
+				constant(((UnbindNode)n).symbol);
+				m.invoke(INVOKEVIRTUAL, FUNCTION, "unbind", "(" + V + ")" + V);
+			}
+			else if (n instanceof ListNode) {
+				Node[] elements = ((ListNode)n).elements;
+				for (Node element : elements)
+					value(element, c);
+				m.field(GETSTATIC, VALUE, "NIL", "Lorg/jatha/dynatype/LispList;");
+				for (int i = 0; i < elements.length; i++)
+					m.invoke(INVOKESTATIC, FUNCTION, "pair", "(" + V + V + ")" + V);
+			}
+			else if (n instanceof PrimitiveCall0Node)
+				primitive(((PrimitiveCall0Node)n).primitive, c);
+			else if (n instanceof PrimitiveCall1Node)
+				primitive(((PrimitiveCall1Node)n).primitive, c, ((PrimitiveCall1Node)n).arg1);
+			else if (n instanceof PrimitiveCall2Node)
+				primitive(((PrimitiveCall2Node)n).primitive, c, ((PrimitiveCall2Node)n).arg1, ((PrimitiveCall2Node)n).arg2);
+			else if (n instanceof PrimitiveCall3Node)
+				primitive(((PrimitiveCall3Node)n).primitive, c, ((PrimitiveCall3Node)n).arg1, ((PrimitiveCall3Node)n).arg2, ((PrimitiveCall3Node)n).arg3);
+			else if (n instanceof IfNode) {
+				IfNode node = (IfNode)n;
+				SECDClassWriter.Label otherwise = m.label(), end = m.label();
+				value(node.test, c);
+				m.field(GETSTATIC, VALUE, "NIL", "Lorg/jatha/dynatype/LispList;");
+				m.jump(IF_ACMPEQ, otherwise);
+				value(node.then, c);
+				m.jump(GOTO, end);
+				m.mark(otherwise);
+				value(node.otherwise, c);
+				m.mark(end);
+			}
+			else if (n instanceof SeqNode) {
+				Node[] nodes = ((SeqNode)n).nodes;
+				for (int i = 0; i < nodes.length; i++) {
+					value(nodes[i], c);
+					if (i < nodes.length - 1)
+						m.op(POP, -1);
+				}
+			}
+			else if (n instanceof LetNode)
+				value(((LetNode)n).body, let((LetNode)n, c));
+			else if (n instanceof InvokeNode)
+				invoke(((InvokeNode)n).args, ((InvokeNode)n).function, c, false);
+			else if (n instanceof TailInvokeNode)
+				invoke(((TailInvokeNode)n).args, ((TailInvokeNode)n).function, c, false);
+			else if (n instanceof CallNode)
+				call(((CallNode)n).args, ((CallNode)n).function, c, false);
+			else if (n instanceof TailCallNode)
+				call(((TailCallNode)n).args, ((TailCallNode)n).function, c, false);
+			else  // closures, &rest arguments, ...
+				throw new Uncompilable();
+		}
+
+		// ENTER: the values of the LET go to the new locals
+		Context let(LetNode node, Context c)
+				throws Uncompilable
+		{
+			int[] locals = new int[node.values.length];
+			for (int i = 0; i < locals.length; i++)
+				locals[i] = allocate(1);
+			for (Node value : node.values)
+				value(value, c);
+			for (int i = locals.length - 1; i >= 0; i--)
+				m.astore(locals[i]);
+			return new Context(new Scope(c.scope, locals), c.temps);
+		}
+
+		void primitive(LispPrimitive primitive, Context c, Node... args)
+				throws Uncompilable
+		{
+			constant(primitive);
+			m.type(CHECKCAST, PRIMITIVE);
+			for (Node arg : args)
+				value(arg, c);
+			m.invoke(INVOKEVIRTUAL, PRIMITIVE, "call", descriptor(args.length));
+		}
+
+		// the array of the arguments
+		void array(List<Node> values, Context c)
+				throws Uncompilable
+		{
+			m.iconst(values.size());
+			m.type(ANEWARRAY, VALUE);
+			for (int i = 0; i < values.size(); i++) {
+				m.op(DUP, 1);
+				m.iconst(i);
+				value(values.get(i), c);
+				m.op(AASTORE, -3);
+			}
+		}
+
+		// AP and DAP, the arguments are in the list
+		void invoke(Node args, Node function, Context c, boolean tail)
+				throws Uncompilable
+		{
+			invoke(arguments(args), args, function, c, tail);
+		}
+		// APn and DAPn
+		void call(Node[] args, Node function, Context c, boolean tail)
+				throws Uncompilable
+		{
+			invoke(Arrays.asList(args), null, function, c, tail);
+		}
+
+		/**
+		 * The call of the function.
+		 * @param values the nodes of the arguments, or null if unknown
+		 * @param args   the node of the arguments list, or null if the
+		 *               arguments are passed on the stack
+		 */
+		void invoke(List<Node> values, Node args, Node function, Context c, boolean tail)
+				throws Uncompilable
+		{
+			if (function instanceof LambdaNode) {  // LET
+				if (values == null)
+					throw new Uncompilable();
+				SECDTree.Function body = ((LambdaNode)function).function;
+				int[] locals = new int[values.size()];
+				for (int i = 0; i < locals.length; i++)
+					locals[i] = allocate(1);
+				for (Node value : values)
+					value(value, c);
+				for (int i = locals.length - 1; i >= 0; i--)
+					m.astore(locals[i]);
+
+				Context let = new Context(new Scope(c.scope, locals), allocate(body.temps));
+				if (tail)
+					tail(body.body, let);
+				else
+					value(body.body, let);
+				return;
+			}
+
+			if (function instanceof FunctionRefNode) {  // global function
+				m.aload(0);
+				constant(new SECDMachine.InlineCache(((FunctionRefNode)function).symbol, false));
+				if (args != null) {
+					value(args, c);
+					m.invoke(INVOKEVIRTUAL, FUNCTION, tail ? "tailGlobal" : "callGlobal", "(" + V + V + ")" + V);
+				}
+				else {
+					array(values, c);
+					m.invoke(INVOKEVIRTUAL, FUNCTION, tail ? "tailGlobal" : "callGlobal", "(" + V + "[" + V + ")" + V);
+				}
+				if (tail)
+					m.areturn();
+				return;
+			}
+
+			Scope callee;
+			if (function instanceof ArgumentNode && ((ArgumentNode)function).j == 1)
+				callee = frame(c, 1);
+			else if (function instanceof LocalRefNode && ((LocalRefNode)function).j == 1)
+				callee = frame(c, ((LocalRefNode)function).i);
+			else
+				throw new Uncompilable();
+			if (callee.locals != null)  // a closure in a variable
+				throw new Uncompilable();
+
+			// the function itself
+			if (values == null || values.size() != arity) {
+				m.aload(0);
+				if (args != null) {
+					value(args, c);
+					m.invoke(INVOKEVIRTUAL, FUNCTION, "call", "(" + V + ")" + V);
+				}
+				else {
+					array(values, c);
+					m.invoke(INVOKEVIRTUAL, FUNCTION, "call", "([" + V + ")" + V);
+				}
+			}
+			else if (tail && m.stack() == 0) {
+				// tail call: new arguments and jump to the start
+				for (Node value : values)
+					value(value, c);
+				for (int i = arity; i > 0; i--)
+					m.astore(i);
+				m.jump(GOTO, start);
+				return;
+			}
+			else if (tail) {
+				m.aload(0);
+				for (Node value : values)
+					value(value, c);
+				m.invoke(INVOKEVIRTUAL, className, "invoke", descriptor(arity));
+			}
+			else {  // the pending tail calls are made here
+				m.aload(0);
+				m.aload(0);
+				for (Node value : values)
+					value(value, c);
+				m.invoke(INVOKEVIRTUAL, className, "invoke", descriptor(arity));
+				m.invoke(INVOKEVIRTUAL, FUNCTION, "result", "(" + V + ")" + V);
+			}
+			if (tail)
+				m.areturn();
+		}
+	}
+}
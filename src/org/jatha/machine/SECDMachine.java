@@ -25,6 +25,8 @@
 package org.jatha.machine;
 
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import org.jatha.Lisp;
 import org.jatha.LispProcessor;
@@ -62,10 +64,12 @@ public class SECDMachine extends LispProcessor
 	public static boolean DEBUG = false;
 
 	// ------  Registers  --------------
-	public final SECDRegister S = new SECDRegister("S-05171955");  // Stack register
+	// In the register-file mode S and D are array-backed (SECDStack and SECDDump),
+	// otherwise all registers are plain lists.
+	public final SECDRegister S;  // Stack register
 	public final SECDRegister E = new SECDRegister("E-06141957");  // Environment register
 	public final SECDRegister C = new SECDRegister("C-06151962");  // Control register
-	public final SECDRegister D = new SECDRegister("D-06071966");  // Dump register
+	public final SECDRegister D;  // Dump register
 	// An X register for dumping tag information, as a stack. This is the same register as D, but not totally. =)
 	public final SECDRegister X = new SECDRegister("X-02324255");
 
@@ -77,15 +81,82 @@ public class SECDMachine extends LispProcessor
 	// There is a B register for each machine so that it will
 	// function correctly in a multi-threaded environment.
 //	public final SECDHashTable B = new SECDHashTable();
-	public final HashMap<LispValue, LispValue> B = new HashMap<LispValue, LispValue>(103, 1.2f);
+	public final HashMap<LispValue, LispValue> B;
 	
 	// ------------------  BASIC MACHINE OPS   ------------------------------
 	
-	public final static SECDop BLK = new SECDop("BLK") {
+	/**
+	 * Enters a BLOCK that has a RETURN-FROM: pushes the escape record
+	 * with the tag and the code that follows the block on the dump.
+	 * The body ends with UNESC, followed by the same code.
+	 * @see SECDEscape
+	 */
+	public final static SECDop ESC = new SECDop("ESC") {
+		@Override
+		public void Execute(SECDMachine machine) {
+			machine.C.pop();
+			LispValue tag  = machine.C.pop();
+			LispValue code = machine.C.pop();
+			machine.escape(new SECDEscape(machine, tag, false, code));
+		}
+	};
+	/**
+	 * Enters a CATCH: pops the tag and pushes the escape record
+	 * like ESC.
+	 */
+	public final static SECDop CATCH = new SECDop("CATCH") {
+		@Override
+		public void Execute(SECDMachine machine) {
+			machine.C.pop();
+			LispValue tag  = machine.S.pop();
+			LispValue code = machine.C.pop();
+			machine.escape(new SECDEscape(machine, tag, true, code));
+		}
+	};
+	/**
+	 * Leaves the BLOCK or CATCH at the end of its body, the value of
+	 * the body stays on the stack.
+	 */
+	public final static SECDop UNESC = new SECDop("UNESC") {
 		@Override
 		public void Execute(SECDMachine machine) {
-			machine.C.pop();  // pop the BLK
-			machine.C.pop();  // pop the tag
+			machine.C.pop();
+			machine.f_escape = ((SECDEscape)machine.D.pop()).previous;
+		}
+	};
+	/**
+	 * Pops the value and leaves the innermost active block with the tag.
+	 */
+	public final static SECDop RETURN_FROM = new SECDop("RETURN_FROM") {
+		@Override
+		public void Execute(SECDMachine machine) {
+			machine.C.pop();
+			LispValue tag = machine.C.pop();
+			LispValue value = machine.S.pop();
+			SECDEscape escape = machine.f_escape;
+			while (escape != null && (escape.catcher || escape.tag != tag))
+				escape = escape.previous;
+			if (escape == null)
+				throw new LispException("The block " + tag + " has already been exited.");
+			machine.exit(escape, value);
+		}
+	};
+	/**
+	 * Pops the value and the tag and leaves the innermost CATCH with
+	 * the EQL tag.
+	 */
+	public final static SECDop THROW = new SECDop("THROW") {
+		@Override
+		public void Execute(SECDMachine machine) {
+			machine.C.pop();
+			LispValue value = machine.S.pop();
+			LispValue tag = machine.S.pop();
+			SECDEscape escape = machine.f_escape;
+			while (escape != null && !(escape.catcher && escape.tag.eql(tag) != NIL))
+				escape = escape.previous;
+			if (escape == null)
+				throw new LispException("There is no CATCH for the tag " + tag + ".");
+			machine.exit(escape, value);
 		}
 	};
 	
@@ -135,22 +206,7 @@ public class SECDMachine extends LispProcessor
 			LispValue val = machine.S.pop();
 			LispValue sym = machine.S.pop();
 
-			if (sym instanceof LispCons) {   // local variable
-				LispCons ij = (LispCons)sym;
-				LispCons valueList = (LispCons)machine.E.value();
-				LispValue newValue = val;
-		    	
-				nth(ij, valueList).rplaca(newValue);
-			}
-			else
-			if (sym instanceof LispSymbol) {
-				if (sym.specialP())  // special variable
-					machine.special_set(sym, val);
-				else  // global variable
-					sym.setf_symbol_value(val);
-			}
-			else
-				throw new LispValueNotASymbolException(sym);
+			machine.store(machine.E.value(), sym, val);
 
 			machine.S.push(val);
 			machine.C.pop(); // ST
@@ -161,8 +217,8 @@ public class SECDMachine extends LispProcessor
 		public void Execute(SECDMachine machine) {
 			machine.C.pop();
 			
-			LispCons indexes = (LispCons)car(machine.C.value());
-			machine.S.push(rest(indexes, (LispCons)machine.E.value()));
+			SECDFrame.Slot slot = (SECDFrame.Slot)car(machine.C.value());
+			machine.S.push(((SECDFrame)machine.E.value()).rest(slot));
 
 			machine.C.pop();
 		}
@@ -170,8 +226,8 @@ public class SECDMachine extends LispProcessor
 
 	/**
 	 * Pushes the value of a variable onto the stack.
-	 * The variable is indicated by the argument, a pair.
-	 * The pair's car specifies the level, the cdr the position.
+	 * The variable is indicated by the argument, a slot resolved
+	 * by the compiler: the frame and the position in the frame.
 	 * So "(1 . 3)" gives the current function's (level 1) third parameter.
 	 */
 	public static final SECDop LD    = new SECDop("LD") {
@@ -179,11 +235,8 @@ public class SECDMachine extends LispProcessor
 		public void Execute(SECDMachine machine) {
 			machine.C.pop();
 			
-			LispCons ij = (LispCons)car(machine.C.value());
-			LispCons valueList = (LispCons)machine.E.value();
-			LispCons r = (LispCons)nth(ij, valueList);
-			
-			machine.S.push(r.car());
+			SECDFrame.Slot slot = (SECDFrame.Slot)car(machine.C.value());
+			machine.S.push(((SECDFrame)machine.E.value()).get(slot));
 			
 			machine.C.pop();
 		}
@@ -191,25 +244,21 @@ public class SECDMachine extends LispProcessor
 	
 	public static final SECDop LD_GLOBAL = new SECDop("LD_GLOBAL") {
 		@Override
-		public void Execute(SECDMachine machine) {
+		public void Execute(SECDMachine machine)
+				throws CompilerException {
+			LispValue symbol = car(cdr(machine.C.value()));
+			if (!symbol.specialP() && symbol.get_specialCount() <= 0) {
+				quicken(machine, LD_GLOBAL_Q, symbol);
+				LD_GLOBAL_Q.Execute(machine);
+				return;
+			}
 			machine.C.pop();
 			
 		    LispValue symb = car(machine.C.value());
-		    machine.S.push(get_special_value(machine, symb));
+		    machine.S.push(machine.special_value(symb));
 
 		    machine.C.pop(); // symbol
 		}
-		// Assume the caller has verified that this is a special variable.
-		private LispValue get_special_value(SECDMachine machine, LispValue symbol)
-		{
-			if (symbol.get_specialCount() <= 0)
-				return ((LispSymbol)symbol).symbol_value();
-			
-			LispValue value = machine.B.get(symbol);
-			if (value == null)
-				return NIL;
-			return car(value);
-		}
 	};
 	
 	/**
@@ -223,22 +272,33 @@ public class SECDMachine extends LispProcessor
 			machine.C.pop();
 			
 			LispValue code = machine.C.pop();  // Get the new code.
-			machine.S.assign(cons(cons(code, machine.E.value()),
-		                          machine.S.value())); 
+			machine.S.push(cons(code, machine.E.value()));
 		}
 	};
-	public final static SECDop LDFC  = new SECDop("LDFC") {
+	/**
+	 * LDFF code captures makes the flat closure: the environment of the
+	 * closure is the frame of the variables it refers to, copied from
+	 * the current environment, so the closure doesn't keep the frames
+	 * it doesn't need.
+	 * @see SECDFrame.Captures
+	 */
+	public final static SECDop LDFF  = new SECDop("LDFF") {
 		@Override
 		public void Execute(SECDMachine machine) {
-			/* Make a closure and push it on the S Register. */
-			machine.C.pop();   // pop the LDFC symbol.
-
-			LispValue code = machine.C.pop().symbol_function();
-			if (code instanceof LispFunction)
-				code = ((LispFunction)code).getCode();
+			machine.C.pop();
 
-			machine.S.assign(cons(cons(code, machine.E.value()),
-			                      machine.S.value()));
+			LispValue code = machine.C.pop();
+			SECDFrame.Captures captures = (SECDFrame.Captures)machine.C.pop();
+			machine.S.push(cons(code, captures.frame(machine.E.value())));
+		}
+	};
+	public final static SECDop LDFC  = new SECDop("LDFC") {
+		@Override
+		public void Execute(SECDMachine machine)
+				throws CompilerException {
+			/* Make a closure and push it on the S Register. */
+			quicken(machine, LDFC_Q, new InlineCache(car(cdr(machine.C.value())), false));
+			LDFC_Q.Execute(machine);
 		}
 	};
 	
@@ -302,24 +362,22 @@ public class SECDMachine extends LispProcessor
 	 */
 	public final static SECDop AP    = new SECDop("AP") {
 		@Override
-		public void Execute(SECDMachine machine) {
+		public void Execute(SECDMachine machine)
+				throws CompilerException {
 			machine.C.pop();   // Get rid of 'AP' opcode.
 			
 			LispCons fe = (LispCons)machine.S.pop();   /* (f . e) */
 			LispValue v  = machine.S.pop();
 
-			LispValue code = fe.car();
-			if (code instanceof LispFunction)
-				code = ((LispFunction)code).getCode();
-
+			if (fe.car() instanceof SECDJvm.Function) {
+				machine.S.push(((SECDJvm.Function)fe.car()).call(v));
+				return;
+			}
+			LispValue code = listCode(fe.car());
 
-			machine.D.assign(cons(machine.S.value(),
-			                      cons(machine.E.value(),
-			                           cons(machine.C.value(),
-			                                machine.D.value()))));
+			machine.D.pushFrame(machine.S, machine.E.value(), machine.C.value());
 			machine.C.assign(code);
-			machine.E.assign(cons(v, fe.cdr()));
-			machine.S.assign(NIL);
+			machine.E.assign(new SECDFrame(v, fe.cdr()));
 		}
 	};
 	
@@ -357,19 +415,13 @@ public class SECDMachine extends LispProcessor
 		                                                                     machine.D.value()))));
 
 			 */
-			LispValue e2 = machine.E.value();
-			machine.D.assign(cons(machine.S.value(),
-			                      cons(cdr(e2),
-			                           cons(machine.C.value(),
-			                                machine.D.value()))));
+			SECDFrame e2 = (SECDFrame)machine.E.value();
+			machine.D.pushFrame(machine.S, e2.parent, machine.C.value());
 
-			machine.C.assign(car(recursiveClosure));  /* f */
+			machine.C.assign(listCode(car(recursiveClosure)));  /* f */
 
-			// The car of E should be rplaca'd with the list of closures
-			//machine.E.assign(f_lisp.makeCons(v, recursiveClosure.cdr().cdr())); //  (v . e1)
-			machine.E.value().rplaca(v);
-
-			machine.S.assign(NIL);
+			// The dummy frame gets the list of closures
+			e2.values = SECDFrame.array(v);
 		}
 	};
 	
@@ -384,9 +436,7 @@ public class SECDMachine extends LispProcessor
 			LispValue save = machine.S.pop();
 //			machine.C.pop(); // Pop the RTN command. Can be skipped.
 
-			machine.S.assign(cons(save, machine.D.pop()));
-			machine.E.assign(machine.D.pop());
-			machine.C.assign(machine.D.pop());
+			machine.D.popFrame(machine.S, machine.E, machine.C, save);
 		}
 	};
 	public final static SECDop RTN_IF = new SECDop("RTN_IF") {
@@ -395,11 +445,8 @@ public class SECDMachine extends LispProcessor
 			LispValue save = machine.S.pop();
 			machine.C.pop();               /* Pop the RTN_IF command. */
 
-			if (save == NIL) {
-				machine.S.assign(cons(save, machine.D.pop()));
-				machine.E.assign(machine.D.pop());
-				machine.C.assign(machine.D.pop());
-			}
+			if (save == NIL)
+				machine.D.popFrame(machine.S, machine.E, machine.C, save);
 		    // else do nothing and continue processing.
 		}
 	};
@@ -409,11 +456,8 @@ public class SECDMachine extends LispProcessor
 			LispValue save = machine.S.pop();
 			machine.C.pop();               /* Pop the RTN_IF command. */
 
-			if (save != NIL) {
-				machine.S.assign(cons(save, machine.D.pop()));
-				machine.E.assign(machine.D.pop());
-				machine.C.assign(machine.D.pop());
-			}
+			if (save != NIL)
+				machine.D.popFrame(machine.S, machine.E, machine.C, save);
 		    // else do nothing and continue processing.
 		}
 	};
@@ -423,31 +467,253 @@ public class SECDMachine extends LispProcessor
 	 */
 	public final static SECDop DAP    = new SECDop("DAP") {
 		@Override
-		public void Execute(SECDMachine machine) {
+		public void Execute(SECDMachine machine)
+				throws CompilerException {
 			machine.C.pop();  // Pop DAD instruction
 		    
 			LispValue fe = machine.S.pop();   /* (f . e) */
 			LispValue v  = machine.S.pop();
 
-			machine.C.assign(car(fe));
-			machine.E.assign(cons(v, cdr(fe)));
+			if (car(fe) instanceof SECDJvm.Function) {
+				LispValue result = ((SECDJvm.Function)car(fe)).call(v);
+				machine.C.assign(cons(RTN, NIL));  // return the result
+				machine.S.assign(NIL);
+				machine.S.push(result);
+				return;
+			}
+			machine.C.assign(listCode(car(fe)));
+			machine.E.assign(new SECDFrame(v, cdr(fe)));
 			machine.S.assign(NIL);
 		}
 	};
-	
+
+	/**
+	 * APn and DAPn work like AP and DAP for the call with n arguments,
+	 * but the arguments are pushed on the stack one by one instead of
+	 * the list, and are moved straight to the frame of the callee.
+	 * The &amp;rest parameter is made by LDR of the frame values.
+	 */
+	static final class Apply extends SECDop
+	{
+		final int arity;
+		final boolean tail;
+
+		Apply(int arity, boolean tail)
+		{
+			super((tail ? "DAP" : "AP") + arity);
+			this.arity = arity;
+			this.tail = tail;
+		}
+
+		@Override
+		public void Execute(SECDMachine machine)
+				throws CompilerException {
+			machine.C.pop();
+
+			LispValue fe = machine.S.pop();   /* (f . e) */
+			LispValue[] values = (arity == 0) ? SECDFrame.EMPTY : new LispValue[arity];
+			for (int i = arity; --i >= 0; )
+				values[i] = machine.S.pop();
+
+			if (car(fe) instanceof SECDJvm.Function) {
+				LispValue result = ((SECDJvm.Function)car(fe)).call(values);
+				if (tail) {
+					machine.C.assign(cons(RTN, NIL));  // return the result
+					machine.S.assign(NIL);
+				}
+				machine.S.push(result);
+				return;
+			}
+			if (!tail)
+				machine.D.pushFrame(machine.S, machine.E.value(), machine.C.value());
+			machine.C.assign(listCode(car(fe)));
+			machine.E.assign(new SECDFrame(values, cdr(fe)));
+			if (tail)
+				machine.S.assign(NIL);
+		}
+	}
+
+	/**
+	 * The number of the arguments passed on the stack by APn and DAPn,
+	 * the calls with more arguments pass the list to AP and DAP.
+	 */
+	public static final int MAX_STACK_ARGUMENTS = 4;
+
+	public final static SECDop AP0  = new Apply(0, false);
+	public final static SECDop AP1  = new Apply(1, false);
+	public final static SECDop AP2  = new Apply(2, false);
+	public final static SECDop AP3  = new Apply(3, false);
+	public final static SECDop AP4  = new Apply(4, false);
+	public final static SECDop DAP0 = new Apply(0, true);
+	public final static SECDop DAP1 = new Apply(1, true);
+	public final static SECDop DAP2 = new Apply(2, true);
+	public final static SECDop DAP3 = new Apply(3, true);
+	public final static SECDop DAP4 = new Apply(4, true);
+
+	static final SECDop[] APN  = { AP0, AP1, AP2, AP3, AP4 };
+	static final SECDop[] DAPN = { DAP0, DAP1, DAP2, DAP3, DAP4 };
+
+	/**
+	 * Returns the call instruction for the number of the arguments:
+	 * APn or DAPn if they are passed on the stack, AP or DAP if
+	 * they are passed in the list.
+	 */
+	public static SECDop apply(int arguments, boolean tail)
+	{
+		if (arguments > MAX_STACK_ARGUMENTS)
+			return tail ? DAP : AP;
+		return tail ? DAPN[arguments] : APN[arguments];
+	}
+
+	/**
+	 * The local function of FLET or LABELS.  The calls of the function
+	 * name it in the code, so they don't need a closure: the compiler
+	 * knows the code and the frame the function is defined in.
+	 * @see #APL
+	 */
+	public static final class Local extends StandardLispValue
+	{
+		final LispValue name;
+		LispValue code;
+
+		public Local(LispValue name)
+		{
+			this.name = name;
+		}
+
+		/**
+		 * Sets the code of the function, compiled after the calls
+		 * of LABELS that refer to it.
+		 */
+		public void setCode(LispValue code)
+		{
+			this.code = code;
+		}
+
+		public String toString()
+		{
+			return "#<local " + name + ">";
+		}
+
+		public void internal_princ(java.io.PrintStream os) { os.print(toString()); }
+		public void internal_prin1(java.io.PrintStream os) { os.print(toString()); }
+		public void internal_print(java.io.PrintStream os) { os.print(toString()); }
+	}
+
+	// the frame a local function is defined in, depth frames out of env
+	static LispValue outer(LispValue env, int depth)
+	{
+		while (--depth >= 0)
+			env = ((SECDFrame)env).parent;
+		return env;
+	}
+
+	/**
+	 * APL local depth n calls the local function with n arguments on
+	 * the stack, like APn.  The frame of the arguments is made in
+	 * front of the frame the function is defined in, depth frames out
+	 * of the current environment.  DAPL is the tail call, the call of
+	 * the function itself in its tail position is a jump.
+	 */
+	static final class LocalApply extends SECDop
+	{
+		final boolean tail;
+
+		LocalApply(boolean tail)
+		{
+			super(tail ? "DAPL" : "APL");
+			this.tail = tail;
+		}
+
+		@Override
+		public void Execute(SECDMachine machine) {
+			machine.C.pop();
+			Local local = (Local)machine.C.pop();
+			int depth = (int)((LispInteger)machine.C.pop()).getLongValue();
+			int count = (int)((LispInteger)machine.C.pop()).getLongValue();
+
+			LispValue[] values = (count == 0) ? SECDFrame.EMPTY : new LispValue[count];
+			for (int i = count; --i >= 0; )
+				values[i] = machine.S.pop();
+
+			LispValue env = outer(machine.E.value(), depth);
+			if (!tail)
+				machine.D.pushFrame(machine.S, machine.E.value(), machine.C.value());
+			machine.C.assign(local.code);
+			machine.E.assign(new SECDFrame(values, env));
+			if (tail)
+				machine.S.assign(NIL);
+		}
+	}
+
+	public final static SECDop APL  = new LocalApply(false);
+	public final static SECDop DAPL = new LocalApply(true);
+
+	/**
+	 * LDL local depth pushes the closure of the local function, for
+	 * (FUNCTION f).  It's the only place the closure is made.
+	 */
+	public final static SECDop LDL = new SECDop("LDL") {
+		@Override
+		public void Execute(SECDMachine machine) {
+			machine.C.pop();
+			Local local = (Local)machine.C.pop();
+			int depth = (int)((LispInteger)machine.C.pop()).getLongValue();
+			machine.S.push(cons(local.code, outer(machine.E.value(), depth)));
+		}
+	};
+
 	
 	/**
-	 * Pushes a "dummy", an empty list, in front of the environment list.
+	 * Pushes a "dummy", an empty frame, in front of the environment.
 	 */
 	public final static SECDop DUM   = new SECDop("DUM") {
 		@Override
 		public void Execute(SECDMachine machine) {
-			machine.E.push(NIL);
+			machine.E.assign(new SECDFrame(SECDFrame.EMPTY, machine.E.value()));
 			machine.C.pop();
 		}
 	};
-	
-	public final static SECDop LIS   = new SECDop("LIS") {
+
+	/**
+	 * ENTER n pops n values from the stack and pushes the frame of
+	 * them in front of the environment, LEAVE drops it again.  They
+	 * make the frame of a LET without the closure and the dump record
+	 * of (LDF ... AP).  In the tail position the LEAVE is left out,
+	 * the RTN restores the environment of the caller.
+	 */
+	public final static SECDop ENTER = new SECDop("ENTER") {
+		@Override
+		public void Execute(SECDMachine machine) {
+			machine.C.pop();
+			int count = (int)((LispInteger)machine.C.pop()).getLongValue();
+			LispValue[] values = (count == 0) ? SECDFrame.EMPTY : new LispValue[count];
+			for (int i = count; --i >= 0; )
+				values[i] = machine.S.pop();
+			machine.E.assign(new SECDFrame(values, machine.E.value()));
+		}
+	};
+	public final static SECDop LEAVE = new SECDop("LEAVE") {
+		@Override
+		public void Execute(SECDMachine machine) {
+			machine.C.pop();
+			machine.E.assign(((SECDFrame)machine.E.value()).parent);
+		}
+	};
+
+	/**
+	 * Drops the value on the top of the stack, the value of a form
+	 * of PROGN but the last one.
+	 */
+	public final static SECDop POP   = new SECDop("POP") {
+		@Override
+		public void Execute(SECDMachine machine) {
+			machine.C.pop();
+			machine.S.pop();
+		}
+	};
+
+	public final static SECDop LIS  = new SECDop("LIS") {
 		@Override
 		public void Execute(SECDMachine machine) {
 			machine.C.pop();               /* Pop the LIS command. */
@@ -481,68 +747,564 @@ public class SECDMachine extends LispProcessor
 		}
 	};
 	
-	public final static SECDop STOP  = new SECDop("STOP") {
+	/**
+	 * The core list primitives, emitted by the compiler as the machine
+	 * instructions instead of the calls of the registered primitives.
+	 * The list machine and the bytecode engine run them inline, the
+	 * tree engine and the JVM classes call them like the simple
+	 * primitives.
+	 *
+	 * The compiler emits them only while the symbol still has the
+	 * builtin function, the redefined CAR is called as a function.
+	 */
+	public abstract static class Intrinsic extends SECDop
+	{
+		// the cases of the list machine loop
+		static final int OP_CAR = 0, OP_CDR = 1, OP_CONS = 2, OP_EQ = 3,
+		                 OP_NOT = 4, OP_ATOMP = 5;
+
+		final int arity;
+		final int op;
+
+		Intrinsic(String name, int arity, int op)
+		{
+			super(name);
+			this.arity = arity;
+			this.op = op;
+		}
+
 		@Override
-		public void Execute(SECDMachine machine) {
+		public void Execute(SECDMachine machine)
+				throws CompilerException {
 			machine.C.pop();
-		    /* How do we stop? */
-		}
-	};
-	
-//	public SECDop TAG_B = null;
-	
-	public SECDMachine()
-	{
-/*    
-		TAG_B = new SECDop("TAG_B") {
-			@Override
-			public void Execute(SECDMachine machine) {
-				machine.X.assign(
-						cons(list(
-						          machine.E.value(), machine.D.value(),
-						          new StandardLispHashTable(lisp, (StandardLispHashTable)machine.B)),
-						     machine.X.value()));
-				
-				machine.C.pop();
-			}
-		};*/
-	}
 
-/* ------------------  SPECIAL BINDING   ------------------------------ */
+			if (arity == 1)
+				machine.S.push(call(machine.S.pop()));
+			else {
+				LispValue b = machine.S.pop();
+				machine.S.push(call(machine.S.pop(), b));
+			}
+		}
 
-  // Assume the caller has verified that this is a special variable.
-  public void special_bind(LispValue symbol, LispValue value)
-  {
-    if (symbol.constantp())
-    {
-      // Cause a LispConstant Redefined error
-      symbol.setf_symbol_value(value);
-    }
-    else
-    {
-      LispValue bindings = B.get(symbol);
-      if (bindings == null) bindings = NIL;
+		public int argumentCount()
+		{
+			return arity;
+		}
+		public LispValue Execute(LispValue[] stack, int top)
+				throws CompilerException
+		{
+			if (arity == 1)
+				return call(stack[top-1]);
+			return call(stack[top-2], stack[top-1]);
+		}
 
-      B.put(symbol, cons(value, bindings));
-      symbol.adjustSpecialCount(+1);
-    }
-  }
+		static LispValue first(LispValue list)
+		{
+			if (list instanceof LispList)
+				return ((LispList)list).car();
+			throw new LispValueNotAConsException(list);
+		}
+		static LispValue rest(LispValue list)
+		{
+			if (list instanceof LispList)
+				return ((LispList)list).cdr();
+			throw new LispValueNotAConsException(list);
+		}
+		static boolean atom(LispValue value)
+		{
+			return value instanceof LispAtom || value == NIL;
+		}
+		// the one-argument intrinsic by its case, without the virtual call
+		static LispValue call(int op, LispValue value)
+		{
+			switch (op) {
+			case OP_CAR:
+				return first(value);
+			case OP_CDR:
+				return rest(value);
+			case OP_NOT:
+				return value == NIL ? T : NIL;
+			default:
+				return atom(value) ? T : NIL;
+			}
+		}
+		static LispValue eq(LispValue a, LispValue b)
+		{
+			return (a == b && atom(a)) ? T : NIL;
+		}
+	}
 
+	public final static Intrinsic CAR = new Intrinsic("CAR", 1, Intrinsic.OP_CAR) {
+		public LispValue call(LispValue list) {
+			return first(list);
+		}
+	};
+	public final static Intrinsic CDR = new Intrinsic("CDR", 1, Intrinsic.OP_CDR) {
+		public LispValue call(LispValue list) {
+			return rest(list);
+		}
+	};
+	public final static Intrinsic CONS = new Intrinsic("CONS", 2, Intrinsic.OP_CONS) {
+		public LispValue call(LispValue a, LispValue b) {
+			return cons(a, b);
+		}
+	};
+	public final static Intrinsic EQ = new Intrinsic("EQ", 2, Intrinsic.OP_EQ) {
+		public LispValue call(LispValue a, LispValue b) {
+			return eq(a, b);
+		}
+	};
+	public final static Intrinsic NOT = new Intrinsic("NOT", 1, Intrinsic.OP_NOT) {
+		public LispValue call(LispValue value) {
+			return value == NIL ? T : NIL;
+		}
+	};
+	public final static Intrinsic NULLP = new Intrinsic("NULL?", 1, Intrinsic.OP_NOT) {
+		public LispValue call(LispValue value) {
+			return value == NIL ? T : NIL;
+		}
+	};
+	public final static Intrinsic ATOMP = new Intrinsic("ATOM?", 1, Intrinsic.OP_ATOMP) {
+		public LispValue call(LispValue value) {
+			return atom(value) ? T : NIL;
+		}
+	};
 
-  public void special_unbind(LispValue symbol)
-  {
-    LispValue bindings = B.get(symbol);
-    if (bindings == null) bindings = NIL;
+	/**
+	 * The superinstructions replace the frequent sequences of the
+	 * instructions in the list code, one dispatch of the machine loop
+	 * instead of two or three.  They are made by {@link SECDPeephole}
+	 * after the compiler and keep the operands of the sequence in
+	 * place, so the bytecode and tree engines run the
+	 * <tt>expand()</tt>ed sequence.  The quickened instructions are
+	 * expanded the same way.
+	 */
+	abstract static class Superinstruction extends SECDop
+	{
+		Superinstruction(String name)
+		{
+			super(name);
+		}
 
-    B.put(symbol, cdr(bindings));
-    symbol.adjustSpecialCount(-1);
-  }
+		/**
+		 * Returns the code of the original sequence.
+		 * @param rest the code after the superinstruction
+		 */
+		abstract LispValue expand(LispValue rest);
+	}
 
+	// the value of the variable of the slot
+	static LispValue local(SECDMachine machine, LispValue slot)
+	{
+		return ((SECDFrame)machine.E.value()).get((SECDFrame.Slot)slot);
+	}
 
-  // Sets the binding of a special variable.
-	// used by AND and OR primitives
-  public void special_set(LispValue symbol, LispValue value)
-  {
+	/**
+	 * LD x LD y op, op is a primitive of two arguments.
+	 */
+	final static SECDop LD_LD = new Superinstruction("LD_LD") {
+		@Override
+		public void Execute(SECDMachine machine)
+				throws CompilerException {
+			LispValue code = cdr(machine.C.value());
+			LispValue x = local(machine, car(code));
+			code = cdr(code);
+			LispValue y = local(machine, car(code));
+			code = cdr(code);
+			machine.S.push(((LispPrimitive)car(code)).call(x, y));
+			machine.C.assign(cdr(code));
+		}
+		LispValue expand(LispValue rest) {
+			return cons(LD, cons(car(rest), cons(LD, cdr(rest))));
+		}
+	};
+	/**
+	 * LD x LDC k op, op is a primitive of two arguments.
+	 */
+	final static SECDop LD_LDC = new Superinstruction("LD_LDC") {
+		@Override
+		public void Execute(SECDMachine machine)
+				throws CompilerException {
+			LispValue code = cdr(machine.C.value());
+			LispValue x = local(machine, car(code));
+			code = cdr(code);
+			LispValue k = car(code);
+			code = cdr(code);
+			machine.S.push(((LispPrimitive)car(code)).call(x, k));
+			machine.C.assign(cdr(code));
+		}
+		LispValue expand(LispValue rest) {
+			return cons(LD, cons(car(rest), cons(LDC, cdr(rest))));
+		}
+	};
+	/**
+	 * LD x op, op is a primitive of one argument: LD x CAR and so on.
+	 */
+	final static SECDop LD_OP = new Superinstruction("LD_OP") {
+		@Override
+		public void Execute(SECDMachine machine)
+				throws CompilerException {
+			LispValue code = cdr(machine.C.value());
+			LispValue x = local(machine, car(code));
+			code = cdr(code);
+			LispValue op = car(code);
+			machine.S.push(op instanceof Intrinsic
+					? Intrinsic.call(((Intrinsic)op).op, x) : ((LispPrimitive)op).call(x));
+			machine.C.assign(cdr(code));
+		}
+		LispValue expand(LispValue rest) {
+			return cons(LD, rest);
+		}
+	};
+	/**
+	 * LD f APn, the call of the closure of a variable, usually the
+	 * recursive call of the DEFUN.
+	 */
+	final static SECDop LD_AP = new Superinstruction("LD_AP") {
+		@Override
+		public void Execute(SECDMachine machine)
+				throws CompilerException {
+			machine.C.pop();
+			machine.S.push(local(machine, machine.C.pop()));
+			((LispPrimitive)car(machine.C.value())).Execute(machine);
+		}
+		LispValue expand(LispValue rest) {
+			return cons(LD, rest);
+		}
+	};
+	/**
+	 * LDFC f APn, the call of the global function.
+	 */
+	final static SECDop LDFC_AP = new Superinstruction("LDFC_AP") {
+		@Override
+		public void Execute(SECDMachine machine)
+				throws CompilerException {
+			quicken(machine, LDFC_AP_Q, new InlineCache(car(cdr(machine.C.value())), false));
+			LDFC_AP_Q.Execute(machine);
+		}
+		LispValue expand(LispValue rest) {
+			return cons(LDFC, rest);
+		}
+	};
+	/**
+	 * LDC k SEL, the branch doesn't depend on the stack.
+	 */
+	final static SECDop LDC_SEL = new Superinstruction("LDC_SEL") {
+		@Override
+		public void Execute(SECDMachine machine) {
+			LispValue code = cdr(machine.C.value());
+			LispValue selector = car(code);
+			code = cdr(code);
+			LispValue trueCodeBranch = car(code);
+			code = cdr(code);
+			machine.D.push(cdr(code));
+			machine.C.assign(selector != NIL ? trueCodeBranch : car(code));
+		}
+		LispValue expand(LispValue rest) {
+			return cons(LDC, cons(car(rest), cons(SEL, cdr(rest))));
+		}
+	};
+	/**
+	 * LDNIL CONS, the list of the value on the stack.
+	 */
+	final static SECDop CONS_NIL = new Superinstruction("CONS_NIL") {
+		@Override
+		public void Execute(SECDMachine machine) {
+			machine.C.pop();
+			machine.S.push(cons(machine.S.pop(), NIL));
+		}
+		LispValue expand(LispValue rest) {
+			return cons(LDNIL, cons(CONS, rest));
+		}
+	};
+	/**
+	 * NOT TEST, the code is taken if the value is NIL.
+	 */
+	final static SECDop NOT_TEST = new Superinstruction("NOT_TEST") {
+		@Override
+		public void Execute(SECDMachine machine) {
+			machine.C.pop();
+			LispValue selector = machine.S.pop();
+			LispValue trueValue = machine.C.pop();
+			if (selector == NIL)
+				machine.C.assign(trueValue);
+		}
+		LispValue expand(LispValue rest) {
+			return cons(NOT, cons(TEST, rest));
+		}
+	};
+
+	/**
+	 * The monomorphic inline cache of a call of the global function:
+	 * the code of the function, resolved when the call runs the first
+	 * time, and the closure made of it.  The cache keeps the version of
+	 * the function cell of its symbol, changed with the function or
+	 * its JVM class, and the version of the machine, changed with the
+	 * engine.  The cache of the other version resolves the code again
+	 * and makes the new closure only if the code was changed.  So a
+	 * redefinition resolves again only the calls of the redefined
+	 * function, in the machines of its own symbol.
+	 *
+	 * The quickened LDFC of the list machine, the LDFC of the bytecode
+	 * and the tree, and the calls of the JVM classes have the caches.
+	 */
+	static final class InlineCache extends StandardLispValue
+	{
+		final LispValue symbol;
+		private final boolean compiled;  // the code for the current engine
+		private SECDMachine machine;     // the machine it is resolved for
+		private int version = -1;        // of the function cell
+		private int machineVersion;
+		private LispValue code;
+		private LispValue closure;
+
+		/**
+		 * @param compiled if set, the closure has the code prepared for
+		 *        the current engine, else the code of the list machine
+		 */
+		InlineCache(LispValue symbol, boolean compiled)
+		{
+			this.symbol = symbol;
+			this.compiled = compiled;
+		}
+
+		// the code of the function: the list code, the SECDCode or the JVM class
+		LispValue code(SECDMachine machine)
+		{
+			if (version != functionVersion(symbol) || machine != this.machine
+					|| machineVersion != machine.f_version)
+				resolve(machine);
+			return code;
+		}
+		LispValue closure(SECDMachine machine)
+		{
+			if (version != functionVersion(symbol) || machine != this.machine
+					|| machineVersion != machine.f_version)
+				resolve(machine);
+			return closure;
+		}
+
+		// the version is read before the function it covers
+		private void resolve(SECDMachine machine)
+		{
+			int version = functionVersion(symbol);
+			LispValue code = machine.functionCode(symbol);
+			if (compiled) {
+				SECDCode body = machine.compiled(code);
+				if (body != null)
+					code = body;
+			}
+			if (code != this.code) {
+				this.code = code;
+				closure = globalClosure(code);
+			}
+			this.machine = machine;
+			this.machineVersion = machine.f_version;
+			this.version = version;
+		}
+
+		public String toString()
+		{
+			return symbol.toString();
+		}
+
+		public void internal_princ(java.io.PrintStream os) { os.print(toString()); }
+		public void internal_prin1(java.io.PrintStream os) { os.print(toString()); }
+		public void internal_print(java.io.PrintStream os) { os.print(toString()); }
+	}
+
+	// the version of the function cell of the symbol
+	static int functionVersion(LispValue symbol)
+	{
+		return (symbol instanceof StandardLispSymbol) ? ((StandardLispSymbol)symbol).functionVersion() : 0;
+	}
+
+	// the version of the machine, changed with the engine: the inline
+	// caches of its calls resolve the code for the engine again
+	private int f_version = 0;
+
+	// Rewrites the instruction at the head of C and its operand in place.
+	static void quicken(SECDMachine machine, SECDop op, LispValue operand)
+	{
+		LispCons code = (LispCons)machine.C.value();
+		code.setf_car(op);
+		((LispCons)code.cdr()).setf_car(operand);
+	}
+
+	/**
+	 * The quickened instructions.  LD_GLOBAL, LDFC and LDFC_AP rewrite
+	 * themselves when they run the first time, so the later runs skip
+	 * the lookups:
+	 * <pre>
+	 *    LD_GLOBAL x      LD_GLOBAL_Q x      x is not special
+	 *    LDFC f           LDFC_Q #f          #f is the InlineCache
+	 *    LDFC_AP f APn    LDFC_AP_Q #f APn
+	 * </pre>
+	 * LD_GLOBAL_Q goes back to LD_GLOBAL if the symbol is made special.
+	 */
+	final static SECDop LD_GLOBAL_Q = new Superinstruction("LD_GLOBAL_Q") {
+		@Override
+		public void Execute(SECDMachine machine)
+				throws CompilerException {
+			LispValue symbol = car(cdr(machine.C.value()));
+			if (symbol.specialP()) {
+				quicken(machine, LD_GLOBAL, symbol);
+				LD_GLOBAL.Execute(machine);
+				return;
+			}
+			machine.C.pop();
+			machine.C.pop();
+			machine.S.push(((LispSymbol)symbol).symbol_value());
+		}
+		LispValue expand(LispValue rest) {
+			return cons(LD_GLOBAL, rest);
+		}
+	};
+	final static SECDop LDFC_Q = new Superinstruction("LDFC_Q") {
+		@Override
+		public void Execute(SECDMachine machine) {
+			machine.C.pop();
+			machine.S.push(((InlineCache)machine.C.pop()).closure(machine));
+		}
+		LispValue expand(LispValue rest) {
+			return cons(LDFC, cons(((InlineCache)car(rest)).symbol, cdr(rest)));
+		}
+	};
+	final static SECDop LDFC_AP_Q = new Superinstruction("LDFC_AP_Q") {
+		@Override
+		public void Execute(SECDMachine machine)
+				throws CompilerException {
+			machine.C.pop();
+			machine.S.push(((InlineCache)machine.C.pop()).closure(machine));
+			((LispPrimitive)car(machine.C.value())).Execute(machine);
+		}
+		LispValue expand(LispValue rest) {
+			return cons(LDFC, cons(((InlineCache)car(rest)).symbol, cdr(rest)));
+		}
+	};
+
+	public final static SECDop STOP  = new SECDop("STOP") {
+		@Override
+		public void Execute(SECDMachine machine) {
+			machine.C.pop();
+		    /* How do we stop? */
+		}
+	};
+	
+//	public SECDop TAG_B = null;
+	
+	/**
+	 * Creates a machine in the register-file mode.
+	 */
+	public SECDMachine()
+	{
+		this(true);
+	}
+
+	/**
+	 * @param registerFile if true, S is an array-backed operand stack and D
+	 *        a stack of preallocated call records, so that pushes and
+	 *        function calls don't allocate.  If false, all registers are
+	 *        cons lists as in the classic SECD machine.
+	 */
+	public SECDMachine(boolean registerFile)
+	{
+		this(registerFile, new HashMap<LispValue, LispValue>(103, 1.2f));
+	}
+
+	/**
+	 * Creates the machine that runs the macro expanders of the machine.
+	 * It shares the dynamic bindings and the limits of the evaluation,
+	 * and runs the list code.
+	 * @see #expand(LispMacro, LispValue)
+	 */
+	private SECDMachine(SECDMachine machine)
+	{
+		this(true, machine.B, machine.f_limits);
+	}
+
+	private SECDMachine(boolean registerFile, HashMap<LispValue, LispValue> bindings)
+	{
+		this(registerFile, bindings, new Limits());
+	}
+
+	private SECDMachine(boolean registerFile, HashMap<LispValue, LispValue> bindings, Limits limits)
+	{
+		B = bindings;
+		f_limits = limits;
+		if (registerFile) {
+			S = new SECDStack("S-05171955");
+			D = new SECDDump("D-06071966");
+		}
+		else {
+			S = new SECDRegister("S-05171955");
+			D = new SECDRegister("D-06071966");
+		}
+/*    
+		TAG_B = new SECDop("TAG_B") {
+			@Override
+			public void Execute(SECDMachine machine) {
+				machine.X.assign(
+						cons(list(
+						          machine.E.value(), machine.D.value(),
+						          new StandardLispHashTable(lisp, (StandardLispHashTable)machine.B)),
+						     machine.X.value()));
+				
+				machine.C.pop();
+			}
+		};*/
+	}
+
+/* ------------------  SPECIAL BINDING   ------------------------------ */
+
+  // Assume the caller has verified that this is a special variable.
+  public void special_bind(LispValue symbol, LispValue value)
+  {
+    if (symbol.constantp())
+    {
+      // Cause a LispConstant Redefined error
+      symbol.setf_symbol_value(value);
+    }
+    else
+    {
+      LispValue bindings = B.get(symbol);
+      if (bindings == null) bindings = NIL;
+
+      B.put(symbol, cons(value, bindings));
+      symbol.adjustSpecialCount(+1);
+      f_bound = cons(symbol, f_bound);
+    }
+  }
+
+
+  public void special_unbind(LispValue symbol)
+  {
+    LispValue bindings = B.get(symbol);
+    if (bindings == null) bindings = NIL;
+
+    B.put(symbol, cdr(bindings));
+    symbol.adjustSpecialCount(-1);
+    f_bound = cdr(f_bound);
+  }
+
+
+  // Assume the caller has verified that this is a special variable.
+  public LispValue special_value(LispValue symbol)
+  {
+    if (symbol.get_specialCount() <= 0)
+      return ((LispSymbol)symbol).symbol_value();
+
+    LispValue value = B.get(symbol);
+    if (value == null)
+      return NIL;
+    return car(value);
+  }
+
+
+  // Sets the binding of a special variable.
+	// used by AND and OR primitives
+  public void special_set(LispValue symbol, LispValue value)
+  {
 	  
     if (symbol.get_specialCount() > 0)
     {
@@ -555,104 +1317,785 @@ public class SECDMachine extends LispProcessor
   }
 
 
+	/**
+	 * Sets the value of a variable, used by ST.
+	 * @param env environment to look the local variable in
+	 * @param sym variable: a symbol or (i . j) index of a local variable
+	 * @param val new value
+	 */
+	public void store(LispValue env, LispValue sym, LispValue val)
+	{
+		if (sym instanceof SECDFrame.Slot)   // local variable
+			((SECDFrame)env).set((SECDFrame.Slot)sym, val);
+		else
+		if (sym instanceof LispSymbol) {
+			if (sym.specialP())  // special variable
+				special_set(sym, val);
+			else  // global variable
+				sym.setf_symbol_value(val);
+		}
+		else
+			throw new LispValueNotASymbolException(sym);
+	}
+
+/* ------------------  ENGINES   ------------------------------ */
+
+	/**
+	 * The ways to run the compiled code.
+	 */
+	public enum Engine {
+		/** The list machine, walks the list code in the C register. */
+		LIST,
+		/** The list code is assembled to SECDBytecode and run by a switch-dispatched loop. */
+		BYTECODE,
+		/** The list code is translated to a tree of SECDTree nodes. */
+		TREE
+	}
+
+	private Engine f_engine = Engine.LIST;
+
+	// JVM classes of the DEFUNs, by the function name
+	private final Map<LispValue, SECDJvm.Function> f_classes = new HashMap<LispValue, SECDJvm.Function>();
+
+	/**
+	 * Sets the JVM class of the function, used while the function
+	 * keeps the code the class was compiled from.
+	 * @param function the class or null to drop the current one
+	 * @see SECDJvm
+	 */
+	public void defineClass(LispValue name, SECDJvm.Function function)
+	{
+		if (function != null)
+			f_classes.put(name, function);
+		else
+			f_classes.remove(name);
+		if (name instanceof StandardLispSymbol)
+			((StandardLispSymbol)name).functionChanged();
+	}
+
+	/**
+	 * Returns the code of the global function for a closure: the JVM
+	 * class if the function has one, or the list code.
+	 */
+	LispValue functionCode(LispValue name)
+	{
+		LispValue code = name.symbol_function();
+		if (code instanceof LispFunction)
+			code = ((LispFunction)code).getCode();
+		if (!f_classes.isEmpty()) {
+			SECDJvm.Function function = f_classes.get(name);
+			if (function != null && function.source == code)
+				return function;
+		}
+		return code;
+	}
+	/**
+	 * Makes the closure of the global function.  The body of the
+	 * DEFUN finds the closure itself in the second frame of the
+	 * environment, so the environment is only that frame: the closure
+	 * doesn't keep the environment of the caller, and the tail calls
+	 * between the global functions run in constant space.
+	 */
+	static LispValue globalClosure(LispValue code)
+	{
+		SECDFrame env = new SECDFrame(new LispValue[1], NIL);
+		LispValue closure = cons(code, env);
+		env.values[0] = closure;
+		return closure;
+	}
+
+	// The innermost active BLOCK or CATCH, the symbols bound by
+	// special_bind (the last first), and the depth of the nested
+	// loops, for the escape records.
+	SECDEscape f_escape;
+	LispValue f_bound = NIL;
+	int f_level;
+
+	void escape(SECDEscape escape)
+	{
+		D.push(escape);
+		f_escape = escape;
+	}
+
+	/**
+	 * Leaves the block, at once if it was entered by the current loop,
+	 * otherwise the loop that entered it catches the Unwind.
+	 */
+	void exit(SECDEscape escape, LispValue value)
+	{
+		if (escape.level != f_level)
+			throw new SECDEscape.Unwind(escape, value);
+		escape.unwind(this, value);
+	}
+
+	private SECDProfile f_profile;
+	private ExecutionListener f_listener;
+	private SECDStatistics f_statistics;
+
+	/**
+	 * Counts the instructions, the primitives and the pairs of the
+	 * instructions in the statistics, or stops counting if it is null.
+	 * With the statistics all the code is run by the list engine.
+	 * @see SECDStatistics
+	 */
+	public void setStatistics(SECDStatistics statistics)
+	{
+		f_statistics = statistics;
+	}
+	public SECDStatistics getStatistics()
+	{
+		return f_statistics;
+	}
+
+	/**
+	 * Sends the events of the machine to the listener, or stops if it
+	 * is null.  With the listener all the code is run by the list
+	 * engine, whatever engine is set.
+	 */
+	public void setListener(ExecutionListener listener)
+	{
+		f_listener = listener;
+	}
+	public ExecutionListener getListener()
+	{
+		return f_listener;
+	}
+
+	/**
+	 * Counts the sequences of the instructions run by the list
+	 * machine in the profile, or stops counting if it is null.
+	 * @see SECDProfile
+	 */
+	public void setProfile(SECDProfile profile)
+	{
+		f_profile = profile;
+	}
+	public SECDProfile getProfile()
+	{
+		return f_profile;
+	}
+
+	// the pending tail call of a JVM class, made by SECDJvm.Function.call()
+	SECDJvm.Function f_tailFunction;
+	LispValue[] f_tailValues;
+
+	SECDBytecode.Registers f_registers = new SECDBytecode.Registers();
+
+	// Code of functions prepared for the current engine, keyed by identity of
+	// the code list.  NIL marks the code that the engine can't run.
+	private final Map<LispValue, LispValue> f_compiled = new IdentityHashMap<LispValue, LispValue>();
+	static final int COMPILED_CACHE_SIZE = 1024;
+
+	/**
+	 * Selects the engine that runs the code.  The code that can't be
+	 * run by the bytecode or tree engine is still run by the list
+	 * machine.
+	 * @see SECDBytecode
+	 * @see SECDTree
+	 */
+	public void setEngine(Engine engine)
+	{
+		f_engine = engine;
+		f_compiled.clear();
+		f_version++;
+	}
+	public Engine getEngine()
+	{
+		return f_engine;
+	}
+
+	// Returns the list code of the function or closure code.
+	static LispValue listCode(LispValue code)
+	{
+		if (code instanceof SECDCode)
+			return ((SECDCode)code).source;
+		if (code instanceof LispFunction)
+			return ((LispFunction)code).getCode();
+		return code;
+	}
+
+	/**
+	 * Returns the closure code prepared for the current engine,
+	 * translating the list code if needed.
+	 * @return the code or null if the engine can't run it
+	 */
+	SECDCode compiled(LispValue code)
+	{
+		if (code instanceof SECDJvm.Function)
+			return (SECDCode)code;  // runs the same way in all engines
+		if (code instanceof SECDCode) {
+			if ((code instanceof SECDBytecode) == (f_engine == Engine.BYTECODE))
+				return (SECDCode)code;
+			code = ((SECDCode)code).source;   // made by other engine
+		}
+		if (code instanceof LispFunction)
+			code = ((LispFunction)code).getCode();
+
+		LispValue compiled = f_compiled.get(code);
+		if (compiled == null) {
+			if (f_compiled.size() >= COMPILED_CACHE_SIZE)
+				f_compiled.clear();
+			compiled = compile(code);
+			f_compiled.put(code, compiled != null ? compiled : NIL);
+		}
+		return compiled != NIL ? (SECDCode)compiled : null;
+	}
+
+	private SECDCode compile(LispValue code)
+	{
+		switch (f_engine) {
+		case BYTECODE:
+			return SECDBytecode.assemble(code);
+		case TREE:
+			return SECDTree.translate(code);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Calls the closure by the list machine, used by the other
+	 * engines for the code they can't run.  The call may be made
+	 * while the list machine runs (by a JVM class called from it),
+	 * so the registers are saved on the dump.
+	 */
+	LispValue call(LispValue closure, LispValue args)
+			throws CompilerException
+	{
+		return call(closure, SECDFrame.array(args));
+	}
+	// same with the arguments in the array
+	LispValue call(LispValue closure, LispValue[] values)
+			throws CompilerException
+	{
+		if (car(closure) instanceof SECDJvm.Function)
+			return ((SECDJvm.Function)car(closure)).call(values);
+
+		// the RTN of the closure returns to STOP, that ends the loop
+		LispValue c = C.value();
+		D.pushFrame(S, E.value(), STOP_CODE);
+		E.assign(new SECDFrame(values, cdr(closure)));
+		C.assign(listCode(car(closure)));
+		SECDEscape escape = f_escape;
+		LispValue result;
+		try {
+			result = loop();
+		}
+		finally {
+			f_escape = escape;
+		}
+		S.pop();
+		C.assign(c);
+		return result;
+	}
+	private static final LispValue STOP_CODE = list(STOP);
+
+	/**
+	 * Calls the function from Java, while the machine may be running:
+	 * the registers are saved and restored, so the native primitives
+	 * (MAPCAR, SORT with a predicate, ...) can call the Lisp functions.
+	 * The closure is run by the current engine.
+	 * @param function the closure, the primitive, the function object
+	 *        or the name of the global function
+	 * @see #function(LispValue)
+	 */
+	public LispValue invoke(LispValue function, LispValue... args)
+			throws CompilerException
+	{
+		function = function(function);
+		if (function instanceof LispPrimitive)
+			return invoke((LispPrimitive)function, args);
+
+		if (f_engine != Engine.LIST && f_listener == null && f_statistics == null) {
+			SECDCode compiled = compiled(car(function));
+			if (compiled instanceof SECDBytecode)
+				return SECDBytecode.Execute(this, (SECDBytecode)compiled, new SECDFrame(args, cdr(function)));
+			if (compiled instanceof SECDTree.Function)
+				return SECDTree.Execute(this, (SECDTree.Function)compiled, new SECDFrame(args, cdr(function)));
+		}
+		return call(function, args);
+	}
+
+	/**
+	 * Returns the primitive or the closure of the function, for
+	 * invoke().  The caller that calls the same function many times
+	 * (as MAPCAR does) can look it up once.
+	 */
+	public LispValue function(LispValue function)
+	{
+		if (function instanceof LispPrimitive)
+			return function;
+		if (function instanceof LispCons && !(car(function) instanceof LispSymbol))
+			return function;  // the closure
+		if (function instanceof LispSymbol && function.fboundp()) {
+			LispValue code = function.symbol_function();
+			if (code instanceof LispPrimitive)
+				return code;
+			if (!(code instanceof LispMacro))
+				return globalClosure(functionCode(function));
+		}
+		else if (function instanceof LispFunction && !(function instanceof LispMacro))
+			return globalClosure(((LispFunction)function).getCode());
+		throw new LispValueNotAFunctionException(String.valueOf(function));
+	}
+
+	private LispValue invoke(LispPrimitive primitive, LispValue[] args)
+			throws CompilerException
+	{
+		if (primitive instanceof LispPrimitiveC) {
+			LispValue list = list(args);
+			if (!primitive.validArgumentList(list))
+				throw new ArgumentCountMismatchException(primitive, args.length);
+			if (primitive.isSimple())
+				return primitive.call(list);
+			return nested(list(LDC, list, primitive, STOP), E.value());
+		}
+		if (args.length != primitive.argumentCount())
+			throw new ArgumentCountMismatchException(primitive, args.length);
+		if (primitive.isSimple() || primitive instanceof Intrinsic)
+			return primitive.Execute(args, args.length);
+
+		// the primitive that works with the registers is run by the machine
+		LispValue code = list(primitive, STOP);
+		for (int i = args.length - 1; i >= 0; i--)
+			code = cons(LDC, cons(args[i], code));
+		return nested(code, E.value());
+	}
+	// same for RAP, env is the environment with the dummy frame
+	LispValue call(LispValue closure, LispValue args, LispValue env)
+			throws CompilerException
+	{
+		return nested(list(LDC, args, LDC, closure, RAP, STOP), env);
+	}
+
+	private LispValue nested(LispValue code, LispValue env)
+			throws CompilerException
+	{
+		D.pushFrame(S, E.value(), C.value());
+		E.assign(env);
+		C.assign(code);
+		SECDEscape escape = f_escape;
+		LispValue result;
+		try {
+			result = loop();
+		}
+		finally {
+			f_escape = escape;
+		}
+		D.popFrame(S, E, C, result);
+		S.pop();
+		return result;
+	}
+
+	// the machine that expands the macros, and the flag it is in use
+	private SECDMachine f_expander = null;
+	private boolean f_expanding = false;
+
+	/**
+	 * Expands the macro call: runs the expander of the macro on the
+	 * unevaluated arguments.  The compiler expands the macros while this
+	 * machine runs (EVAL, LOAD, MACROEXPAND), so the expander is run by
+	 * a separate machine and the registers of this one are untouched.
+	 * The expander of a macro that expands a macro at its turn uses the
+	 * next machine in the chain; the machines are created once and kept.
+	 * @param macro the macro
+	 * @param args  the list of the arguments
+	 * @return the expansion
+	 */
+	public LispValue expand(LispMacro macro, LispValue args)
+			throws CompilerException
+	{
+		SECDMachine expander = this;
+		do {
+			if (expander.f_expander == null)
+				expander.f_expander = new SECDMachine(expander);
+			expander = expander.f_expander;
+		} while (expander.f_expanding);
+
+		expander.f_expanding = true;
+		LispValue bound = expander.f_bound;
+		expander.resume();
+		try {
+			expander.S.clear();   // left by a failed expansion
+			expander.D.clear();
+			return expander.call(globalClosure(macro.getCode()), args);
+		}
+		finally {
+			// the specials of the failed or stopped expansion
+			while (expander.f_bound != bound && expander.f_bound != NIL)
+				expander.special_unbind(car(expander.f_bound));
+			expander.pause();
+			expander.f_expanding = false;
+		}
+	}
+
+	/**
+	 * Runs the code with the limits.
+	 * @param steps the steps of the engine, 0 for no limit
+	 * @param timeout the time in nanoseconds, 0 for no limit
+	 * @see #Execute(Evaluation, long, long, Cancellation)
+	 */
+	public LispValue Execute(final LispValue code, final LispValue globals, long steps, long timeout)
+			throws CompilerException
+	{
+		return Execute(new Evaluation() {
+			public LispValue run() throws CompilerException {
+				return Execute(code, globals);
+			}
+		}, steps, timeout, null);
+	}
+
+	/**
+	 * A part of the evaluation run with the limits, e.g. the compilation
+	 * and the execution of the form.
+	 */
+	public interface Evaluation
+	{
+		public LispValue run() throws CompilerException;
+	}
+
+	/**
+	 * The handle to cancel one evaluation, it may be cancelled from any
+	 * thread: before the evaluation starts, while it runs, or after.
+	 * Each evaluation has its own, so the cancel() of one doesn't stop
+	 * the next.
+	 */
+	public static final class Cancellation
+	{
+		private volatile boolean f_cancelled = false;
+
+		public void cancel()
+		{
+			f_cancelled = true;
+		}
+		public boolean isCancelled()
+		{
+			return f_cancelled;
+		}
+	}
+
+	/**
+	 * Runs the evaluation with the limits: throws EvaluationLimitException
+	 * if it runs more than the budget of the steps, longer than the
+	 * timeout, or is cancelled.  The steps depend on the engine: the list
+	 * machine and the bytecode count the instructions, the tree engine
+	 * and the JVM classes count the calls of the functions.  The limits apply to the machines that
+	 * expand the macros too, so to the compilation.  The special
+	 * variables bound by the code are unbound when it is stopped.
+	 *
+	 * The evaluation nested in another one stays within the limits of
+	 * the outer one: it runs with the smaller of the budgets and the
+	 * earlier of the deadlines, and the steps it runs are taken from
+	 * the outer budget.
+	 * @param steps the steps of the engine, 0 for no limit of its own
+	 * @param timeout the time in nanoseconds, 0 for no limit of its own
+	 * @param cancellation the handle to cancel it, null for that of the
+	 *        outer one or a new one
+	 * @see #cancel()
+	 */
+	public LispValue Execute(Evaluation evaluation, long steps, long timeout, Cancellation cancellation)
+			throws CompilerException
+	{
+		Limits limits = f_limits;
+		pause();
+		long oldBudget = limits.budget, oldDeadline = limits.deadline;
+		boolean oldTimed = limits.timed;
+		Cancellation oldCancellation = limits.cancellation;
+		LispValue bound = f_bound;
+		if (steps > 0)
+			limits.budget = (oldBudget >= 0) ? Math.min(oldBudget, steps) : steps;
+		long inner = limits.budget;
+		if (timeout > 0) {
+			long deadline = System.nanoTime() + timeout;
+			if (!oldTimed || deadline - oldDeadline < 0)
+				limits.deadline = deadline;
+			limits.timed = true;
+		}
+		if (cancellation != null)
+			limits.cancellation = cancellation;
+		else if (limits.cancellation == null)
+			limits.cancellation = new Cancellation();
+		resume();
+		try {
+			return evaluation.run();
+		}
+		catch (EvaluationLimitException e) {
+			while (f_bound != bound && f_bound != NIL)
+				special_unbind(car(f_bound));
+			throw e;
+		}
+		finally {
+			pause();
+			if (steps > 0)   // the outer budget pays for the steps run
+				limits.budget = (oldBudget >= 0) ? Math.max(oldBudget - (inner - limits.budget), 0) : -1;
+			limits.deadline = oldDeadline;
+			limits.timed = oldTimed;
+			limits.cancellation = oldCancellation;
+			resume();
+		}
+	}
+
+	/**
+	 * Cancels the evaluation that runs on the machine, it may be called
+	 * from any thread.  The evaluation throws EvaluationLimitException
+	 * within CHECK_INTERVAL instructions.  If no evaluation runs, it does
+	 * nothing: to cancel the evaluation that may not be started yet, use
+	 * its own Cancellation.
+	 */
+	public void cancel()
+	{
+		Cancellation cancellation = f_limits.cancellation;
+		if (cancellation != null)
+			cancellation.cancel();
+	}
+
+	// The limits of the evaluation, shared by the machine and its
+	// expansion machines, all run by the same thread.
+	private static final class Limits
+	{
+		long budget = -1;       // the steps left, -1 for no limit
+		long deadline;          // System.nanoTime() if timed
+		boolean timed = false;
+		volatile Cancellation cancellation = null;
+
+		// the steps to the next check
+		int slice()
+		{
+			return (int)((budget >= 0) ? Math.min(budget, CHECK_INTERVAL) : CHECK_INTERVAL);
+		}
+	}
+
+	// Takes the steps run in the slice from the budget, before the
+	// limits change or another machine runs with them.
+	private void pause()
+	{
+		if (f_limits.budget >= 0)
+			f_limits.budget = Math.max(f_limits.budget - (f_slice - Math.max(f_countdown, 0)), 0);
+		f_slice = f_countdown = 0;
+	}
+
+	// Starts the slice with the limits.
+	private void resume()
+	{
+		f_slice = f_countdown = f_limits.slice();
+	}
+	private final Limits f_limits;
+
+	// The engines count the steps down and call check() when the
+	// countdown runs out, after f_slice steps.
+	int f_countdown = CHECK_INTERVAL;
+	private int f_slice = CHECK_INTERVAL;
+
+	/**
+	 * The number of the steps between the checks of the deadline and
+	 * of the cancel().
+	 */
+	public static final int CHECK_INTERVAL = 1024;
+
+	/**
+	 * Checks the limits, called by the engines when the countdown of
+	 * the steps runs out.
+	 */
+	void check()
+	{
+		Limits limits = f_limits;
+		Cancellation cancellation = limits.cancellation;
+		if (cancellation != null && cancellation.isCancelled())
+			throw new EvaluationLimitException(EvaluationLimitException.Limit.CANCELLED);
+		if (limits.timed && System.nanoTime() - limits.deadline >= 0)
+			throw new EvaluationLimitException(EvaluationLimitException.Limit.DEADLINE);
+		if (limits.budget >= 0) {
+			long left = limits.budget - (f_slice + 1);  // the countdown is below zero
+			limits.budget = Math.max(left, 0);  // -1 would be no limit
+			if (left < 0)
+				throw new EvaluationLimitException(EvaluationLimitException.Limit.BUDGET);
+		}
+		f_slice = f_countdown = limits.slice();
+	}
+
 	/**
 	 * Executor
 	 * @param code
-	 * @param globals
+	 * @param globals the environment: a SECDFrame, or the list of the
+	 *        frames, each a list of values (innermost first)
 	 * @return
 	 * @throws CompilerException
 	 */
-	public LispValue Execute(LispValue code, LispList globals)
+	public LispValue Execute(LispValue code, LispValue globals)
 			throws CompilerException
 	{
-		LispValue opcode;
+		globals = SECDFrame.environment(globals);
+		if (f_engine != Engine.LIST && f_listener == null && f_statistics == null) {
+			SECDCode compiled = compile(code);
+			if (compiled instanceof SECDBytecode)
+				return SECDBytecode.Execute(this, (SECDBytecode)compiled, globals);
+			if (compiled instanceof SECDTree.Function)
+				return SECDTree.Execute(this, (SECDTree.Function)compiled, globals);
+		}
+		return run(code, globals);
+	}
 
+	// the list machine loop
+	LispValue run(LispValue code, LispValue globals)
+			throws CompilerException
+	{
 		// System.out.print("\nExecuting code: ");
 		// code.prin1();
 
-		S.assign(NIL);
+		S.clear();
 		E.assign(globals);
 		C.assign(code);
-		D.assign(NIL);
+		D.clear();
+		if (f_profile != null)
+			f_profile.start();
+		if (f_statistics != null)
+			f_statistics.start();
+
+		SECDEscape escape = f_escape;
+		f_escape = null;
+		try {
+			return loop();
+		}
+		finally {
+			f_escape = escape;
+		}
+	}
+
+	// runs the code in the C register until STOP
+	private LispValue loop()
+			throws CompilerException
+	{
+		int level = ++f_level;
+		try {
+			for (;;) {
+				try {
+					return execute();
+				}
+				catch (SECDEscape.Unwind unwind) {
+					if (unwind.escape.level != level)
+						throw unwind;
+					unwind.escape.unwind(this, unwind.value);
+				}
+			}
+		}
+		finally {
+			f_level--;
+		}
+	}
+
+	// the loop without the listener, the profile and the debug output
+	private LispValue execute()
+			throws CompilerException
+	{
+		if (f_listener != null || f_statistics != null || f_profile != null || DEBUG)
+			return trace();
+
+		LispValue opcode = car(C.value());
+		while (opcode != STOP && opcode != NIL) {
+			if (--f_countdown < 0)
+				check();
+			if (opcode instanceof Intrinsic)
+				intrinsics();
+			else
+				((LispPrimitive)opcode).Execute(this);
+			opcode = car(C.value());  // Each opcode pops the C register as necessary
+		}
+		return S.top();  // Top value on Stack is the return value.
+	}
 
-		opcode = car(C.value());
+	// Runs the intrinsics that follow in the code, the value in between
+	// is kept out of the stack.  They count as the steps of the limits,
+	// checked by the loop after them.
+	private void intrinsics()
+	{
+		LispValue code = C.value();
+		LispValue value = S.pop();
+		LispValue opcode = car(code);
+		do {
+			int op = ((Intrinsic)opcode).op;
+			if (op == Intrinsic.OP_CONS)
+				value = cons(S.pop(), value);
+			else if (op == Intrinsic.OP_EQ)
+				value = Intrinsic.eq(S.pop(), value);
+			else
+				value = Intrinsic.call(op, value);
+			code = cdr(code);
+			opcode = car(code);
+			f_countdown--;
+		} while (opcode instanceof Intrinsic);
+		f_countdown++;  // the first one is counted by the loop
+		S.push(value);
+		C.assign(code);
+	}
 
-		while ((opcode != STOP) && (opcode != NIL))
+	// the instrumented loop, chosen on the entry to the machine
+	private LispValue trace()
+			throws CompilerException
+	{
+		ExecutionListener listener = f_listener;
+		LispValue opcode = car(C.value());
+
+		while (opcode != STOP && opcode != NIL)
 		{
 			if (DEBUG)
 			{
-				// Test output.
-				//
 				System.out.print("\n  S: " + S.value());
 				System.out.print("\n  E: " + E.value());
 				System.out.print("\n  C: " + C.value());
 				System.out.print("\n  D: " + D.value());
 				System.out.print("\n  B: " + B.toString());
 				System.out.print("\n  X: " + X.value());
-				// System.out.print(" of class " + opcode.getClass().getName());
-				System.out.print("\n" + opcode);   // Testing
+				System.out.print("\n" + opcode);
 				System.out.flush();
 			}
+			if (--f_countdown < 0)
+				check();
+			if (f_profile != null)
+				f_profile.record(opcode);
+			if (f_statistics != null)
+				f_statistics.record(opcode, C.value());
 
-			if (opcode == null) {
-				System.err.println("internal error in Jatha.SECDMachine.Execute: opcode is null");
-				System.err.println("remaining code is " + C.value().toString());
-			}
-			else
+			if (listener == null)
 				((LispPrimitive)opcode).Execute(this);
+			else {
+				listener.instruction(this, opcode);
+				LispValue env = E.value();
+				LispValue next = cdr(C.value());
+				try {
+					((LispPrimitive)opcode).Execute(this);
+				}
+				catch (SECDEscape.Unwind unwind) {
+					throw unwind;
+				}
+				catch (RuntimeException e) {
+					listener.error(this, opcode, e);
+					throw e;
+				}
+				catch (CompilerException e) {
+					listener.error(this, opcode, e);
+					throw e;
+				}
 
-			try {
-				opcode = car(C.value());  // Each opcode pops the C register as necessary
-			} catch (Exception e) {
-				e.printStackTrace();
-				System.err.print("\n  S: " + S.value());
-				System.err.print("\n  E: " + E.value());
-				System.err.print("\n  C: " + C.value());
-				System.err.print("\n  D: " + D.value());
-				System.out.print("\n  B: " + B.toString());
-				System.out.print("\n  X: " + X.value());
-				// System.out.print(" of class " + opcode.getClass().getName());
-				System.err.print("\n" + opcode);   // Testing
-				System.err.flush();
-
-				opcode = NIL;
+				if (isCall(opcode)) {
+					if (E.value() != env || opcode == RAP)
+						listener.call(this, C.value(), list(((SECDFrame)E.value()).values));
+				}
+				else if (opcode == RTN || ((opcode == RTN_IF || opcode == RTN_IT) && C.value() != next))
+					listener.ret(this, S.top());
 			}
+			opcode = car(C.value());
 		}
-
-		return  car(S.value()); //  Top value on Stack is the return value.
+		return S.top();
 	}
 
-	public void setStackValue(SECDRegister e, LispValue val)
+	// the instructions that may enter a function
+	private static boolean isCall(LispValue opcode)
 	{
+		return opcode == AP || opcode == DAP || opcode == RAP || opcode instanceof Apply
+				|| opcode instanceof LocalApply || opcode == LD_AP || opcode == LDFC_AP || opcode == LDFC_AP_Q;
 	}
-}
 
-/**
- * SECDop is the abstract class that encompasses all SECD
- * machine ops.
- *
- * @see org.jatha.compile.LispPrimitive
- * @author  Micheal S. Hewett    hewett@cs.stanford.edu
- */
-abstract class SECDop extends LispPrimitive0
-{
-	public SECDop(String opName)
-	{
-		super(opName);
-	}
-
-	/**
-	 * The output of this function is printed when the
-	 * instruction needs to be printed.
-	 */
-	public String toString()
-	{
-		return "SECD." + functionName;
-	}
-
-	protected LispValue Execute()
-			throws CompilerException
+	public void setStackValue(SECDRegister e, LispValue val)
 	{
-		throw new LispAssertionException(LispFunctionNameString() + " was compiled - shouldn't have been."); 
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,170 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+package org.jatha.machine;
+
+import org.jatha.compile.*;
+import org.jatha.dynatype.*;
+
+import
+static org.jatha.dynatype.LispValue.*;
+import
+static org.jatha.machine.SECDMachine.*;
+
+/**
+ * The peephole pass: rewrites the list code made by the LispCompiler
+ * with the superinstructions of the list machine.  The sequences are
+ * chosen by the {@link SECDProfile} of the benchmarks:
+ * <pre>
+ *    LD x LD y op     LD_LD x y op        op of two arguments
+ *    LD x LDC k op    LD_LDC x k op
+ *    LD x op          LD_OP x op          op of one argument, LD x CAR
+ *    LD f APn         LD_AP f APn         the recursive call
+ *    LDFC f APn       LDFC_AP f APn       the call of a global function
+ *    LDC k SEL t f    LDC_SEL k t f
+ *    LDNIL CONS       CONS_NIL
+ *    NOT TEST t       NOT_TEST t
+ * </pre>
+ * The code is rewritten in place, with the code of the LDF, SEL and
+ * TEST.  The pass stops at an instruction it doesn't know, the rest
+ * of that list stays as it is.
+ *
+ * @see org.jatha.compile.LispCompiler#Peephole(boolean)
+ */
+public final class SECDPeephole
+{
+	private SECDPeephole()
+	{
+	}
+
+	/**
+	 * Rewrites the code with the superinstructions.
+	 * @return the code
+	 */
+	public static LispValue optimize(LispValue code)
+	{
+		for (LispValue p = code; p instanceof LispCons; )
+		{
+			fuse((LispCons)p);
+			LispValue op = car(p);
+			p = cdr(p);
+
+			if (op == LDF || op == LDFF || op == TEST || op == NOT_TEST)
+				optimize(car(p));
+			else if (op == SEL) {
+				optimize(car(p));
+				optimize(car(cdr(p)));
+			}
+			else if (op == LDC_SEL) {
+				optimize(car(cdr(p)));
+				optimize(car(cdr(cdr(p))));
+			}
+			else if (!(op instanceof LispPrimitive))
+				return code;
+
+			for (int i = operands(op); i > 0; i--)
+				p = cdr(p);
+		}
+		return code;
+	}
+
+	// The number of the operands that follow the instruction in the code.
+	static int operands(LispValue op)
+	{
+		if (op == LDC || op == LD || op == LDR || op == LD_GLOBAL || op == LDF || op == LDFC ||
+		    op == TEST || op == LIS || op == ENTER || op == SP_BIND || op == SP_UNBIND || op == NOT_TEST ||
+		    op == LD_GLOBAL_Q || op == LDFC_Q || op == CATCH || op == RETURN_FROM)
+			return 1;
+		// the code after ESC follows UNESC at the end of the block
+		if (op == SEL || op == ESC || op == LD_OP || op == LD_AP || op == LDFC_AP || op == LDFC_AP_Q || op == LDL
+		    || op == LDFF)
+			return 2;
+		if (op == LD_LD || op == LD_LDC || op == LDC_SEL || op == APL || op == DAPL)
+			return 3;
+		return 0;
+	}
+
+	// Replaces the sequence at the head of the code by the superinstruction.
+	static void fuse(LispCons code)
+	{
+		LispValue op = code.car();
+		LispValue rest = code.cdr();         // the operand, if any
+		LispValue next = cdr(rest);          // after the operand
+		LispValue second = car(next);
+
+		if (op == LD) {
+			if (second == LD && primitive(car(cdr(cdr(next))), 2)) {
+				code.setf_car(LD_LD);               // LD_LD x y op
+				((LispCons)rest).setf_cdr(cdr(next));
+			}
+			else if (second == LDC && primitive(car(cdr(cdr(next))), 2)) {
+				code.setf_car(LD_LDC);              // LD_LDC x k op
+				((LispCons)rest).setf_cdr(cdr(next));
+			}
+			else if (primitive(second, 1))
+				code.setf_car(LD_OP);               // LD_OP x op
+			else if (apply(second))
+				code.setf_car(LD_AP);               // LD_AP x APn
+		}
+		else if (op == LDFC) {
+			if (apply(second))
+				code.setf_car(LDFC_AP);
+		}
+		else if (op == LDC) {
+			if (second == SEL) {
+				code.setf_car(LDC_SEL);             // LDC_SEL k t f
+				((LispCons)rest).setf_cdr(cdr(next));
+			}
+		}
+		else if (op == LDNIL) {
+			if (car(rest) == CONS) {
+				code.setf_car(CONS_NIL);
+				code.setf_cdr(cdr(rest));
+			}
+		}
+		else if (op == NOT) {
+			if (car(rest) == TEST) {
+				code.setf_car(NOT_TEST);            // NOT_TEST t
+				code.setf_cdr(cdr(rest));
+			}
+		}
+	}
+
+	// The primitive that takes the arguments from the stack and only pushes the result.
+	static boolean primitive(LispValue op, int arguments)
+	{
+		if (op instanceof Intrinsic)
+			return ((Intrinsic)op).arity == arguments;
+		if (arguments == 1 && !(op instanceof LispPrimitive1) ||
+		    arguments == 2 && !(op instanceof LispPrimitive2))
+			return false;
+		return !(op instanceof SECDop) && ((LispPrimitive)op).isSimple();
+	}
+
+	// The call of the closure on the stack.
+	static boolean apply(LispValue op)
+	{
+		return op instanceof Apply || op == AP || op == DAP;
+	}
+}
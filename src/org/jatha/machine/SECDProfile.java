@@ -0,0 +1,173 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+package org.jatha.machine;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jatha.compile.LispPrimitive;
+import org.jatha.dynatype.*;
+
+/**
+ * Counts the sequences of the instructions (the n-grams) executed
+ * by the list machine, to choose the superinstructions of
+ * {@link SECDPeephole}.  Set by {@link SECDMachine#setProfile}:
+ * <pre>
+ *    SECDProfile profile = new SECDProfile(3);
+ *    lisp.MACHINE.setProfile(profile);
+ *    ... run the workload ...
+ *    profile.report(System.out, 20);
+ * </pre>
+ * The sequences are counted in the order of the execution, so the
+ * jumps, calls and returns break the sequences of the code lists.
+ *
+ * The counts are kept in the tree of the sequences read backwards
+ * from the last instruction, every executed instruction walks the
+ * tree once for all the lengths.
+ */
+public final class SECDProfile
+{
+	static final class Node
+	{
+		long count;
+		final Map<LispValue, Node> previous = new IdentityHashMap<LispValue, Node>();
+
+		Node next(LispValue op)
+		{
+			Node node = previous.get(op);
+			if (node == null)
+				previous.put(op, node = new Node());
+			return node;
+		}
+	}
+
+	private final LispValue[] f_window;  // the last instructions, circular
+	private int f_last = 0, f_length = 0;
+	private Node f_root = new Node();
+
+	/**
+	 * @param length the longest sequence counted, at least 1
+	 */
+	public SECDProfile(int length)
+	{
+		f_window = new LispValue[Math.max(length, 1)];
+	}
+
+	/**
+	 * Counts the instruction and the sequences it ends.
+	 */
+	void record(LispValue op)
+	{
+		f_last = (f_last + 1) % f_window.length;
+		f_window[f_last] = op;
+		if (f_length < f_window.length)
+			f_length++;
+
+		Node node = f_root;
+		for (int i = 0; i < f_length; i++) {
+			node = node.next(f_window[(f_last - i + f_window.length) % f_window.length]);
+			node.count++;
+		}
+	}
+
+	/**
+	 * Starts a new sequence, the machine starts to run other code.
+	 */
+	void start()
+	{
+		f_length = 0;
+	}
+
+	public void clear()
+	{
+		f_root = new Node();
+		f_length = 0;
+	}
+
+	/**
+	 * Returns the count of the sequence of the instructions.
+	 */
+	public long count(LispValue... ops)
+	{
+		Node node = f_root;
+		for (int i = ops.length; --i >= 0 && node != null; )
+			node = node.previous.get(ops[i]);
+		return node == null ? 0 : node.count;
+	}
+
+	/**
+	 * Prints the most frequent sequences of every length, from the
+	 * single instructions to the longest ones.
+	 * @param top the number of the sequences of each length
+	 */
+	public void report(PrintStream out, int top)
+	{
+		long total = 0;
+		for (Node node : f_root.previous.values())
+			total += node.count;
+		out.println(total + " instructions");
+		for (int length = 1; length <= f_window.length; length++) {
+			List<Object[]> grams = new ArrayList<Object[]>();
+			collect(f_root, new LispValue[length], length, grams);
+			Collections.sort(grams, new Comparator<Object[]>() {
+				public int compare(Object[] a, Object[] b) {
+					return Long.compare((Long)b[0], (Long)a[0]);
+				}
+			});
+
+			out.println(length + "-grams:");
+			for (int i = 0; i < grams.size() && i < top; i++) {
+				StringBuilder ops = new StringBuilder();
+				for (LispValue op : (LispValue[])grams.get(i)[1])
+					ops.append(' ').append(name(op));
+				out.println(String.format("  %12d %s", grams.get(i)[0], ops));
+			}
+		}
+	}
+
+	// Collects the sequences of the length, ops is filled from the end.
+	private static void collect(Node node, LispValue[] ops, int length, List<Object[]> grams)
+	{
+		for (Map.Entry<LispValue, Node> entry : node.previous.entrySet()) {
+			ops[length - 1] = entry.getKey();
+			if (length == 1)
+				grams.add(new Object[] { entry.getValue().count, ops.clone() });
+			else
+				collect(entry.getValue(), ops, length - 1, grams);
+		}
+	}
+
+	private static String name(LispValue op)
+	{
+		if (op instanceof LispPrimitive)
+			return ((LispPrimitive)op).LispFunctionNameString();
+		return String.valueOf(op);
+	}
+}
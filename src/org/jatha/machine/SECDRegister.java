@@ -58,7 +58,7 @@ public class SECDRegister extends LispProcessor
 	}
 
 	protected String f_name;           // Print name
-	protected LispList f_value;        // Assigned value
+	protected LispValue f_value;       // Assigned value
 	
 	public LispValue push(LispValue newValue)
 	{
@@ -76,7 +76,7 @@ public class SECDRegister extends LispProcessor
 	
 	public void assign(LispValue newValue)
 	{
-		f_value = (LispList)newValue;
+		f_value = newValue;
 //		this.setf_symbol_value(newValue);
 	}
 
@@ -84,6 +84,48 @@ public class SECDRegister extends LispProcessor
 	{
 		return f_value;
 	}
+
+	/**
+	 * Returns the top of the stack without popping it.
+	 */
+	public LispValue top()
+	{
+		return car(f_value);
+	}
+
+	/**
+	 * Empties the register.  Unlike <tt>assign(NIL)</tt>
+	 * this also forgets any frame bookkeeping.
+	 */
+	public void clear()
+	{
+		f_value = NIL;
+	}
+
+	/**
+	 * Saves the S, E and C registers on this (dump) register
+	 * before a function application and clears the stack.
+	 * The E value is passed explicitly, because RAP saves the
+	 * environment without its dummy frame.
+	 */
+	public void pushFrame(SECDRegister S, LispValue e, LispValue c)
+	{
+		f_value = cons(S.value(),
+		               cons(e,
+		                    cons(c, f_value)));
+		S.assign(NIL);
+	}
+
+	/**
+	 * Restores S, E and C saved by <tt>pushFrame</tt> and
+	 * pushes the function result onto the restored stack.
+	 */
+	public void popFrame(SECDRegister S, SECDRegister E, SECDRegister C, LispValue result)
+	{
+		S.assign(cons(result, pop()));
+		E.assign(pop());
+		C.assign(pop());
+	}
 	
 /*	protected LispValue setf_symbol_value(LispValue newValue)
 	{
@@ -0,0 +1,178 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+
+package org.jatha.machine;
+
+import org.jatha.dynatype.*;
+
+import
+static org.jatha.dynatype.LispValue.*;
+
+/**
+ * SECDStack is the S register of the register-file mode
+ * of the SECD machine.  Instead of consing a new cell for
+ * every push, values are kept in a growable array.
+ * 
+ * A function application does not clear the stack, it only
+ * moves the <tt>base</tt> of the current frame to the top,
+ * so the callee sees an empty stack and the caller's values
+ * stay where they are.  <tt>value()</tt> and <tt>assign()</tt>
+ * work on the current frame only and are kept for debugging
+ * output and for the few primitives that need a list view.
+ *
+ * @see SECDDump
+ */
+public class SECDStack extends SECDRegister
+{
+	// StandardLispValue[] rather than LispValue[]: a check against the
+	// interface type on every push or pop is much slower than against
+	// the common base class of all values.
+	private StandardLispValue[] f_stack = new StandardLispValue[256];
+	private int f_top  = 0;  // first free slot
+	private int f_base = 0;  // bottom of the current frame
+
+	public SECDStack(String name)
+	{
+		super(name);
+	}
+
+	public LispValue push(LispValue newValue)
+	{
+		if (f_top == f_stack.length) {
+			StandardLispValue[] stack = new StandardLispValue[f_stack.length * 2];
+			System.arraycopy(f_stack, 0, stack, 0, f_top);
+			f_stack = stack;
+		}
+		f_stack[f_top++] = (StandardLispValue)newValue;
+		return newValue;
+	}
+
+	public LispValue pop()
+	{
+		if (f_top == f_base)
+			return NIL;  // same as car(NIL) of the list register
+
+		LispValue returns = f_stack[--f_top];
+		f_stack[f_top] = null;
+		return returns;
+	}
+
+	public LispValue top()
+	{
+		if (f_top == f_base)
+			return NIL;
+		return f_stack[f_top - 1];
+	}
+
+	/**
+	 * Replaces the current frame by the elements of the list,
+	 * the first element becomes the top of the stack.
+	 */
+	public void assign(LispValue newValue)
+	{
+		truncate(f_base);
+		if (newValue == null || newValue == NIL)
+			return;
+
+		for (LispValue v = newValue; v != NIL; v = cdr(v))
+			push(car(v));
+		// reverse the pushed values in place
+		for (int i = f_base, j = f_top - 1; i < j; i++, j--) {
+			StandardLispValue tmp = f_stack[i];
+			f_stack[i] = f_stack[j];
+			f_stack[j] = tmp;
+		}
+	}
+
+	/**
+	 * Returns the current frame as a list, top of the stack first.
+	 * This allocates, so it's only for debugging and legacy code.
+	 */
+	public LispValue value()
+	{
+		LispValue result = NIL;
+		for (int i = f_base; i < f_top; i++)
+			result = cons(f_stack[i], result);
+		return result;
+	}
+
+	public void clear()
+	{
+		truncate(0);
+		f_base = 0;
+	}
+
+	/**
+	 * Starts a new (empty) frame for a function application.
+	 * @return the base of the caller's frame, to be passed to leave()
+	 */
+	int enter()
+	{
+		int base = f_base;
+		f_base = f_top;
+		return base;
+	}
+
+	/**
+	 * Drops the current frame and makes the caller's frame current again.
+	 */
+	void leave(int base)
+	{
+		truncate(f_base);
+		f_base = base;
+	}
+
+	// the state saved by the escape records of BLOCK and CATCH
+	int depth()
+	{
+		return f_top;
+	}
+	int base()
+	{
+		return f_base;
+	}
+
+	/**
+	 * Drops the values and the frames pushed after the escape
+	 * record was made.
+	 * @see SECDEscape
+	 */
+	void unwind(int top, int base)
+	{
+		truncate(top);
+		f_base = base;
+	}
+
+	private void truncate(int top)
+	{
+		while (f_top > top)
+			f_stack[--f_top] = null;
+	}
+
+	public String toString()
+	{
+		return value().toString();
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+
+package org.jatha.machine;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jatha.LispProcessor;
+import org.jatha.compile.LispPrimitive;
+import org.jatha.dynatype.*;
+
+/**
+ * Counts the instructions, the primitives and the pairs of the
+ * instructions run by the list machine, set by
+ * {@link SECDMachine#setStatistics} or by <tt>(machine-stats t)</tt>.
+ * The machine instructions (including the intrinsics and the
+ * superinstructions) are counted apart from the primitives that run
+ * as the instructions of the list code, so the frequent primitives
+ * that have no intrinsic are seen.  While the statistics are set the
+ * machine runs all the code by the list engine; the DEFUNs compiled to
+ * the JVM classes don't run on the machine and aren't counted.
+ *
+ * @see SECDProfile for the longer sequences
+ */
+public final class SECDStatistics extends LispProcessor
+{
+	private final Map<LispValue, long[]> f_counts = new IdentityHashMap<LispValue, long[]>();
+	private final Map<LispValue, Map<LispValue, long[]>> f_pairs = new IdentityHashMap<LispValue, Map<LispValue, long[]>>();
+	private LispValue f_previous = null;
+	private long f_total = 0;
+
+	/**
+	 * Counts the instruction and the pair it ends.  The instruction
+	 * that a superinstruction runs in place (the primitive of LD_OP, the
+	 * APn of LD_AP, its last operand) is counted too, but not in the
+	 * total and the pairs.
+	 * @param code the code that starts with the instruction
+	 */
+	void record(LispValue op, LispValue code)
+	{
+		f_total++;
+		increment(op);
+		if (op == SECDMachine.LD_LD || op == SECDMachine.LD_LDC || op == SECDMachine.LD_OP ||
+		    op == SECDMachine.LD_AP || op == SECDMachine.LDFC_AP || op == SECDMachine.LDFC_AP_Q) {
+			for (int i = SECDPeephole.operands(op); i > 0; i--)
+				code = cdr(code);
+			increment(car(code));
+		}
+
+		if (f_previous != null) {
+			Map<LispValue, long[]> next = f_pairs.get(f_previous);
+			if (next == null)
+				f_pairs.put(f_previous, next = new IdentityHashMap<LispValue, long[]>());
+			long[] count = next.get(op);
+			if (count == null)
+				next.put(op, count = new long[1]);
+			count[0]++;
+		}
+		f_previous = op;
+	}
+	private void increment(LispValue op)
+	{
+		long[] count = f_counts.get(op);
+		if (count == null)
+			f_counts.put(op, count = new long[1]);
+		count[0]++;
+	}
+
+	/**
+	 * Starts a new pair, the machine starts to run other code.
+	 */
+	void start()
+	{
+		f_previous = null;
+	}
+
+	public void clear()
+	{
+		f_counts.clear();
+		f_pairs.clear();
+		f_previous = null;
+		f_total = 0;
+	}
+
+	/**
+	 * Returns the number of all the instructions run.
+	 */
+	public long total()
+	{
+		return f_total;
+	}
+
+	/**
+	 * Returns the count of the instruction or the primitive.
+	 */
+	public long count(LispValue op)
+	{
+		long[] count = f_counts.get(op);
+		return count == null ? 0 : count[0];
+	}
+
+	/**
+	 * Returns the count of the second instruction run right after the first.
+	 */
+	public long count(LispValue first, LispValue second)
+	{
+		Map<LispValue, long[]> next = f_pairs.get(first);
+		long[] count = next == null ? null : next.get(second);
+		return count == null ? 0 : count[0];
+	}
+
+	/**
+	 * Returns the machine instructions as { op, count }, the most
+	 * frequent first.
+	 */
+	public List<Object[]> opcodes()
+	{
+		return counts(true);
+	}
+
+	/**
+	 * Returns the primitives run as the instructions as
+	 * { primitive, count }, the most frequent first.
+	 */
+	public List<Object[]> primitives()
+	{
+		return counts(false);
+	}
+
+	/**
+	 * Returns the pairs of the instructions as { first, second, count },
+	 * the most frequent first.
+	 */
+	public List<Object[]> pairs()
+	{
+		List<Object[]> pairs = new ArrayList<Object[]>();
+		for (Map.Entry<LispValue, Map<LispValue, long[]>> first : f_pairs.entrySet())
+			for (Map.Entry<LispValue, long[]> second : first.getValue().entrySet())
+				pairs.add(new Object[] { first.getKey(), second.getKey(), second.getValue()[0] });
+		return sorted(pairs);
+	}
+
+	private List<Object[]> counts(boolean opcodes)
+	{
+		List<Object[]> counts = new ArrayList<Object[]>();
+		for (Map.Entry<LispValue, long[]> entry : f_counts.entrySet())
+			if ((entry.getKey() instanceof SECDop) == opcodes)
+				counts.add(new Object[] { entry.getKey(), entry.getValue()[0] });
+		return sorted(counts);
+	}
+
+	// sorts by the count, the last element
+	private static List<Object[]> sorted(List<Object[]> counts)
+	{
+		Collections.sort(counts, new Comparator<Object[]>() {
+			public int compare(Object[] a, Object[] b) {
+				return Long.compare((Long)b[b.length - 1], (Long)a[a.length - 1]);
+			}
+		});
+		return counts;
+	}
+
+	/**
+	 * Prints the most frequent instructions, primitives and pairs.
+	 * @param top the number of the lines of each table
+	 */
+	public void report(PrintStream out, int top)
+	{
+		out.println(f_total + " instructions");
+		String[] titles = { "instructions:", "primitives:", "pairs:" };
+		List<?>[] tables = { opcodes(), primitives(), pairs() };
+		for (int t = 0; t < tables.length; t++) {
+			out.println(titles[t]);
+			for (int i = 0; i < tables[t].size() && i < top; i++) {
+				Object[] row = (Object[])tables[t].get(i);
+				StringBuilder ops = new StringBuilder();
+				for (int j = 0; j < row.length - 1; j++)
+					ops.append(' ').append(name((LispValue)row[j]));
+				out.println(String.format("  %12d %s", row[row.length - 1], ops));
+			}
+		}
+	}
+
+	/**
+	 * Returns the name of the instruction or the primitive.
+	 */
+	public static String name(LispValue op)
+	{
+		if (op instanceof LispPrimitive)
+			return ((LispPrimitive)op).LispFunctionNameString();
+		return String.valueOf(op);
+	}
+}
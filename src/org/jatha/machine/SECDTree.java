@@ -0,0 +1,1019 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+package org.jatha.machine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jatha.compile.LispPrimitive;
+import org.jatha.dynatype.*;
+import org.jatha.exception.*;
+
+import
+static org.jatha.dynatype.LispValue.*;
+import
+static org.jatha.LispProcessor.*;
+
+/**
+ * Closure-tree form of the SECD code.
+ *
+ * The list code produced by the LispCompiler is translated into a
+ * tree of specialized nodes (IfNode, LocalRefNode, PrimitiveCall2Node,
+ * InvokeNode, ...), each with an <tt>execute(Frame)</tt> method.  The
+ * translation runs the code on a stack of nodes instead of values: an
+ * instruction pops the nodes of its operands and pushes the node that
+ * computes its result.  The nodes left on the stack are executed in
+ * order, which is the order the SECD machine would compute them in.
+ * Before an instruction with a side effect of its own (SP_BIND, TEST,
+ * ...) the pending nodes are spilled to temporaries of the frame.
+ *
+ * The environment has the same layout as in the list machine, so
+ * the closures made by the engines can call each other.  Tail calls
+ * (DAP) are made by the loop of the caller, so they don't grow the
+ * Java stack.
+ *
+ * Code that uses primitives working with the machine registers
+ * directly (EVAL, APPLY, RETURN-FROM, ...) can't be translated and
+ * is run by the list machine.
+ *
+ * @see SECDMachine#setEngine(SECDMachine.Engine)
+ */
+public final class SECDTree
+{
+	private SECDTree() { }
+
+	/**
+	 * Translated function: the body node and the number of the
+	 * temporaries it needs.
+	 */
+	public static final class Function extends SECDCode
+	{
+		final Node body;
+		final int temps;
+
+		Function(Node body, int temps, LispValue source)
+		{
+			super(source);
+			this.body = body;
+			this.temps = temps;
+		}
+
+		public String toString()
+		{
+			return "#<tree " + body + ">";
+		}
+	}
+
+	/**
+	 * Activation of a function.  The environment is changed by the
+	 * LETs in the body.
+	 */
+	static final class Frame
+	{
+		final SECDMachine machine;
+		LispValue env;
+		final LispValue[] temps;
+		// pending tail call, made by the caller: the code and the
+		// environment of the closure, and the arguments
+		LispValue tailCode, tailEnv;
+		LispValue[] tailValues;
+
+		Frame(SECDMachine machine, LispValue env, LispValue[] temps)
+		{
+			this.machine = machine;
+			this.env = env;
+			this.temps = temps;
+		}
+		Frame(SECDMachine machine, LispValue env, int temps)
+		{
+			this(machine, env, temps > 0 ? new LispValue[temps] : null);
+		}
+	}
+
+	// Returned by the TailInvokeNode: the call is stored in the frame.
+	static final LispValue TAIL_CALL = cons(NIL, NIL);
+
+/* ------------------  EXECUTION   ------------------------------ */
+
+	static LispValue Execute(SECDMachine machine, Function function, LispValue env)
+			throws CompilerException
+	{
+		return run(new Frame(machine, env, function.temps), function);
+	}
+
+	// Runs the body and makes the tail calls it returns.
+	static LispValue run(Frame frame, Function function)
+			throws CompilerException
+	{
+		SECDMachine machine = frame.machine;
+		if (--machine.f_countdown < 0)
+			machine.check();
+		LispValue result = function.body.execute(frame);
+		while (result == TAIL_CALL) {
+			if (--machine.f_countdown < 0)
+				machine.check();
+			LispValue code = frame.tailCode;
+			LispValue[] values = frame.tailValues;
+			SECDCode callee = frame.machine.compiled(code);
+			if (callee instanceof SECDJvm.Function)
+				return ((SECDJvm.Function)callee).call(values);
+			if (!(callee instanceof Function))
+				return frame.machine.call(cons(code, frame.tailEnv), values);
+
+			function = (Function)callee;
+			frame = new Frame(frame.machine, new SECDFrame(values, frame.tailEnv), function.temps);
+			result = function.body.execute(frame);
+		}
+		return result;
+	}
+
+/* ------------------  NODES   ------------------------------ */
+
+	// The lists are cast to the StandardLispList class, which is much
+	// cheaper for the JIT than a cast to the LispList interface.
+
+	abstract static class Node
+	{
+		abstract LispValue execute(Frame f)
+				throws CompilerException;
+
+		public String toString()
+		{
+			return getClass().getSimpleName();
+		}
+	}
+
+	static final class ConstantNode extends Node
+	{
+		final LispValue value;
+		ConstantNode(LispValue value) { this.value = value; }
+
+		LispValue execute(Frame f)
+		{
+			return value;
+		}
+		public String toString() { return "'" + value; }
+	}
+
+	// LD (1 . j), argument of the current function
+	static final class ArgumentNode extends Node
+	{
+		final int j;
+		ArgumentNode(int j) { this.j = j; }
+
+		LispValue execute(Frame f)
+		{
+			return ((SECDFrame)f.env).values[j-1];
+		}
+		public String toString() { return "(LD 1 " + j + ")"; }
+	}
+
+	// LD (i . j)
+	static final class LocalRefNode extends Node
+	{
+		final int i, j;
+		LocalRefNode(int i, int j) { this.i = i; this.j = j; }
+
+		LispValue execute(Frame f)
+		{
+			return SECDFrame.frame(f.env, i-1).values[j-1];
+		}
+		public String toString() { return "(LD " + i + " " + j + ")"; }
+	}
+
+	// LDR (i . j), the &rest argument
+	static final class LocalRestNode extends Node
+	{
+		final int i, j;
+		LocalRestNode(int i, int j) { this.i = i; this.j = j; }
+
+		LispValue execute(Frame f)
+		{
+			return SECDFrame.frame(f.env, i-1).rest(j-1);
+		}
+		public String toString() { return "(LDR " + i + " " + j + ")"; }
+	}
+
+	static final class GlobalRefNode extends Node
+	{
+		final LispValue symbol;
+		GlobalRefNode(LispValue symbol) { this.symbol = symbol; }
+
+		LispValue execute(Frame f)
+		{
+			return f.machine.special_value(symbol);
+		}
+		public String toString() { return symbol.toString(); }
+	}
+
+	static final class TempRefNode extends Node
+	{
+		final int t;
+		TempRefNode(int t) { this.t = t; }
+
+		LispValue execute(Frame f)
+		{
+			return f.temps[t];
+		}
+		public String toString() { return "t" + t; }
+	}
+
+	static final class TempSetNode extends Node
+	{
+		final int t;
+		final Node value;
+		TempSetNode(int t, Node value) { this.t = t; this.value = value; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			return f.temps[t] = value.execute(f);
+		}
+		public String toString() { return "(t" + t + " = " + value + ")"; }
+	}
+
+	// ST of a local variable
+	static final class StoreLocalNode extends Node
+	{
+		final int i, j;
+		final Node value;
+		StoreLocalNode(int i, int j, Node value) { this.i = i; this.j = j; this.value = value; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			LispValue val = value.execute(f);
+			SECDFrame.frame(f.env, i-1).values[j-1] = val;
+			return val;
+		}
+		public String toString() { return "(ST " + i + " " + j + " " + value + ")"; }
+	}
+
+	// ST of a global or special variable
+	static final class StoreNode extends Node
+	{
+		final LispValue symbol;
+		final Node value;
+		StoreNode(LispValue symbol, Node value) { this.symbol = symbol; this.value = value; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			LispValue val = value.execute(f);
+			f.machine.store(f.env, symbol, val);
+			return val;
+		}
+		public String toString() { return "(ST " + symbol + " " + value + ")"; }
+	}
+
+	// LDF
+	static final class LambdaNode extends Node
+	{
+		final Function function;
+		LambdaNode(Function function) { this.function = function; }
+
+		LispValue execute(Frame f)
+		{
+			return cons(function, f.env);
+		}
+		public String toString() { return "(LAMBDA " + function.body + ")"; }
+	}
+
+	// LDFF
+	static final class FlatLambdaNode extends Node
+	{
+		final Function function;
+		final SECDFrame.Captures captures;
+		FlatLambdaNode(Function function, SECDFrame.Captures captures)
+		{
+			this.function = function;
+			this.captures = captures;
+		}
+
+		LispValue execute(Frame f)
+		{
+			return cons(function, captures.frame(f.env));
+		}
+		public String toString() { return "(LAMBDA " + captures + " " + function.body + ")"; }
+	}
+
+	// LDFC
+	static final class FunctionRefNode extends Node
+	{
+		final LispValue symbol;
+		final SECDMachine.InlineCache cache;
+		FunctionRefNode(LispValue symbol)
+		{
+			this.symbol = symbol;
+			this.cache = new SECDMachine.InlineCache(symbol, true);
+		}
+
+		LispValue execute(Frame f)
+		{
+			return cache.closure(f.machine);
+		}
+		public String toString() { return "#'" + symbol; }
+	}
+
+	// LIS
+	static final class ListNode extends Node
+	{
+		final Node[] elements;
+		ListNode(Node[] elements) { this.elements = elements; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			LispValue[] values = new LispValue[elements.length];
+			for (int i = 0; i < elements.length; i++)
+				values[i] = elements[i].execute(f);
+			LispValue list = NIL;
+			for (int i = values.length - 1; i >= 0; i--)
+				list = cons(values[i], list);
+			return list;
+		}
+		public String toString() { return "(LIST " + nodes(elements) + ")"; }
+	}
+
+	// The primitive reads its arguments from the array before it does
+	// anything else, so the array may be reused by the recursive calls.
+	static final class PrimitiveCall0Node extends Node
+	{
+		final LispPrimitive primitive;
+		PrimitiveCall0Node(LispPrimitive primitive) { this.primitive = primitive; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			return primitive.Execute(null, 0);
+		}
+		public String toString() { return "(" + primitive.LispFunctionNameString() + ")"; }
+	}
+
+	static final class PrimitiveCall1Node extends Node
+	{
+		final LispPrimitive primitive;
+		final Node arg1;
+		final LispValue[] args = new LispValue[1];
+		PrimitiveCall1Node(LispPrimitive primitive, Node arg1) { this.primitive = primitive; this.arg1 = arg1; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			args[0] = arg1.execute(f);
+			return primitive.Execute(args, 1);
+		}
+		public String toString() { return "(" + primitive.LispFunctionNameString() + " " + arg1 + ")"; }
+	}
+
+	static final class PrimitiveCall2Node extends Node
+	{
+		final LispPrimitive primitive;
+		final Node arg1, arg2;
+		final LispValue[] args = new LispValue[2];
+		PrimitiveCall2Node(LispPrimitive primitive, Node arg1, Node arg2) { this.primitive = primitive; this.arg1 = arg1; this.arg2 = arg2; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			LispValue a1 = arg1.execute(f);
+			LispValue a2 = arg2.execute(f);
+			args[0] = a1;
+			args[1] = a2;
+			return primitive.Execute(args, 2);
+		}
+		public String toString() { return "(" + primitive.LispFunctionNameString() + " " + arg1 + " " + arg2 + ")"; }
+	}
+
+	static final class PrimitiveCall3Node extends Node
+	{
+		final LispPrimitive primitive;
+		final Node arg1, arg2, arg3;
+		final LispValue[] args = new LispValue[3];
+		PrimitiveCall3Node(LispPrimitive primitive, Node arg1, Node arg2, Node arg3) { this.primitive = primitive; this.arg1 = arg1; this.arg2 = arg2; this.arg3 = arg3; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			LispValue a1 = arg1.execute(f);
+			LispValue a2 = arg2.execute(f);
+			LispValue a3 = arg3.execute(f);
+			args[0] = a1;
+			args[1] = a2;
+			args[2] = a3;
+			return primitive.Execute(args, 3);
+		}
+		public String toString() { return "(" + primitive.LispFunctionNameString() + " " + arg1 + " " + arg2 + " " + arg3 + ")"; }
+	}
+
+	// SEL and TEST
+	static final class IfNode extends Node
+	{
+		final Node test, then, otherwise;
+		IfNode(Node test, Node then, Node otherwise) { this.test = test; this.then = then; this.otherwise = otherwise; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			if (test.execute(f) != NIL)
+				return then.execute(f);
+			else
+				return otherwise.execute(f);
+		}
+		public String toString() { return "(IF " + test + " " + then + " " + otherwise + ")"; }
+	}
+
+	// Executes the nodes in order, returns the value of the last one.
+	static final class SeqNode extends Node
+	{
+		final Node[] nodes;
+		SeqNode(Node[] nodes) { this.nodes = nodes; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			int last = nodes.length - 1;
+			for (int i = 0; i < last; i++)
+				nodes[i].execute(f);
+			return nodes[last].execute(f);
+		}
+		public String toString() { return "(PROGN " + nodes(nodes) + ")"; }
+	}
+
+	// The call, the function is cached for the last called code.
+	abstract static class CallSite extends Node
+	{
+		LispValue cachedCode;
+		Function cachedFunction;
+
+		LispValue invoke(Frame f, LispValue closure, LispValue[] values)
+				throws CompilerException
+		{
+			LispValue code = ((StandardLispList)closure).car();
+
+			Function callee = cachedFunction;
+			if (code != cachedCode) {
+				SECDCode compiled = f.machine.compiled(code);
+				if (!(compiled instanceof Function))
+					return f.machine.call(closure, values);
+				callee = (Function)compiled;
+				cachedCode = code;
+				cachedFunction = callee;
+			}
+			return run(new Frame(f.machine, new SECDFrame(values, ((StandardLispList)closure).cdr()), callee.temps), callee);
+		}
+	}
+
+	static LispValue[] values(Node[] args, Frame f)
+			throws CompilerException
+	{
+		if (args.length == 0)
+			return SECDFrame.EMPTY;
+		LispValue[] values = new LispValue[args.length];
+		for (int i = 0; i < args.length; i++)
+			values[i] = args[i].execute(f);
+		return values;
+	}
+
+	// AP
+	static final class InvokeNode extends CallSite
+	{
+		final Node args, function;
+		InvokeNode(Node args, Node function) { this.args = args; this.function = function; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			LispValue v = args.execute(f);
+			return invoke(f, function.execute(f), SECDFrame.array(v));
+		}
+		public String toString() { return "(AP " + function + " " + args + ")"; }
+	}
+
+	// APn, the arguments go straight to the frame
+	static final class CallNode extends CallSite
+	{
+		final Node[] args;
+		final Node function;
+		CallNode(Node[] args, Node function) { this.args = args; this.function = function; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			LispValue[] values = values(args, f);
+			return invoke(f, function.execute(f), values);
+		}
+		public String toString() { return "(AP" + args.length + " " + function + " " + nodes(args) + ")"; }
+	}
+
+	// DAP, the call is made by the caller.
+	static final class TailInvokeNode extends Node
+	{
+		final Node args, function;
+		TailInvokeNode(Node args, Node function) { this.args = args; this.function = function; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			LispValue v = args.execute(f);
+			LispValue closure = function.execute(f);
+			f.tailCode = ((StandardLispList)closure).car();
+			f.tailEnv = ((StandardLispList)closure).cdr();
+			f.tailValues = SECDFrame.array(v);
+			return TAIL_CALL;
+		}
+		public String toString() { return "(DAP " + function + " " + args + ")"; }
+	}
+
+	// DAPn
+	static final class TailCallNode extends Node
+	{
+		final Node[] args;
+		final Node function;
+		TailCallNode(Node[] args, Node function) { this.args = args; this.function = function; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			LispValue[] values = values(args, f);
+			LispValue closure = function.execute(f);
+			f.tailCode = ((StandardLispList)closure).car();
+			f.tailEnv = ((StandardLispList)closure).cdr();
+			f.tailValues = values;
+			return TAIL_CALL;
+		}
+		public String toString() { return "(DAP" + args.length + " " + function + " " + nodes(args) + ")"; }
+	}
+
+	// APL, the call of the local function without the closure
+	static final class LocalCallNode extends Node
+	{
+		final SECDMachine.Local local;
+		final int depth;
+		final Node[] args;
+		Function callee;
+		LocalCallNode(SECDMachine.Local local, int depth, Node[] args) { this.local = local; this.depth = depth; this.args = args; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			LispValue[] values = values(args, f);
+			LispValue env = SECDMachine.outer(f.env, depth);
+			if (callee == null) {
+				SECDCode compiled = f.machine.compiled(local.code);
+				if (!(compiled instanceof Function))
+					return f.machine.call(cons(local.code, env), values);
+				callee = (Function)compiled;
+			}
+			return run(new Frame(f.machine, new SECDFrame(values, env), callee.temps), callee);
+		}
+		public String toString() { return "(APL " + local + " " + nodes(args) + ")"; }
+	}
+
+	// DAPL
+	static final class TailLocalCallNode extends Node
+	{
+		final SECDMachine.Local local;
+		final int depth;
+		final Node[] args;
+		TailLocalCallNode(SECDMachine.Local local, int depth, Node[] args) { this.local = local; this.depth = depth; this.args = args; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			f.tailValues = values(args, f);
+			f.tailCode = local.code;
+			f.tailEnv = SECDMachine.outer(f.env, depth);
+			return TAIL_CALL;
+		}
+		public String toString() { return "(DAPL " + local + " " + nodes(args) + ")"; }
+	}
+
+	// LDL
+	static final class LocalClosureNode extends Node
+	{
+		final SECDMachine.Local local;
+		final int depth;
+		LocalClosureNode(SECDMachine.Local local, int depth) { this.local = local; this.depth = depth; }
+
+		LispValue execute(Frame f)
+		{
+			return cons(local.code, SECDMachine.outer(f.env, depth));
+		}
+		public String toString() { return "#'" + local; }
+	}
+
+	// DUM ... RAP
+	static final class LetrecNode extends Node
+	{
+		final Node values;
+		final Function body;
+		LetrecNode(Node values, Function body) { this.values = values; this.body = body; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			SECDFrame env = new SECDFrame(SECDFrame.EMPTY, f.env);
+			env.values = SECDFrame.array(values.execute(new Frame(f.machine, env, f.temps)));
+			return run(new Frame(f.machine, env, body.temps), body);
+		}
+		public String toString() { return "(LETREC " + values + " " + body.body + ")"; }
+	}
+
+	// ENTER ... LEAVE, the body runs in the frame of the values
+	static final class LetNode extends Node
+	{
+		final Node[] values;
+		final Node body;
+		LetNode(Node[] values, Node body) { this.values = values; this.body = body; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			LispValue env = f.env;
+			f.env = new SECDFrame(values(values, f), env);
+			LispValue result = body.execute(f);
+			f.env = env;
+			return result;
+		}
+		public String toString() { return "(LET (" + nodes(values) + ") " + body + ")"; }
+	}
+
+	static final class BindNode extends Node
+	{
+		final LispValue symbol;
+		final Node value;
+		BindNode(LispValue symbol, Node value) { this.symbol = symbol; this.value = value; }
+
+		LispValue execute(Frame f)
+				throws CompilerException
+		{
+			f.machine.special_bind(symbol, value.execute(f));
+			return NIL;
+		}
+		public String toString() { return "(SP_BIND " + symbol + " " + value + ")"; }
+	}
+
+	static final class UnbindNode extends Node
+	{
+		final LispValue symbol;
+		UnbindNode(LispValue symbol) { this.symbol = symbol; }
+
+		LispValue execute(Frame f)
+		{
+			f.machine.special_unbind(symbol);
+			return NIL;
+		}
+		public String toString() { return "(SP_UNBIND " + symbol + ")"; }
+	}
+
+	static String nodes(Node[] nodes)
+	{
+		StringBuilder out = new StringBuilder();
+		for (Node node : nodes)
+			out.append(out.length() > 0 ? " " : "").append(node);
+		return out.toString();
+	}
+
+/* ------------------  TRANSLATOR   ------------------------------ */
+
+	/**
+	 * Translates the SECD list code to the tree.
+	 * @param code code produced by the LispCompiler
+	 * @return the function or null if the code can't be translated
+	 */
+	public static Function translate(LispValue code)
+	{
+		try {
+			return new Translator().function(code);
+		}
+		catch (Untranslatable e) {
+			return null;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	static final class Untranslatable extends Exception
+	{
+		public Throwable fillInStackTrace() { return this; }
+	}
+
+	static final class Translator
+	{
+		// the way the sequence ends
+		static final int RETURN = 0;  // RTN, STOP, DAP or the end of the list
+		static final int JOIN   = 1;  // branch of SEL
+		static final int RAP    = 2;  // DUM ... RAP
+		static final int LET    = 3;  // ENTER ... LEAVE
+		static final int TAIL_LET = 4;  // ENTER ... LEAVE or the return
+
+		LispValue code;  // the rest of the code being translated
+		int temps = 0;
+		boolean left;    // the last LET body ended by LEAVE
+
+		static boolean returns(int end)
+		{
+			return end == RETURN || end == TAIL_LET;
+		}
+
+		Function function(LispValue list)
+				throws Untranslatable
+		{
+			code = list;
+			Node body = sequence(new ArrayList<Node>(), new ArrayList<Node>(), RETURN);
+			return new Function(body, temps, list);
+		}
+
+		LispValue operand()
+				throws Untranslatable
+		{
+			if (code == NIL)
+				throw new Untranslatable();
+			LispValue operand = car(code);
+			code = cdr(code);
+			return operand;
+		}
+
+		static Node pop(List<Node> stack)
+				throws Untranslatable
+		{
+			if (stack.isEmpty())
+				throw new Untranslatable();
+			return stack.remove(stack.size() - 1);
+		}
+
+		static int integer(LispValue value)
+		{
+			return (int)((LispInteger)value).getLongValue();
+		}
+
+		// Moves the pending nodes to the temporaries.
+		void spill(List<Node> stack, List<Node> statements)
+		{
+			for (int i = 0; i < stack.size(); i++) {
+				Node node = stack.get(i);
+				if (node instanceof ConstantNode || node instanceof TempRefNode)
+					continue;
+				statements.add(new TempSetNode(temps, node));
+				stack.set(i, new TempRefNode(temps++));
+			}
+		}
+
+		// The statements, then the stack nodes; the top of the stack is the result.
+		static Node block(List<Node> statements, List<Node> stack)
+		{
+			List<Node> nodes = new ArrayList<Node>(statements);
+			nodes.addAll(stack);
+			if (stack.isEmpty())
+				nodes.add(new ConstantNode(NIL));
+			if (nodes.size() == 1)
+				return nodes.get(0);
+			return new SeqNode(nodes.toArray(new Node[nodes.size()]));
+		}
+
+		Node branch(LispValue list, List<Node> stack, int end)
+				throws Untranslatable
+		{
+			LispValue rest = code;
+			code = list;
+			Node node = sequence(stack, new ArrayList<Node>(), end);
+			code = rest;
+			return node;
+		}
+
+		Node sequence(List<Node> stack, List<Node> statements, int end)
+				throws Untranslatable
+		{
+			while (true)
+			{
+				if (code == NIL) {  // the end of the code stops the machine
+					if (!returns(end))
+						throw new Untranslatable();
+					return block(statements, stack);
+				}
+				LispValue op = car(code);
+				code = cdr(code);
+
+				if (op instanceof SECDMachine.Superinstruction) {
+					code = ((SECDMachine.Superinstruction)op).expand(code);
+					continue;
+				}
+				if (op == SECDMachine.LDNIL)
+					stack.add(new ConstantNode(NIL));
+				else if (op == SECDMachine.LDT)
+					stack.add(new ConstantNode(T));
+				else if (op == SECDMachine.LDC)
+					stack.add(new ConstantNode(operand()));
+				else if (op == SECDMachine.LD) {
+					SECDFrame.Slot slot = (SECDFrame.Slot)operand();
+					stack.add(slot.depth == 0 ? new ArgumentNode(slot.index + 1)
+					                          : new LocalRefNode(slot.depth + 1, slot.index + 1));
+				}
+				else if (op == SECDMachine.LDR) {
+					SECDFrame.Slot slot = (SECDFrame.Slot)operand();
+					stack.add(new LocalRestNode(slot.depth + 1, slot.index + 1));
+				}
+				else if (op == SECDMachine.LD_GLOBAL)
+					stack.add(new GlobalRefNode(operand()));
+				else if (op == SECDMachine.ST) {
+					Node value = pop(stack);
+					Node target = pop(stack);
+					if (!(target instanceof ConstantNode))
+						throw new Untranslatable();
+					LispValue sym = ((ConstantNode)target).value;
+					if (sym instanceof SECDFrame.Slot) {
+						SECDFrame.Slot slot = (SECDFrame.Slot)sym;
+						stack.add(new StoreLocalNode(slot.depth + 1, slot.index + 1, value));
+					}
+					else
+						stack.add(new StoreNode(sym, value));
+				}
+				else if (op == SECDMachine.LDF)
+					stack.add(new LambdaNode(new Translator().function(operand())));
+				else if (op == SECDMachine.LDFF) {
+					Function function = new Translator().function(operand());
+					stack.add(new FlatLambdaNode(function, (SECDFrame.Captures)operand()));
+				}
+				else if (op == SECDMachine.LDFC)
+					stack.add(new FunctionRefNode(operand()));
+				else if (op == SECDMachine.SEL) {
+					Node test = pop(stack);
+					LispValue thenCode = operand();
+					LispValue elseCode = operand();
+					stack.add(new IfNode(test,
+					                     branch(thenCode, new ArrayList<Node>(), JOIN),
+					                     branch(elseCode, new ArrayList<Node>(), JOIN)));
+				}
+				else if (op == SECDMachine.JOIN) {
+					if (end != JOIN)
+						throw new Untranslatable();
+					return block(statements, stack);
+				}
+				else if (op == SECDMachine.TEST) {
+					if (!returns(end))
+						throw new Untranslatable();
+					Node test = pop(stack);
+					LispValue thenCode = operand();
+					spill(stack, statements);
+					Node otherwise = branch(code, new ArrayList<Node>(stack), RETURN);
+					Node then = branch(thenCode, new ArrayList<Node>(stack), RETURN);
+					List<Node> result = new ArrayList<Node>();
+					result.add(new IfNode(test, then, otherwise));
+					return block(statements, result);
+				}
+				else if (op == SECDMachine.AP) {
+					Node function = pop(stack);
+					stack.add(new InvokeNode(pop(stack), function));
+				}
+				else if (op == SECDMachine.DAP) {
+					if (!returns(end))
+						throw new Untranslatable();
+					Node function = pop(stack);
+					stack.add(new TailInvokeNode(pop(stack), function));
+					return block(statements, stack);
+				}
+				else if (op instanceof SECDMachine.Apply) {
+					SECDMachine.Apply apply = (SECDMachine.Apply)op;
+					if (apply.tail && !returns(end))
+						throw new Untranslatable();
+					Node function = pop(stack);
+					Node[] args = new Node[apply.arity];
+					for (int i = args.length - 1; i >= 0; i--)
+						args[i] = pop(stack);
+					if (!apply.tail)
+						stack.add(new CallNode(args, function));
+					else {
+						stack.add(new TailCallNode(args, function));
+						return block(statements, stack);
+					}
+				}
+				else if (op instanceof SECDMachine.LocalApply) {
+					boolean tail = ((SECDMachine.LocalApply)op).tail;
+					if (tail && !returns(end))
+						throw new Untranslatable();
+					SECDMachine.Local local = (SECDMachine.Local)operand();
+					int depth = integer(operand());
+					Node[] args = new Node[integer(operand())];
+					for (int i = args.length - 1; i >= 0; i--)
+						args[i] = pop(stack);
+					if (!tail)
+						stack.add(new LocalCallNode(local, depth, args));
+					else {
+						stack.add(new TailLocalCallNode(local, depth, args));
+						return block(statements, stack);
+					}
+				}
+				else if (op == SECDMachine.LDL) {
+					SECDMachine.Local local = (SECDMachine.Local)operand();
+					stack.add(new LocalClosureNode(local, integer(operand())));
+				}
+				else if (op == SECDMachine.DUM)
+					stack.add(sequence(new ArrayList<Node>(), new ArrayList<Node>(), RAP));
+				else if (op == SECDMachine.RAP) {
+					if (end != RAP)
+						throw new Untranslatable();
+					Node closure = pop(stack);
+					if (!(closure instanceof LambdaNode))
+						throw new Untranslatable();
+					return new LetrecNode(block(statements, stack), ((LambdaNode)closure).function);
+				}
+				else if (op == SECDMachine.RTN || op == SECDMachine.STOP) {
+					if (!returns(end))
+						throw new Untranslatable();
+					return block(statements, stack);
+				}
+				else if (op == SECDMachine.ENTER) {
+					Node[] values = new Node[integer(operand())];
+					for (int i = values.length - 1; i >= 0; i--)
+						values[i] = pop(stack);
+					left = false;
+					Node body = sequence(new ArrayList<Node>(), new ArrayList<Node>(), returns(end) ? TAIL_LET : LET);
+					stack.add(new LetNode(values, body));
+					if (!left)  // the body returns
+						return block(statements, stack);
+					left = false;
+				}
+				else if (op == SECDMachine.LEAVE) {
+					if (end != LET && end != TAIL_LET)
+						throw new Untranslatable();
+					left = true;
+					return block(statements, stack);
+				}
+				else if (op == SECDMachine.POP) {
+					Node node = pop(stack);
+					if (!(node instanceof ConstantNode || node instanceof TempRefNode)) {
+						spill(stack, statements);
+						statements.add(node);
+					}
+				}
+				else if (op == SECDMachine.LIS) {
+					Node[] elements = new Node[integer(operand())];
+					for (int i = elements.length - 1; i >= 0; i--)
+						elements[i] = pop(stack);
+					stack.add(new ListNode(elements));
+				}
+				else if (op == SECDMachine.SP_BIND) {
+					LispValue sym = operand();
+					Node value = pop(stack);
+					spill(stack, statements);
+					statements.add(new BindNode(sym, value));
+				}
+				else if (op == SECDMachine.SP_UNBIND) {
+					LispValue sym = operand();
+					spill(stack, statements);
+					statements.add(new UnbindNode(sym));
+				}
+				else if (op instanceof SECDop && !(op instanceof SECDMachine.Intrinsic))
+					throw new Untranslatable();
+				else if (op instanceof SECDMachine.Intrinsic || (op instanceof LispPrimitive && ((LispPrimitive)op).isSimple())) {
+					LispPrimitive primitive = (LispPrimitive)op;
+					switch (primitive.argumentCount()) {
+					case 0:
+						stack.add(new PrimitiveCall0Node(primitive));
+						break;
+					case 1:
+						stack.add(new PrimitiveCall1Node(primitive, pop(stack)));
+						break;
+					case 2: {
+						Node arg2 = pop(stack);
+						stack.add(new PrimitiveCall2Node(primitive, pop(stack), arg2));
+						break;
+					}
+					case 3: {
+						Node arg3 = pop(stack);
+						Node arg2 = pop(stack);
+						stack.add(new PrimitiveCall3Node(primitive, pop(stack), arg2, arg3));
+						break;
+					}
+					default:
+						throw new Untranslatable();
+					}
+				}
+				else
+					throw new Untranslatable();
+			}
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Jatha - a Common LISP-compatible LISP library in Java.
+ * Copyright (C) 1997-2005 Micheal Scott Hewett
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *
+ * For further information, please contact Micheal Hewett at
+ *   hewett@cs.stanford.edu
+ *
+ */
+
+package org.jatha.machine;
+
+import org.jatha.compile.LispPrimitive0;
+import org.jatha.dynatype.LispValue;
+import org.jatha.exception.CompilerException;
+import org.jatha.exception.LispAssertionException;
+
+/**
+ * SECDop is the abstract class that encompasses all SECD
+ * machine ops.
+ *
+ * @see org.jatha.compile.LispPrimitive
+ * @author  Micheal S. Hewett    hewett@cs.stanford.edu
+ */
+abstract class SECDop extends LispPrimitive0
+{
+	public SECDop(String opName)
+	{
+		super(opName);
+	}
+
+	/**
+	 * The output of this function is printed when the
+	 * instruction needs to be printed.
+	 */
+	public String toString()
+	{
+		return "SECD." + functionName;
+	}
+
+	protected LispValue Execute()
+			throws CompilerException
+	{
+		throw new LispAssertionException(LispFunctionNameString() + " was compiled - shouldn't have been."); 
+	}
+}